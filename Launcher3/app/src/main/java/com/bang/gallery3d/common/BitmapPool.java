@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.common;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mutable bitmaps that are no longer used, shared by the whole process so that they can be
+ * decoded into or drawn over instead of allocating new ones.
+ *
+ * Bitmaps are bucketed by width, height and config, and the pool holds at most
+ * {@link #setMaxBytes} bytes in all; past that, the least recently released bitmaps are
+ * dropped. The buckets are spread over a few independently locked stripes so that the decoder
+ * threads and the UI thread don't contend on a single lock.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // Must be a power of 2
+    private static final int STRIPE_COUNT = 4;
+    // Default share of the heap the pool may hold
+    private static final int DEFAULT_HEAP_FRACTION = 8;
+
+    private static BitmapPool sInstance;
+
+    private static class Entry {
+        final Bitmap bitmap;
+        final long key;
+        final long sequence;
+        // Neighbours in the least recently released order of the stripe
+        Entry prev;
+        Entry next;
+
+        Entry(Bitmap bitmap, long key, long sequence) {
+            this.bitmap = bitmap;
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Stripe {
+        final HashMap<Long, ArrayList<Entry>> buckets = new HashMap<Long, ArrayList<Entry>>();
+        // Oldest and newest entries of the stripe
+        Entry head;
+        Entry tail;
+
+        void addLocked(Entry e) {
+            ArrayList<Entry> bucket = buckets.get(e.key);
+            if (bucket == null) {
+                bucket = new ArrayList<Entry>();
+                buckets.put(e.key, bucket);
+            }
+            bucket.add(e);
+            e.prev = tail;
+            if (tail != null) {
+                tail.next = e;
+            } else {
+                head = e;
+            }
+            tail = e;
+        }
+
+        /** Removes the most recently released entry of the bucket, or returns null. */
+        Entry removeNewestLocked(long key) {
+            ArrayList<Entry> bucket = buckets.get(key);
+            if (bucket == null || bucket.isEmpty()) {
+                return null;
+            }
+            Entry e = bucket.remove(bucket.size() - 1);
+            unlinkLocked(e);
+            return e;
+        }
+
+        /** Removes the least recently released entry of the stripe, or returns null. */
+        Entry removeOldestLocked() {
+            Entry e = head;
+            if (e == null) {
+                return null;
+            }
+            // Entries of a bucket are in release order, so the oldest is first
+            buckets.get(e.key).remove(0);
+            unlinkLocked(e);
+            return e;
+        }
+
+        private void unlinkLocked(Entry e) {
+            if (e.prev != null) {
+                e.prev.next = e.next;
+            } else {
+                head = e.next;
+            }
+            if (e.next != null) {
+                e.next.prev = e.prev;
+            } else {
+                tail = e.prev;
+            }
+            e.prev = null;
+            e.next = null;
+        }
+    }
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mBytes = new AtomicInteger();
+    private volatile int mMaxBytes;
+
+    // Stats, for debugging
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mEvictions = new AtomicInteger();
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(
+                    (int) (Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION));
+        }
+        return sInstance;
+    }
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /** Sets how many bytes the pool may hold, dropping bitmaps if it holds more. */
+    public void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 40) | ((long) (height & 0xffffff) << 16) | config.ordinal();
+    }
+
+    private Stripe getStripe(long key) {
+        final int h = (int) (key ^ (key >>> 16) ^ (key >>> 40));
+        return mStripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config, or null if there is none. The
+     * content of the bitmap is undefined.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        final long key = getKey(width, height, config);
+        final Stripe stripe = getStripe(key);
+        final Entry e;
+        synchronized (stripe) {
+            e = stripe.removeNewestLocked(key);
+        }
+        if (e == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mBytes.addAndGet(-e.bitmap.getByteCount());
+        mHits.incrementAndGet();
+        return e.bitmap;
+    }
+
+    /**
+     * Returns a cleared bitmap of the given size and config, from the pool if possible.
+     */
+    public Bitmap acquireCleared(int width, int height, Bitmap.Config config) {
+        Bitmap b = acquire(width, height, config);
+        if (b != null) {
+            b.eraseColor(0);
+            return b;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap that nothing uses anymore to the pool. Immutable and recycled bitmaps
+     * are ignored.
+     */
+    public void release(Bitmap b) {
+        if (b == null || !b.isMutable() || b.isRecycled() || b.getConfig() == null) {
+            return;
+        }
+        final int size = b.getByteCount();
+        final int maxBytes = mMaxBytes;
+        if (size > maxBytes) {
+            return;
+        }
+        final long key = getKey(b.getWidth(), b.getHeight(), b.getConfig());
+        final Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.addLocked(new Entry(b, key, mSequence.incrementAndGet()));
+        }
+        if (mBytes.addAndGet(size) > maxBytes) {
+            trimToSize(maxBytes);
+        }
+    }
+
+    /** Drops the pooled bitmaps of the given size and config. */
+    public void clear(int width, int height, Bitmap.Config config) {
+        final long key = getKey(width, height, config);
+        final Stripe stripe = getStripe(key);
+        while (true) {
+            final Entry e;
+            synchronized (stripe) {
+                e = stripe.removeNewestLocked(key);
+            }
+            if (e == null) {
+                break;
+            }
+            mBytes.addAndGet(-e.bitmap.getByteCount());
+        }
+    }
+
+    /** Drops the least recently released bitmaps until the pool holds at most maxBytes. */
+    public void trimToSize(int maxBytes) {
+        while (mBytes.get() > maxBytes) {
+            // Find the stripe holding the oldest bitmap
+            Stripe oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Stripe stripe : mStripes) {
+                synchronized (stripe) {
+                    if (stripe.head != null && stripe.head.sequence < oldestSequence) {
+                        oldestSequence = stripe.head.sequence;
+                        oldest = stripe;
+                    }
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            // Another thread may have taken it meanwhile; the stripe's oldest is close enough
+            final Entry e;
+            synchronized (oldest) {
+                e = oldest.removeOldestLocked();
+            }
+            if (e != null) {
+                mBytes.addAndGet(-e.bitmap.getByteCount());
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Shrinks the pool according to a level passed to ComponentCallbacks2.onTrimMemory. */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    public void dumpState() {
+        Log.d(TAG, "bitmap pool: " + mBytes.get() + "/" + mMaxBytes + " bytes, "
+                + mHits.get() + " hits, " + mMisses.get() + " misses, "
+                + mEvictions.get() + " evictions");
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.exif;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link CountedDataInputStream} reading straight from a ByteBuffer, such as a byte array
+ * or a memory mapped file. Values are read at absolute offsets in the byte order set on the
+ * buffer, and skipping only moves the offset, so only the parts of the buffer actually parsed
+ * are touched.
+ */
+class ByteBufferDataInputStream extends CountedDataInputStream {
+
+    private final ByteBuffer mBuf;
+    private int mPosition;
+
+    /**
+     * Reads the buffer from its position on; the position of the given buffer is left as is.
+     */
+    protected ByteBufferDataInputStream(ByteBuffer buf) {
+        this(buf, 0);
+    }
+
+    /**
+     * Reads the buffer from offset bytes past its position, which is then offset 0 for
+     * {@link #getReadByteCount} and {@link #skipTo}.
+     */
+    protected ByteBufferDataInputStream(ByteBuffer buf, int offset) {
+        // Every read is served from the buffer, there is no underlying stream
+        super(null);
+        mBuf = slice(buf, offset);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(Math.min(dup.position() + offset, dup.limit()));
+        // Same default order as CountedDataInputStream
+        return dup.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private int remaining() {
+        return mBuf.limit() - mPosition;
+    }
+
+    private int advance(int length) throws EOFException {
+        if (length > remaining()) {
+            mPosition = mBuf.limit();
+            throw new EOFException();
+        }
+        int position = mPosition;
+        mPosition += length;
+        return position;
+    }
+
+    /**
+     * Returns a copy of length bytes from offset on, or of as many as there are.
+     */
+    public byte[] copyBytes(int offset, int length) {
+        offset = Math.min(offset, mBuf.limit());
+        byte[] bytes = new byte[Math.min(length, mBuf.limit() - offset)];
+        ByteBuffer dup = mBuf.duplicate();
+        dup.position(offset);
+        dup.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public int getReadByteCount() {
+        return mPosition;
+    }
+
+    @Override
+    public int available() {
+        return remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        len = Math.min(len, remaining());
+        if (len == 0) {
+            return -1;
+        }
+        mBuf.position(mPosition);
+        mBuf.get(b, off, len);
+        mPosition += len;
+        return len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining() == 0) {
+            return -1;
+        }
+        return mBuf.get(mPosition++) & 0xff;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+        if (length <= 0) {
+            return 0;
+        }
+        int skip = (int) Math.min(length, remaining());
+        mPosition += skip;
+        return skip;
+    }
+
+    @Override
+    public void skipTo(long target) throws IOException {
+        if (target < mPosition || target > mBuf.limit()) {
+            throw new EOFException();
+        }
+        mPosition = (int) target;
+    }
+
+    @Override
+    public void setByteOrder(ByteOrder order) {
+        mBuf.order(order);
+    }
+
+    @Override
+    public ByteOrder getByteOrder() {
+        return mBuf.order();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return mBuf.getShort(advance(2));
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return mBuf.getInt(advance(4));
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return mBuf.getLong(advance(8));
+    }
+
+    @Override
+    public String readString(int n) throws IOException {
+        return readString(n, Charset.forName("UTF8"));
+    }
+
+    @Override
+    public String readString(int n, Charset charset) throws IOException {
+        int position = advance(n);
+        if (mBuf.hasArray()) {
+            return new String(mBuf.array(), mBuf.arrayOffset() + position, n, charset);
+        }
+        byte buf[] = new byte[n];
+        mBuf.position(position);
+        mBuf.get(buf);
+        return new String(buf, charset);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.exif;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a few tags from many JPEG files at once, such as the orientation and
+ * date of every image to index.
+ * <p>
+ * Only the IFDs holding the requested tags are parsed, the thumbnail never
+ * is, and only the values of the requested tags are read (see
+ * {@link ExifInterface#setReadValuesOnDemand}). Files are memory mapped, so
+ * only their EXIF header is loaded. The files are spread over a small pool of
+ * background threads, each taking the next file as soon as it is done with
+ * one, and each reusing its own {@link ExifInterface}, with its table of tag
+ * definitions, from a file to the next.
+ * <p>
+ * Below is an example of reading the orientation and date of images.
+ *
+ * <pre>
+ * ExifBatchReader reader = new ExifBatchReader(new int[] {
+ *         ExifInterface.TAG_ORIENTATION, ExifInterface.TAG_DATE_TIME_ORIGINAL
+ * });
+ * for (ExifBatchReader.Result r : reader.read(paths)) {
+ *     Integer orientation = r.getTagIntValue(0);
+ *     String date = r.getTagStringValue(1);
+ * }
+ * </pre>
+ */
+public class ExifBatchReader {
+    private static final String TAG = "ExifBatchReader";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_THREADS = 4;
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    return new Thread("exif-batch-reader-" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    /**
+     * The requested tags of a file. Tags are identified by their index in the
+     * array of tags given to the {@link ExifBatchReader}.
+     */
+    public static class Result {
+        private final String mPath;
+        private final ExifTag[] mTags;
+        private final Exception mError;
+
+        Result(String path, ExifTag[] tags, Exception error) {
+            mPath = path;
+            mTags = tags;
+            mError = error;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        /**
+         * Returns why the file couldn't be read, or null if it could. A file
+         * without EXIF data is read fine, and has no tags.
+         */
+        public Exception getError() {
+            return mError;
+        }
+
+        /**
+         * Returns the tag at the given index of the requested tags, or null if
+         * the file doesn't have it.
+         */
+        public ExifTag getTag(int index) {
+            return mTags != null ? mTags[index] : null;
+        }
+
+        /**
+         * @see ExifInterface#getTagIntValue
+         */
+        public Integer getTagIntValue(int index) {
+            ExifTag t = getTag(index);
+            int[] l = t != null ? t.getValueAsInts() : null;
+            if (l == null || l.length <= 0) {
+                return null;
+            }
+            return new Integer(l[0]);
+        }
+
+        /**
+         * @see ExifInterface#getTagStringValue
+         */
+        public String getTagStringValue(int index) {
+            ExifTag t = getTag(index);
+            return t != null ? t.getValueAsString() : null;
+        }
+    }
+
+    private final int[] mTagIds;
+    private final int mOptions;
+
+    // Stats of the last batch, for debugging
+    private volatile int mLastFileCount;
+    private volatile long mLastBatchNanos;
+
+    /**
+     * @param tagIds the tags to read, as the tag constants of
+     *            {@link ExifInterface}; each is read from its default IFD
+     */
+    public ExifBatchReader(int[] tagIds) {
+        if (tagIds == null) {
+            throw new IllegalArgumentException("Argument is null");
+        }
+        mTagIds = Arrays.copyOf(tagIds, tagIds.length);
+        int options = 0;
+        for (int tagId : tagIds) {
+            options |= getOptionForIfd(ExifInterface.getTrueIfd(tagId));
+        }
+        mOptions = options;
+    }
+
+    private static int getOptionForIfd(int ifdId) {
+        switch (ifdId) {
+            case IfdId.TYPE_IFD_0:
+                return ExifParser.OPTION_IFD_0;
+            case IfdId.TYPE_IFD_1:
+                return ExifParser.OPTION_IFD_1;
+            case IfdId.TYPE_IFD_EXIF:
+                return ExifParser.OPTION_IFD_EXIF;
+            case IfdId.TYPE_IFD_GPS:
+                return ExifParser.OPTION_IFD_GPS;
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                return ExifParser.OPTION_IFD_INTEROPERABILITY;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the requested tags of the given files, and returns their results
+     * in the same order. Blocks until every file is read; must not be called
+     * on the main thread. A file that can't be read, for any reason, has a
+     * result with the {@link Result#getError error}.
+     *
+     * @throws InterruptedException if interrupted while waiting, in which case
+     *             the files not read yet are abandoned
+     */
+    public List<Result> read(final List<String> paths) throws InterruptedException {
+        final long start = System.nanoTime();
+        final int count = paths.size();
+        final Result[] results = new Result[count];
+        final AtomicInteger next = new AtomicInteger();
+        final int threadCount = Math.min(count,
+                Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threadCount);
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(sExecutor.submit(new Runnable() {
+                    public void run() {
+                        ExifInterface exif = new ExifInterface();
+                        ExifReader reader = new ExifReader(exif);
+                        int index;
+                        while ((index = next.getAndIncrement()) < count
+                                && !Thread.currentThread().isInterrupted()) {
+                            results[index] = readFile(paths.get(index), reader);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to read exif", e.getCause());
+                }
+            }
+        } finally {
+            // Don't leave the pool busy with an abandoned batch
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        mLastFileCount = count;
+        mLastBatchNanos = System.nanoTime() - start;
+        if (DEBUG) {
+            dumpState();
+        }
+        return Arrays.asList(results);
+    }
+
+    private Result readFile(String path, ExifReader reader) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(path);
+            ExifData data = reader.read(ExifInterface.map(is), mOptions, true);
+            ExifTag[] tags = new ExifTag[mTagIds.length];
+            for (int i = 0; i < tags.length; i++) {
+                final int tagId = mTagIds[i];
+                tags[i] = data.getTag(ExifInterface.getTrueTagKey(tagId),
+                        ExifInterface.getTrueIfd(tagId));
+            }
+            return new Result(path, tags, null);
+        } catch (IOException e) {
+            return new Result(path, null, e);
+        } catch (ExifInvalidFormatException e) {
+            return new Result(path, null, e);
+        } catch (RuntimeException e) {
+            // A corrupt file may make the parser fail in unexpected ways; keep it
+            // from ending this worker and losing the files after it
+            Log.w(TAG, "Failed to read exif of " + path, e);
+            return new Result(path, null, e);
+        } finally {
+            ExifInterface.closeSilently(is);
+        }
+    }
+
+    public void dumpState() {
+        final long nanos = mLastBatchNanos;
+        Log.d(TAG, "last batch: " + mLastFileCount + " files in " + nanos / 1000000 + "ms, "
+                + (nanos > 0 ? mLastFileCount * 1000000000L / nanos : 0) + " files/s");
+    }
+}
@@ -47,11 +47,32 @@ class ExifData {
     private byte[] mThumbnail;
     private ArrayList<byte[]> mStripBytes = new ArrayList<byte[]>();
     private final ByteOrder mByteOrder;
+    // Tags whose values haven't been read yet
+    private ExifTagIndex mTagIndex;
 
     ExifData(ByteOrder order) {
         mByteOrder = order;
     }
 
+    /**
+     * Sets the tags whose values are only read once asked for. Until then, they are only in
+     * the index, which must not contain tags that are already in this ExifData.
+     */
+    protected void setTagIndex(ExifTagIndex index) {
+        mTagIndex = index;
+    }
+
+    /**
+     * Reads the tags still in the index, before accessing the IFDs as a whole.
+     */
+    private void readIndexedTags() {
+        if (mTagIndex != null) {
+            ExifTagIndex index = mTagIndex;
+            mTagIndex = null;
+            index.takeAll(this);
+        }
+    }
+
     /**
      * Gets the compressed thumbnail. Returns null if there is no compressed
      * thumbnail.
@@ -125,6 +146,7 @@ class ExifData {
      * exists or null.
      */
     protected IfdData getIfdData(int ifdId) {
+        readIndexedTags();
         if (ExifTag.isValidIfd(ifdId)) {
             return mIfdDatas[ifdId];
         }
@@ -136,6 +158,7 @@ class ExifData {
      * replaced by the new data.
      */
     protected void addIfdData(IfdData data) {
+        readIndexedTags();
         mIfdDatas[data.getId()] = data;
     }
 
@@ -144,6 +167,7 @@ class ExifData {
      * generates one if none exist.
      */
     protected IfdData getOrCreateIfdData(int ifdId) {
+        readIndexedTags();
         IfdData ifdData = mIfdDatas[ifdId];
         if (ifdData == null) {
             ifdData = new IfdData(ifdId);
@@ -158,7 +182,17 @@ class ExifData {
      */
     protected ExifTag getTag(short tag, int ifd) {
         IfdData ifdData = mIfdDatas[ifd];
-        return (ifdData == null) ? null : ifdData.getTag(tag);
+        if (ifdData == null) {
+            return null;
+        }
+        ExifTag t = ifdData.getTag(tag);
+        if (t == null && mTagIndex != null) {
+            t = mTagIndex.take(tag, ifd);
+            if (t != null) {
+                ifdData.setTag(t);
+            }
+        }
+        return t;
     }
 
     /**
@@ -194,6 +228,7 @@ class ExifData {
      * Removes the thumbnail and its related tags. IFD1 will be removed.
      */
     protected void removeThumbnailData() {
+        readIndexedTags();
         clearThumbnailAndStrips();
         mIfdDatas[IfdId.TYPE_IFD_1] = null;
     }
@@ -207,6 +242,9 @@ class ExifData {
             return;
         }
         ifdData.removeTag(tagId);
+        if (mTagIndex != null) {
+            mTagIndex.remove(tagId, ifdId);
+        }
     }
 
     /**
@@ -214,11 +252,8 @@ class ExifData {
      * standard. Returns null if decoding failed.
      */
     protected String getUserComment() {
-        IfdData ifdData = mIfdDatas[IfdId.TYPE_IFD_0];
-        if (ifdData == null) {
-            return null;
-        }
-        ExifTag tag = ifdData.getTag(ExifInterface.getTrueTagKey(ExifInterface.TAG_USER_COMMENT));
+        ExifTag tag = getTag(ExifInterface.getTrueTagKey(ExifInterface.TAG_USER_COMMENT),
+                IfdId.TYPE_IFD_0);
         if (tag == null) {
             return null;
         }
@@ -253,14 +288,18 @@ class ExifData {
      * are none.
      */
     protected List<ExifTag> getAllTags() {
-        ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
+        readIndexedTags();
+        int count = 0;
+        for (IfdData d : mIfdDatas) {
+            if (d != null) {
+                count += d.getTagCount();
+            }
+        }
+        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(count);
         for (IfdData d : mIfdDatas) {
             if (d != null) {
-                ExifTag[] tags = d.getAllTags();
-                if (tags != null) {
-                    for (ExifTag t : tags) {
-                        ret.add(t);
-                    }
+                for (int i = 0, n = d.getTagCount(); i < n; i++) {
+                    ret.add(d.getTagAt(i));
                 }
             }
         }
@@ -275,17 +314,14 @@ class ExifData {
      * are none.
      */
     protected List<ExifTag> getAllTagsForIfd(int ifd) {
+        readIndexedTags();
         IfdData d = mIfdDatas[ifd];
         if (d == null) {
             return null;
         }
-        ExifTag[] tags = d.getAllTags();
-        if (tags == null) {
-            return null;
-        }
-        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(tags.length);
-        for (ExifTag t : tags) {
-            ret.add(t);
+        ArrayList<ExifTag> ret = new ArrayList<ExifTag>(d.getTagCount());
+        for (int i = 0, n = d.getTagCount(); i < n; i++) {
+            ret.add(d.getTagAt(i));
         }
         if (ret.size() == 0) {
             return null;
@@ -299,12 +335,10 @@ class ExifData {
      */
     protected List<ExifTag> getAllTagsForTagId(short tag) {
         ArrayList<ExifTag> ret = new ArrayList<ExifTag>();
-        for (IfdData d : mIfdDatas) {
-            if (d != null) {
-                ExifTag t = d.getTag(tag);
-                if (t != null) {
-                    ret.add(t);
-                }
+        for (int i = 0; i < IfdId.TYPE_IFD_COUNT; i++) {
+            ExifTag t = getTag(tag, i);
+            if (t != null) {
+                ret.add(t);
             }
         }
         if (ret.size() == 0) {
@@ -323,6 +357,8 @@ class ExifData {
         }
         if (obj instanceof ExifData) {
             ExifData data = (ExifData) obj;
+            readIndexedTags();
+            data.readIndexedTags();
             if (data.mByteOrder != mByteOrder ||
                     data.mStripBytes.size() != mStripBytes.size() ||
                     !Arrays.equals(data.mThumbnail, mThumbnail)) {
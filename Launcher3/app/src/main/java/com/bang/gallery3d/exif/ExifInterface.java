@@ -21,7 +21,6 @@ import android.graphics.BitmapFactory;
 import android.util.SparseIntArray;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
@@ -34,6 +33,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -707,13 +707,29 @@ public class ExifInterface {
     }
 
     private static final String NULL_ARGUMENT_STRING = "Argument is null";
+    private static final int COPY_BUFFER_SIZE = 4096;
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
+    private boolean mReadValuesOnDemand;
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
     public ExifInterface() {
         mGPSDateStampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
+    /**
+     * Sets whether readExif reads the value of a tag only once the tag is
+     * asked for, rather than reading every tag right away. This saves time
+     * and memory when only a few tags are needed, such as the orientation.
+     * Reading a whole IFD or every tag reads all the remaining values. Only
+     * applies when reading from a byte array, a ByteBuffer or a file; tags
+     * read from an InputStream are always read right away.
+     *
+     * @param onDemand whether to read values on demand; false by default.
+     */
+    public void setReadValuesOnDemand(boolean onDemand) {
+        mReadValuesOnDemand = onDemand;
+    }
+
     /**
      * Reads the exif tags from a byte array, clearing this ExifInterface
      * object's existing exif tags.
@@ -722,7 +738,32 @@ public class ExifInterface {
      * @throws IOException
      */
     public void readExif(byte[] jpeg) throws IOException {
-        readExif(new ByteArrayInputStream(jpeg));
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        readExif(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Reads the exif tags from a ByteBuffer, such as a memory mapped file,
+     * clearing this ExifInterface object's existing exif tags. The tags are
+     * read straight from the buffer, from its position on, and the position is
+     * left untouched.
+     *
+     * @param buffer a ByteBuffer containing a jpeg compressed image.
+     * @throws IOException
+     */
+    public void readExif(ByteBuffer buffer) throws IOException {
+        if (buffer == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ExifData d = null;
+        try {
+            d = new ExifReader(this).read(buffer, mReadValuesOnDemand);
+        } catch (ExifInvalidFormatException e) {
+            throw new IOException("Invalid exif format : " + e);
+        }
+        mData = d;
     }
 
     /**
@@ -757,10 +798,10 @@ public class ExifInterface {
         if (inFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        InputStream is = null;
+        FileInputStream is = null;
         try {
-            is = (InputStream) new BufferedInputStream(new FileInputStream(inFileName));
-            readExif(is);
+            is = new FileInputStream(inFileName);
+            readExif(map(is));
         } catch (IOException e) {
             closeSilently(is);
             throw e;
@@ -768,6 +809,16 @@ public class ExifInterface {
         is.close();
     }
 
+    /**
+     * Maps the file read-only rather than reading it, so that only the pages
+     * holding the exif header are loaded. Files over 2GB are mapped up to
+     * there, the exif header being at the start.
+     */
+    static ByteBuffer map(FileInputStream is) throws IOException {
+        FileChannel channel = is.getChannel();
+        return channel.map(MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+    }
+
     /**
      * Sets the exif tags, clearing this ExifInterface object's existing exif
      * tags.
@@ -1098,27 +1149,80 @@ public class ExifInterface {
             // Fall back to doing a copy
             ExifData tempData = mData;
             mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
             try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
-                setTags(tags);
-                writeExif(imageBytes, filename);
-            } catch (IOException e) {
-                closeSilently(is);
-                throw e;
+                copyWithExif(filename, tags);
             } finally {
-                is.close();
                 // Prevent clobbering of mData
                 mData = tempData;
             }
         }
     }
 
+    /**
+     * Replaces a file by a copy with the exif tags of the file updated with
+     * the given tags. Only the exif header and the other headers before the
+     * image data go through memory; the rest of the file is copied from file
+     * to file. The copy is written to a temporary file next to the file, which
+     * then replaces it, so that the file is never left half written.
+     */
+    private void copyWithExif(String filename, Collection<ExifTag> tags)
+            throws FileNotFoundException, IOException {
+        File file = new File(filename);
+        File temp = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        FileInputStream is = null;
+        FileOutputStream out = null;
+        ExifOutputStream eos = null;
+        boolean replaced = false;
+        try {
+            is = new FileInputStream(file);
+            ByteBuffer image = map(is);
+            readExif(image);
+            setTags(tags);
+
+            out = new FileOutputStream(temp);
+            eos = new ExifOutputStream(out, this);
+            eos.setExifData(mData);
+            // Write the headers, which ExifOutputStream replaces the exif
+            // header of, until it only copies the image data
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            while (image.hasRemaining() && !eos.isCopyingImageData()) {
+                int length = Math.min(buf.length, image.remaining());
+                image.get(buf, 0, length);
+                eos.write(buf, 0, length);
+            }
+            eos.flush();
+
+            // Copy the image data straight from file to file
+            FileChannel in = is.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long position = image.position();
+            long size = in.size();
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, outChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Failed to copy " + filename);
+                }
+                position += transferred;
+            }
+            out.getFD().sync();
+            eos.close();
+            eos = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace " + filename);
+            }
+            replaced = true;
+        } finally {
+            closeSilently(eos);
+            closeSilently(out);
+            closeSilently(is);
+            if (!replaced) {
+                temp.delete();
+            }
+        }
+    }
+
     /**
      * Attempts to do an in-place rewrite of the exif metadata using the tags in
      * this ExifInterface object. If this fails, fall back to overwriting file.
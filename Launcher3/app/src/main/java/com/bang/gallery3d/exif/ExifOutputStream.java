@@ -102,6 +102,15 @@ class ExifOutputStream extends FilterOutputStream {
         return mExifData;
     }
 
+    /**
+     * Returns true once the Exif header has been written and the headers of
+     * the input skipped or copied, so that the rest of the input is copied as
+     * is and may be written to the underlying stream directly, after a flush.
+     */
+    protected boolean isCopyingImageData() {
+        return mState == STATE_JPEG_DATA && mByteToSkip == 0 && mByteToCopy == 0;
+    }
+
     private int requestByteToBuffer(int requestByteCount, byte[] buffer
             , int offset, int length) {
         int byteNeeded = requestByteCount - mBuffer.position();
@@ -280,9 +289,12 @@ class ExifOutputStream extends FilterOutputStream {
 
     private void writeIfd(IfdData ifd, OrderedDataOutputStream dataOutputStream)
             throws IOException {
-        ExifTag[] tags = ifd.getAllTags();
-        dataOutputStream.writeShort((short) tags.length);
-        for (ExifTag tag : tags) {
+        // Tags must be written in the ascending order of their ID, which is
+        // the order IfdData keeps them in
+        final int tagCount = ifd.getTagCount();
+        dataOutputStream.writeShort((short) tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             dataOutputStream.writeShort(tag.getTagId());
             dataOutputStream.writeShort(tag.getDataType());
             dataOutputStream.writeInt(tag.getComponentCount());
@@ -293,13 +305,14 @@ class ExifOutputStream extends FilterOutputStream {
                 dataOutputStream.writeInt(tag.getOffset());
             } else {
                 ExifOutputStream.writeTagValue(tag, dataOutputStream);
-                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
+                for (int j = 0, n = 4 - tag.getDataSize(); j < n; j++) {
                     dataOutputStream.write(0);
                 }
             }
         }
         dataOutputStream.writeInt(ifd.getOffsetToNextIfd());
-        for (ExifTag tag : tags) {
+        for (int i = 0; i < tagCount; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
                 ExifOutputStream.writeTagValue(tag, dataOutputStream);
             }
@@ -308,8 +321,8 @@ class ExifOutputStream extends FilterOutputStream {
 
     private int calculateOffsetOfIfd(IfdData ifd, int offset) {
         offset += 2 + ifd.getTagCount() * TAG_SIZE + 4;
-        ExifTag[] tags = ifd.getAllTags();
-        for (ExifTag tag : tags) {
+        for (int i = 0, n = ifd.getTagCount(); i < n; i++) {
+            ExifTag tag = ifd.getTagAt(i);
             if (tag.getDataSize() > 4) {
                 tag.setOffset(offset);
                 offset += tag.getDataSize();
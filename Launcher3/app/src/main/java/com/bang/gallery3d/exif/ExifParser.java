@@ -18,8 +18,10 @@ package com.bang.gallery3d.exif;
 
 import android.util.Log;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.Map.Entry;
@@ -161,6 +163,9 @@ class ExifParser {
     private int mIfd0Position;
     private int mTiffStartPosition;
     private final ExifInterface mInterface;
+    private ExifTagIndex mTagIndex;
+    // End of the values indexed so far
+    private int mIndexEnd;
 
     private static final short TAG_EXIF_IFD = ExifInterface
             .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
@@ -207,13 +212,32 @@ class ExifParser {
             Log.v(TAG, "Reading exif...");
         }
         mInterface = iRef;
-        mContainExifData = seekTiffData(inputStream);
+        mContainExifData = seekTiffData(new CountedDataInputStream(inputStream));
         mTiffStream = new CountedDataInputStream(inputStream);
         mOptions = options;
-        if (!mContainExifData) {
-            return;
+        if (mContainExifData) {
+            parseIfd0Link();
+        }
+    }
+
+    private ExifParser(ByteBuffer buffer, int options, ExifInterface iRef)
+            throws IOException, ExifInvalidFormatException {
+        if (buffer == null) {
+            throw new IOException("Null argument buffer to ExifParser");
+        }
+        if (LOGV) {
+            Log.v(TAG, "Reading exif from buffer...");
+        }
+        mInterface = iRef;
+        mContainExifData = seekTiffData(new ByteBufferDataInputStream(buffer));
+        mTiffStream = new ByteBufferDataInputStream(buffer, mTiffStartPosition);
+        mOptions = options;
+        if (mContainExifData) {
+            parseIfd0Link();
         }
+    }
 
+    private void parseIfd0Link() throws IOException, ExifInvalidFormatException {
         parseTiffHeader();
         long offset = mTiffStream.readUnsignedInt();
         if (offset > Integer.MAX_VALUE) {
@@ -256,6 +280,35 @@ class ExifParser {
                 | OPTION_THUMBNAIL, iRef);
     }
 
+    /**
+     * Parses the JPEG held in the given buffer, from its position on, with the given options.
+     * Values are read straight from the buffer, and the data between the parsed structures is
+     * never read, so for a memory mapped file only the pages of the EXIF header are loaded. The
+     * position of the buffer is left untouched.
+     *
+     * @exception IOException
+     * @exception ExifInvalidFormatException
+     */
+    protected static ExifParser parse(ByteBuffer buffer, int options, ExifInterface iRef)
+            throws IOException, ExifInvalidFormatException {
+        return new ExifParser(buffer, options, iRef);
+    }
+
+    /**
+     * Parses the JPEG held in the given buffer with default options; that is, every IFD and
+     * thumbnail will be parsed.
+     *
+     * @exception IOException
+     * @exception ExifInvalidFormatException
+     * @see #parse(ByteBuffer, int, ExifInterface)
+     */
+    protected static ExifParser parse(ByteBuffer buffer, ExifInterface iRef)
+            throws IOException, ExifInvalidFormatException {
+        return new ExifParser(buffer, OPTION_IFD_0 | OPTION_IFD_1
+                | OPTION_IFD_EXIF | OPTION_IFD_GPS | OPTION_IFD_INTEROPERABILITY
+                | OPTION_THUMBNAIL, iRef);
+    }
+
     /**
      * Moves the parser forward and returns the next parsing event
      *
@@ -274,16 +327,18 @@ class ExifParser {
         }
         int offset = mTiffStream.getReadByteCount();
         int endOfTags = mIfdStartOffset + OFFSET_SIZE + TAG_SIZE * mNumOfTagInIfd;
-        if (offset < endOfTags) {
+        while (offset < endOfTags) {
             mTag = readTag();
-            if (mTag == null) {
-                return next();
-            }
-            if (mNeedToParseOffsetsInCurrentIfd) {
-                checkOffsetOrImageTag(mTag);
+            if (mTag != null) {
+                if (mNeedToParseOffsetsInCurrentIfd) {
+                    checkOffsetOrImageTag(mTag);
+                }
+                return EVENT_NEW_TAG;
             }
-            return EVENT_NEW_TAG;
-        } else if (offset == endOfTags) {
+            // Skipped or indexed tag
+            offset = mTiffStream.getReadByteCount();
+        }
+        if (offset == endOfTags) {
             // There is a link to ifd1 at the end of ifd0
             if (mIfdType == IfdId.TYPE_IFD_0) {
                 long ifdOffset = readUnsignedLong();
@@ -326,7 +381,7 @@ class ExifParser {
 
                 if (mNumOfTagInIfd * TAG_SIZE + mIfdStartOffset + OFFSET_SIZE > mApp1End) {
                     Log.w(TAG, "Invalid size of IFD " + mIfdType);
-                    return EVENT_END;
+                    return endParsing();
                 }
 
                 mNeedToParseOffsetsInCurrentIfd = needToParseOffsetsInCurrentIfd();
@@ -341,6 +396,10 @@ class ExifParser {
             } else {
                 ExifTagEvent tagEvent = (ExifTagEvent) event;
                 mTag = tagEvent.tag;
+                if (isIndexed(mTag)) {
+                    indexTagValue(mTag);
+                    continue;
+                }
                 if (mTag.getDataType() != ExifTag.TYPE_UNDEFINED) {
                     readFullTagValue(mTag);
                     checkOffsetOrImageTag(mTag);
@@ -350,6 +409,16 @@ class ExifParser {
                 }
             }
         }
+        return endParsing();
+    }
+
+    private int endParsing() {
+        if (mTagIndex != null) {
+            // Keep only the part of the TIFF data holding the indexed values
+            mTagIndex.setTiffData(((ByteBufferDataInputStream) mTiffStream).copyBytes(0,
+                    mIndexEnd));
+            mTagIndex = null;
+        }
         return EVENT_END;
     }
 
@@ -563,21 +632,98 @@ class ExifParser {
                 tag.setValue(buf);
             } else {
                 tag.setOffset((int) offset);
+                if (isIndexed(tag)) {
+                    // As ExifReader does with the tag, have its value indexed once reached
+                    registerForTagValue(tag);
+                    return null;
+                }
             }
         } else {
-            boolean defCount = tag.hasDefinedCount();
-            // Set defined count to 0 so we can add \0 to non-terminated strings
-            tag.setHasDefinedCount(false);
-            // Read value
-            readFullTagValue(tag);
-            tag.setHasDefinedCount(defCount);
+            final boolean indexed = isIndexed(tag);
+            final int valueOffset = mTiffStream.getReadByteCount();
+            if (indexed) {
+                skipFullTagValue(tag);
+            } else {
+                boolean defCount = tag.hasDefinedCount();
+                // Set defined count to 0 so we can add \0 to non-terminated strings
+                tag.setHasDefinedCount(false);
+                // Read value
+                readFullTagValue(tag);
+                tag.setHasDefinedCount(defCount);
+            }
             mTiffStream.skip(4 - dataSize);
             // Set the offset to the position of value.
             tag.setOffset(mTiffStream.getReadByteCount() - 4);
+            if (indexed) {
+                addToIndex(tag, valueOffset, true);
+                return null;
+            }
         }
         return tag;
     }
 
+    /**
+     * Returns whether the parser needs the value of the tag itself, to find IFDs or the
+     * thumbnail.
+     */
+    private static boolean isParserTag(short tid) {
+        return tid == TAG_EXIF_IFD || tid == TAG_GPS_IFD || tid == TAG_INTEROPERABILITY_IFD
+                || tid == TAG_JPEG_INTERCHANGE_FORMAT || tid == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH
+                || tid == TAG_STRIP_OFFSETS || tid == TAG_STRIP_BYTE_COUNTS;
+    }
+
+    /**
+     * Returns whether the value of the tag is to be indexed rather than read.
+     */
+    private boolean isIndexed(ExifTag tag) {
+        return mTagIndex != null && isIfdRequested(tag.getIfd()) && !isParserTag(tag.getTagId());
+    }
+
+    /**
+     * Records where the value of the tag, which the parser has reached, is in the index
+     * instead of reading it. The value is bounded and skipped exactly as
+     * {@link #readFullTagValue} would read it, so that the parsing goes on the same and the
+     * value read later from the index is the one the tag would have had.
+     */
+    private void indexTagValue(ExifTag tag) throws IOException {
+        final int valueOffset = mTiffStream.getReadByteCount();
+        skipFullTagValue(tag);
+        addToIndex(tag, valueOffset, false);
+    }
+
+    private void addToIndex(ExifTag tag, int valueOffset, boolean inIfd) {
+        mIndexEnd = Math.max(mIndexEnd, mTiffStream.getReadByteCount());
+        mTagIndex.add(tag, valueOffset, inIfd);
+    }
+
+    private void skipFullTagValue(ExifTag tag) throws IOException {
+        boundTagValueSize(tag);
+        final short type = tag.getDataType();
+        final long size = (long) ExifTag.getElementSize(type) * tag.getComponentCount();
+        if (type != ExifTag.TYPE_UNSIGNED_BYTE && type != ExifTag.TYPE_UNDEFINED
+                && size > mTiffStream.available()) {
+            // Reading the value would fail the same way; arrays of bytes are read as far as
+            // the data goes
+            throw new EOFException();
+        }
+        mTiffStream.skip(size);
+    }
+
+    /**
+     * Makes the parser record where the values of the tags of the requested IFDs are in the
+     * returned index, rather than reading them and emitting {@link #EVENT_NEW_TAG}. The tags
+     * the parser needs itself to find the IFDs and the thumbnail are still emitted. Must be
+     * called before {@link #next()}. Only works when parsing a ByteBuffer; returns null
+     * otherwise, or if there is no EXIF data.
+     */
+    protected ExifTagIndex indexTagValues() {
+        if (!mContainExifData || !(mTiffStream instanceof ByteBufferDataInputStream)) {
+            return null;
+        }
+        mTagIndex = new ExifTagIndex(mTiffStream.getByteOrder());
+        return mTagIndex;
+    }
+
     /**
      * Check the tag, if the tag is one of the offset tag that points to the IFD
      * or image the caller is interested in, register the IFD or image.
@@ -643,6 +789,14 @@ class ExifParser {
     }
 
     protected void readFullTagValue(ExifTag tag) throws IOException {
+        boundTagValueSize(tag);
+        readTagValue(tag, mTiffStream);
+        if (LOGV) {
+            Log.v(TAG, "\n" + tag.toString());
+        }
+    }
+
+    private void boundTagValueSize(ExifTag tag) {
         // Some invalid images contains tags with wrong size, check it here
         short type = tag.getDataType();
         if (type == ExifTag.TYPE_ASCII || type == ExifTag.TYPE_UNDEFINED ||
@@ -676,21 +830,28 @@ class ExifParser {
                 }
             }
         }
+    }
+
+    /**
+     * Reads the value of the tag from the stream, which must be at the value.
+     */
+    static void readTagValue(ExifTag tag, CountedDataInputStream stream) throws IOException {
         switch (tag.getDataType()) {
             case ExifTag.TYPE_UNSIGNED_BYTE:
             case ExifTag.TYPE_UNDEFINED: {
                 byte buf[] = new byte[tag.getComponentCount()];
-                read(buf);
+                stream.read(buf);
                 tag.setValue(buf);
             }
                 break;
             case ExifTag.TYPE_ASCII:
-                tag.setValue(readString(tag.getComponentCount()));
+                tag.setValue(tag.getComponentCount() > 0
+                        ? stream.readString(tag.getComponentCount(), US_ASCII) : "");
                 break;
             case ExifTag.TYPE_UNSIGNED_LONG: {
                 long value[] = new long[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedLong();
+                    value[i] = stream.readUnsignedInt();
                 }
                 tag.setValue(value);
             }
@@ -698,7 +859,7 @@ class ExifParser {
             case ExifTag.TYPE_UNSIGNED_RATIONAL: {
                 Rational value[] = new Rational[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedRational();
+                    value[i] = new Rational(stream.readUnsignedInt(), stream.readUnsignedInt());
                 }
                 tag.setValue(value);
             }
@@ -706,7 +867,7 @@ class ExifParser {
             case ExifTag.TYPE_UNSIGNED_SHORT: {
                 int value[] = new int[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readUnsignedShort();
+                    value[i] = stream.readUnsignedShort();
                 }
                 tag.setValue(value);
             }
@@ -714,7 +875,7 @@ class ExifParser {
             case ExifTag.TYPE_LONG: {
                 int value[] = new int[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readLong();
+                    value[i] = stream.readInt();
                 }
                 tag.setValue(value);
             }
@@ -722,15 +883,12 @@ class ExifParser {
             case ExifTag.TYPE_RATIONAL: {
                 Rational value[] = new Rational[tag.getComponentCount()];
                 for (int i = 0, n = value.length; i < n; i++) {
-                    value[i] = readRational();
+                    value[i] = new Rational(stream.readInt(), stream.readInt());
                 }
                 tag.setValue(value);
             }
                 break;
         }
-        if (LOGV) {
-            Log.v(TAG, "\n" + tag.toString());
-        }
     }
 
     private void parseTiffHeader() throws IOException,
@@ -749,9 +907,8 @@ class ExifParser {
         }
     }
 
-    private boolean seekTiffData(InputStream inputStream) throws IOException,
+    private boolean seekTiffData(CountedDataInputStream dataStream) throws IOException,
             ExifInvalidFormatException {
-        CountedDataInputStream dataStream = new CountedDataInputStream(inputStream);
         if (dataStream.readShort() != JpegHeader.SOI) {
             throw new ExifInvalidFormatException("Invalid JPEG format");
         }
@@ -20,6 +20,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * This class reads the EXIF header of a JPEG file and stores it in
@@ -27,6 +28,8 @@ import java.io.InputStream;
  */
 class ExifReader {
     private static final String TAG = "ExifReader";
+    // Whether to check the tags read on demand against the tags read right away
+    private static final boolean DEBUG_VALUES_ON_DEMAND = false;
 
     private final ExifInterface mInterface;
 
@@ -43,7 +46,64 @@ class ExifReader {
      */
     protected ExifData read(InputStream inputStream) throws ExifInvalidFormatException,
             IOException {
-        ExifParser parser = ExifParser.parse(inputStream, mInterface);
+        return read(ExifParser.parse(inputStream, mInterface));
+    }
+
+    /**
+     * Parses the JPEG held in the buffer and returns the EXIF data in an
+     * {@link ExifData}. The position of the buffer is left untouched.
+     *
+     * @param valuesOnDemand whether to only index the tags, reading their
+     *            values once they are asked for; see {@link ExifTagIndex}
+     * @throws ExifInvalidFormatException
+     * @throws IOException
+     */
+    protected ExifData read(ByteBuffer buffer, boolean valuesOnDemand)
+            throws ExifInvalidFormatException, IOException {
+        return read(buffer, ExifParser.OPTION_IFD_0 | ExifParser.OPTION_IFD_1
+                | ExifParser.OPTION_IFD_EXIF | ExifParser.OPTION_IFD_GPS
+                | ExifParser.OPTION_IFD_INTEROPERABILITY | ExifParser.OPTION_THUMBNAIL,
+                valuesOnDemand);
+    }
+
+    /**
+     * Same as {@link #read(ByteBuffer, boolean)}, only reading the IFDs and
+     * thumbnail requested by the given {@link ExifParser} options.
+     */
+    protected ExifData read(ByteBuffer buffer, int options, boolean valuesOnDemand)
+            throws ExifInvalidFormatException, IOException {
+        ExifParser parser = ExifParser.parse(buffer, options, mInterface);
+        ExifTagIndex index = valuesOnDemand ? parser.indexTagValues() : null;
+        ExifData exifData = read(parser);
+        if (index != null && index.size() > 0) {
+            exifData.setTagIndex(index);
+        }
+        if (DEBUG_VALUES_ON_DEMAND && index != null) {
+            checkValuesOnDemand(buffer, options, exifData);
+        }
+        return exifData;
+    }
+
+    /**
+     * Reads the buffer again with every value read right away, and logs if it doesn't give
+     * the same tags as reading them on demand did. Reads every tag left in the index.
+     */
+    private void checkValuesOnDemand(ByteBuffer buffer, int options, ExifData onDemand) {
+        ExifData data;
+        try {
+            data = read(ExifParser.parse(buffer, options, mInterface));
+        } catch (Exception e) {
+            Log.e(TAG, "Tags read on demand from exif that fails to be read", e);
+            return;
+        }
+        if (!data.equals(onDemand)) {
+            Log.e(TAG, "Tags read on demand differ: " + onDemand.getAllTags()
+                    + " instead of: " + data.getAllTags());
+        }
+    }
+
+    private ExifData read(ExifParser parser) throws ExifInvalidFormatException,
+            IOException {
         ExifData exifData = new ExifData(parser.getByteOrder());
         ExifTag tag = null;
 
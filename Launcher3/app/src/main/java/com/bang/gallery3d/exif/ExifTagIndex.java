@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.exif;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The tags of an EXIF header whose values haven't been read yet. For each tag, only its IFD,
+ * ID, type, count and the offset of its value are kept, in primitive arrays; the
+ * {@link ExifTag} is only made, and its value read from a copy of the TIFF data, when the tag
+ * is asked for. The counts are the ones {@link ExifParser} bounded while parsing, so a tag
+ * read from the index is the same as the one the parser would have read.
+ *
+ * @see ExifParser#indexTagValues()
+ * @see ExifData
+ */
+class ExifTagIndex {
+    private static final String TAG = "ExifTagIndex";
+
+    private static final int INITIAL_CAPACITY = 32;
+    // Key of the entries already taken
+    private static final int NO_KEY = -1;
+
+    // Flags of the entries
+    private static final byte FLAG_DEFINED_COUNT = 1;
+    // The value is in the IFD entry itself
+    private static final byte FLAG_IN_IFD = 2;
+
+    private final ByteOrder mByteOrder;
+    private byte[] mTiff;
+
+    private int[] mKeys = new int[INITIAL_CAPACITY];
+    private short[] mTypes = new short[INITIAL_CAPACITY];
+    private byte[] mFlags = new byte[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private int[] mValueOffsets = new int[INITIAL_CAPACITY];
+    // Offsets the tags are given, which for values in the IFD entry the parser may make
+    // differ from where their value is
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int mSize;
+    private int mRemaining;
+
+    ExifTagIndex(ByteOrder order) {
+        mByteOrder = order;
+    }
+
+    /**
+     * Sets the TIFF data of the EXIF header, which the offsets are relative to, once parsed.
+     */
+    void setTiffData(byte[] tiff) {
+        mTiff = tiff;
+    }
+
+    private static int getKey(short tagId, int ifd) {
+        return (ifd << 16) | (tagId & 0xffff);
+    }
+
+    /**
+     * Adds a tag parsed without its value. If the IFD already has a tag with that ID, the tag
+     * added last wins.
+     *
+     * @param valueOffset the offset of the value in the TIFF data
+     * @param inIfd whether the value is in the IFD entry of the tag
+     */
+    void add(ExifTag tag, int valueOffset, boolean inIfd) {
+        if (mSize == mKeys.length) {
+            int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mValueOffsets = Arrays.copyOf(mValueOffsets, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+        }
+        mKeys[mSize] = getKey(tag.getTagId(), tag.getIfd());
+        mTypes[mSize] = tag.getDataType();
+        mFlags[mSize] = (byte) ((tag.hasDefinedCount() ? FLAG_DEFINED_COUNT : 0)
+                | (inIfd ? FLAG_IN_IFD : 0));
+        mCounts[mSize] = tag.getComponentCount();
+        mValueOffsets[mSize] = valueOffset;
+        mOffsets[mSize] = tag.getOffset();
+        mSize++;
+        mRemaining++;
+    }
+
+    /**
+     * Returns how many tags haven't been taken yet.
+     */
+    int size() {
+        return mRemaining;
+    }
+
+    private int indexOf(short tagId, int ifd) {
+        final int key = getKey(tagId, ifd);
+        // From the end, since the tag added last wins
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the tag, and the earlier ones with the same ID and IFD, without reading it.
+     */
+    void remove(short tagId, int ifd) {
+        for (int i = indexOf(tagId, ifd); i >= 0; i = indexOf(tagId, ifd)) {
+            mKeys[i] = NO_KEY;
+            mRemaining--;
+        }
+    }
+
+    /**
+     * Removes the tag and returns it with its value read, or returns null if there is no such
+     * tag or its value can't be read.
+     */
+    ExifTag take(short tagId, int ifd) {
+        final int i = indexOf(tagId, ifd);
+        if (i < 0) {
+            return null;
+        }
+        ExifTag tag = readTag(i);
+        remove(tagId, ifd);
+        return tag;
+    }
+
+    /**
+     * Removes every tag and adds them with their value read to the given data, unless it
+     * already has a tag with the same ID in the same IFD.
+     */
+    void takeAll(ExifData data) {
+        for (int i = mSize - 1; i >= 0 && mRemaining > 0; i--) {
+            final int key = mKeys[i];
+            if (key == NO_KEY) {
+                continue;
+            }
+            final short tagId = (short) key;
+            final int ifd = key >>> 16;
+            ExifTag tag = readTag(i);
+            remove(tagId, ifd);
+            if (tag != null) {
+                IfdData ifdData = data.getOrCreateIfdData(ifd);
+                if (ifdData.getTag(tagId) == null) {
+                    ifdData.setTag(tag);
+                }
+            }
+        }
+    }
+
+    private ExifTag readTag(int i) {
+        final boolean defCount = (mFlags[i] & FLAG_DEFINED_COUNT) != 0;
+        ExifTag tag = new ExifTag((short) mKeys[i], mTypes[i], mCounts[i], mKeys[i] >>> 16,
+                defCount);
+        ByteBufferDataInputStream stream = new ByteBufferDataInputStream(ByteBuffer.wrap(mTiff));
+        stream.setByteOrder(mByteOrder);
+        try {
+            stream.skipTo(mValueOffsets[i]);
+            if ((mFlags[i] & FLAG_IN_IFD) == 0) {
+                ExifParser.readTagValue(tag, stream);
+            } else {
+                // As ExifParser does for values in the tag itself, let non-terminated
+                // strings have their \0 added
+                tag.setHasDefinedCount(false);
+                ExifParser.readTagValue(tag, stream);
+                tag.setHasDefinedCount(defCount);
+            }
+        } catch (IOException e) {
+            // The parser made sure the value is within the data
+            Log.w(TAG, "Failed to read value for tag: \n" + tag.toString());
+            return null;
+        }
+        tag.setOffset(mOffsets[i]);
+        return tag;
+    }
+}
@@ -16,11 +16,16 @@
 
 package com.bang.gallery3d.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class stores all the tags in an IFD.
+ * <p>
+ * The tags are kept in the ascending order of their ID, which is the order
+ * they must be written in, in an array of IDs searched by bisection and a
+ * parallel array of tags; IDs are compared as unsigned values, as TIFF does.
+ * Tags read from a file come in that order already, so adding them only
+ * appends. {@link #getTagAt} iterates over the tags without allocating.
  *
  * @see ExifData
  * @see ExifTag
@@ -28,7 +33,10 @@ import java.util.Map;
 class IfdData {
 
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private static final int INITIAL_CAPACITY = 8;
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -52,10 +60,41 @@ class IfdData {
     }
 
     /**
-     * Get a array the contains all {@link ExifTag} in this IFD.
+     * Get a array the contains all {@link ExifTag} in this IFD, in the
+     * ascending order of their ID.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mTags, mTagCount);
+    }
+
+    /**
+     * Gets the tag at the given index, from 0 to {@link #getTagCount()} - 1,
+     * in the ascending order of the tag IDs.
+     */
+    protected ExifTag getTagAt(int index) {
+        return mTags[index];
+    }
+
+    /**
+     * Returns the index of the tag with the given ID, or -(insertion point) - 1
+     * if there is no such tag.
+     */
+    private int indexOfTag(short tagId) {
+        final int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     /**
@@ -76,7 +115,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        final int index = indexOfTag(tagId);
+        return index >= 0 ? mTags[index] : null;
     }
 
     /**
@@ -84,25 +124,49 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        final short tagId = tag.getTagId();
+        int index = indexOfTag(tagId);
+        if (index >= 0) {
+            ExifTag old = mTags[index];
+            mTags[index] = tag;
+            return old;
+        }
+        index = -index - 1;
+        if (mTagCount == mTags.length) {
+            mTagIds = Arrays.copyOf(mTagIds, mTagCount * 2);
+            mTags = Arrays.copyOf(mTags, mTagCount * 2);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mTags, index, mTags, index + 1, mTagCount - index);
+        mTagIds[index] = tagId;
+        mTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOfTag(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        final int index = indexOfTag(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mTags, index + 1, mTags, index, mTagCount - index);
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
     }
 
     /**
@@ -134,12 +198,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0, n = data.getTagCount(); i < n; i++) {
+                    ExifTag tag = data.getTagAt(i);
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
@@ -202,6 +202,7 @@ public abstract class BasicTexture implements Texture {
     }
 
     public static void invalidateAllTextures() {
+        TextureResidencyManager.getInstance().clear();
         synchronized (sAllTextures) {
             for (BasicTexture t : sAllTextures.keySet()) {
                 t.mState = STATE_UNLOADED;
@@ -38,6 +38,9 @@ public class GLES20Canvas implements GLCanvas {
     private static final int FLOAT_SIZE = Float.SIZE / Byte.SIZE;
     private static final float OPAQUE_ALPHA = 0.95f;
 
+    // glGetError() is a round trip to the driver, so errors are only checked when debugging
+    private static final boolean DEBUG_GL_ERRORS = false;
+
     private static final int COORDS_PER_VERTEX = 2;
     private static final int VERTEX_STRIDE = COORDS_PER_VERTEX * FLOAT_SIZE;
 
@@ -121,6 +124,20 @@ public class GLES20Canvas implements GLCanvas {
             + "  gl_FragColor *= " + ALPHA_UNIFORM + ";\n"
             + "}\n";
 
+    // Batched quads: 6 vertices (2 triangles) of x, y in clip space and u, v
+    private static final int MAX_BATCH_QUADS = 64;
+    private static final int BATCH_VERTICES_PER_QUAD = 6;
+    private static final int BATCH_FLOATS_PER_VERTEX = 4;
+    private static final int BATCH_VERTEX_STRIDE = BATCH_FLOATS_PER_VERTEX * FLOAT_SIZE;
+    private static final float[] BATCH_QUAD_CORNERS = {
+            0, 0,
+            1, 0,
+            0, 1,
+            0, 1,
+            1, 0,
+            1, 1,
+    };
+
     private static final String OES_TEXTURE_FRAGMENT_SHADER = ""
             + "#extension GL_OES_EGL_image_external : require\n"
             + "precision mediump float;\n"
@@ -240,6 +257,23 @@ public class GLES20Canvas implements GLCanvas {
             new UniformShaderParameter(ALPHA_UNIFORM), // INDEX_ALPHA
     };
 
+    // Batching of textured quads, see setBatchingEnabled()
+    private boolean mBatchingEnabled;
+    private final float[] mBatchArray =
+            new float[MAX_BATCH_QUADS * BATCH_VERTICES_PER_QUAD * BATCH_FLOATS_PER_VERTEX];
+    private final FloatBuffer mBatchVertices = ByteBuffer
+            .allocateDirect(mBatchArray.length * FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final float[] mIdentityMatrix = new float[MATRIX_SIZE];
+    private int mBatchQuadCount;
+    private int mBatchTextureId;
+    private float mBatchAlpha;
+    private boolean mBatchBlending;
+
+    // GL state last set, to skip redundant calls. 0 and -1 mean unknown.
+    private int mCurrentProgram;
+    private int mCurrentBlending = -1;
+
     private final IntArray mUnboundTextures = new IntArray();
     private final IntArray mDeleteBuffers = new IntArray();
 
@@ -248,6 +282,8 @@ public class GLES20Canvas implements GLCanvas {
     private int mCountTextureRect = 0;
     private int mCountFillRect = 0;
     private int mCountDrawLine = 0;
+    private int mCountBatchedQuads = 0;
+    private int mCountDrawCalls = 0;
 
     // Buffer for framebuffer IDs -- we keep track so we can switch the attached
     // texture.
@@ -268,6 +304,7 @@ public class GLES20Canvas implements GLCanvas {
 
     public GLES20Canvas() {
         Matrix.setIdentityM(mTempTextureMatrix, 0);
+        Matrix.setIdentityM(mIdentityMatrix, 0);
         Matrix.setIdentityM(mMatrices, mCurrentMatrixIndex);
         mAlphas[mCurrentAlphaIndex] = 1f;
         mTargetTextures.add(null);
@@ -344,6 +381,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void setSize(int width, int height) {
+        flush();
         mWidth = width;
         mHeight = height;
         GLES20.glViewport(0, 0, mWidth, mHeight);
@@ -360,6 +398,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void clearBuffer() {
+        flush();
         GLES20.glClearColor(0f, 0f, 0f, 1f);
         checkError();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -368,6 +407,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void clearBuffer(float[] argb) {
+        flush();
         GLES20.glClearColor(argb[1], argb[2], argb[3], argb[0]);
         checkError();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -500,8 +540,8 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void prepareDraw(int offset, int color, float lineWidth) {
-        GLES20.glUseProgram(mDrawProgram);
-        checkError();
+        flush();
+        useProgram(mDrawProgram);
         if (lineWidth > 0) {
             GLES20.glLineWidth(lineWidth);
             checkError();
@@ -531,7 +571,20 @@ public class GLES20Canvas implements GLCanvas {
         return mTempColor;
     }
 
+    private void useProgram(int program) {
+        if (program != mCurrentProgram) {
+            GLES20.glUseProgram(program);
+            checkError();
+            mCurrentProgram = program;
+        }
+    }
+
     private void enableBlending(boolean enableBlending) {
+        final int blending = enableBlending ? 1 : 0;
+        if (blending == mCurrentBlending) {
+            return;
+        }
+        mCurrentBlending = blending;
         if (enableBlending) {
             GLES20.glEnable(GLES20.GL_BLEND);
             checkError();
@@ -559,16 +612,23 @@ public class GLES20Canvas implements GLCanvas {
         checkError();
         GLES20.glDrawArrays(type, 0, count);
         checkError();
+        mCountDrawCalls++;
         GLES20.glDisableVertexAttribArray(positionHandle);
         checkError();
     }
 
     private void setMatrix(ShaderParameter[] params, float x, float y, float width, float height) {
+        computeMatrix(x, y, width, height);
+        GLES20.glUniformMatrix4fv(params[INDEX_MATRIX].handle, 1, false, mTempMatrix, MATRIX_SIZE);
+        checkError();
+    }
+
+    // Puts the matrix mapping the unit square to (x, y, width, height) in clip space into
+    // mTempMatrix at MATRIX_SIZE
+    private void computeMatrix(float x, float y, float width, float height) {
         Matrix.translateM(mTempMatrix, 0, mMatrices, mCurrentMatrixIndex, x, y, 0f);
         Matrix.scaleM(mTempMatrix, 0, width, height, 1f);
         Matrix.multiplyMM(mTempMatrix, MATRIX_SIZE, mProjectionMatrix, 0, mTempMatrix, 0);
-        GLES20.glUniformMatrix4fv(params[INDEX_MATRIX].handle, 1, false, mTempMatrix, MATRIX_SIZE);
-        checkError();
     }
 
     @Override
@@ -626,10 +686,116 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void drawTextureRect(BasicTexture texture, RectF source, RectF target) {
+        if (mBatchingEnabled && texture.getTarget() == GLES20.GL_TEXTURE_2D
+                && !texture.isFlippedVertically()) {
+            if (addToBatch(texture, source, target)) {
+                return;
+            }
+        }
         setTextureMatrix(source);
         drawTextureRect(texture, mTempTextureMatrix, target);
     }
 
+    /**
+     * Makes drawTexture() calls accumulate textured quads, which are then drawn together with
+     * a single draw call for as long as they use the same texture, alpha and blending. Quads
+     * are transformed on the CPU, so their matrices don't have to be the same. The batch is
+     * drawn when anything else is drawn or changes GL state, or on {@link #flush}, which must
+     * be called at the end of each frame.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        flush();
+        mBatchingEnabled = enabled;
+    }
+
+    /**
+     * Adds a quad to the batch. Returns false if it can't be batched, in which case the
+     * caller draws it by itself.
+     */
+    private boolean addToBatch(BasicTexture texture, RectF source, RectF target) {
+        computeMatrix(target.left, target.top, target.width(), target.height());
+        final float[] m = mTempMatrix;
+        final int o = MATRIX_SIZE;
+        if (m[o + 3] != 0f || m[o + 7] != 0f || m[o + 15] != 1f) {
+            // Not affine: the position can't be interpolated in clip space
+            return false;
+        }
+
+        // Binding may upload the texture, which draws what's batched so far
+        texture.onBind(this);
+        final int textureId = texture.getId();
+        final float alpha = getAlpha();
+        final boolean blending = !texture.isOpaque() || alpha < OPAQUE_ALPHA;
+        if (mBatchQuadCount > 0 && (mBatchQuadCount == MAX_BATCH_QUADS
+                || textureId != mBatchTextureId || alpha != mBatchAlpha
+                || blending != mBatchBlending)) {
+            flush();
+        }
+        mBatchTextureId = textureId;
+        mBatchAlpha = alpha;
+        mBatchBlending = blending;
+
+        final float[] vertices = mBatchArray;
+        int index = mBatchQuadCount * BATCH_VERTICES_PER_QUAD * BATCH_FLOATS_PER_VERTEX;
+        final float[] corners = BATCH_QUAD_CORNERS;
+        for (int i = 0; i < corners.length; i += 2) {
+            final float u = corners[i];
+            final float v = corners[i + 1];
+            vertices[index++] = m[o] * u + m[o + 4] * v + m[o + 12];
+            vertices[index++] = m[o + 1] * u + m[o + 5] * v + m[o + 13];
+            vertices[index++] = source.left + u * source.width();
+            vertices[index++] = source.top + v * source.height();
+        }
+        mBatchQuadCount++;
+        mCountTextureRect++;
+        mCountBatchedQuads++;
+        return true;
+    }
+
+    /** Draws the quads batched so far. */
+    public void flush() {
+        if (mBatchQuadCount == 0) {
+            return;
+        }
+        final int quadCount = mBatchQuadCount;
+        // Reset first, as nothing below may batch again
+        mBatchQuadCount = 0;
+
+        final ShaderParameter[] params = mMeshParameters;
+        useProgram(mMeshProgram);
+        enableBlending(mBatchBlending);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mBatchTextureId);
+        GLES20.glUniform1i(params[INDEX_TEXTURE_SAMPLER].handle, 0);
+        GLES20.glUniform1f(params[INDEX_ALPHA].handle, mBatchAlpha);
+        // The vertices are in clip space already
+        GLES20.glUniformMatrix4fv(params[INDEX_MATRIX].handle, 1, false, mIdentityMatrix, 0);
+        checkError();
+
+        final int floatCount = quadCount * BATCH_VERTICES_PER_QUAD * BATCH_FLOATS_PER_VERTEX;
+        final FloatBuffer vertices = mBatchVertices;
+        vertices.position(0);
+        vertices.put(mBatchArray, 0, floatCount);
+
+        // Client side arrays, so no buffer may be bound
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        final int positionHandle = params[INDEX_POSITION].handle;
+        final int texCoordHandle = params[INDEX_TEXTURE_COORD].handle;
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                BATCH_VERTEX_STRIDE, vertices);
+        vertices.position(COORDS_PER_VERTEX);
+        GLES20.glVertexAttribPointer(texCoordHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+                BATCH_VERTEX_STRIDE, vertices);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glEnableVertexAttribArray(texCoordHandle);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, quadCount * BATCH_VERTICES_PER_QUAD);
+        GLES20.glDisableVertexAttribArray(positionHandle);
+        GLES20.glDisableVertexAttribArray(texCoordHandle);
+        checkError();
+        mCountDrawCalls++;
+    }
+
     private void setTextureMatrix(RectF source) {
         mTempTextureMatrix[0] = source.width();
         mTempTextureMatrix[5] = source.height();
@@ -665,6 +831,7 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void drawTextureRect(BasicTexture texture, float[] textureMatrix, RectF target) {
+        flush();
         ShaderParameter[] params = prepareTexture(texture);
         setPosition(params, OFFSET_FILL_RECT);
         GLES20.glUniformMatrix4fv(params[INDEX_TEXTURE_MATRIX].handle, 1, false, textureMatrix, 0);
@@ -698,8 +865,7 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void prepareTexture(BasicTexture texture, int program, ShaderParameter[] params) {
-        GLES20.glUseProgram(program);
-        checkError();
+        useProgram(program);
         enableBlending(!texture.isOpaque() || getAlpha() < OPAQUE_ALPHA);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         checkError();
@@ -715,6 +881,7 @@ public class GLES20Canvas implements GLCanvas {
     @Override
     public void drawMesh(BasicTexture texture, int x, int y, int xyBuffer, int uvBuffer,
             int indexBuffer, int indexCount) {
+        flush();
         prepareTexture(texture, mMeshProgram, mMeshParameters);
 
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
@@ -744,6 +911,7 @@ public class GLES20Canvas implements GLCanvas {
         setMatrix(mMeshParameters, x, y, 1, 1);
         GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, indexCount, GLES20.GL_UNSIGNED_BYTE, 0);
         checkError();
+        mCountDrawCalls++;
 
         GLES20.glDisableVertexAttribArray(positionHandle);
         checkError();
@@ -802,6 +970,8 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void deleteRecycledResources() {
+        // The batch may use textures about to be deleted
+        flush();
         synchronized (mUnboundTextures) {
             IntArray ids = mUnboundTextures;
             if (mUnboundTextures.size() > 0) {
@@ -819,9 +989,13 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void dumpStatisticsAndClear() {
-        String line = String.format("MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d", mCountDrawMesh,
-                mCountTextureRect, mCountFillRect, mCountDrawLine);
+        String line = String.format(
+                "MESH:%d, TEX_RECT:%d, FILL_RECT:%d, LINE:%d, BATCHED:%d, DRAW_CALLS:%d",
+                mCountDrawMesh, mCountTextureRect, mCountFillRect, mCountDrawLine,
+                mCountBatchedQuads, mCountDrawCalls);
         mCountDrawMesh = 0;
+        mCountBatchedQuads = 0;
+        mCountDrawCalls = 0;
         mCountTextureRect = 0;
         mCountFillRect = 0;
         mCountDrawLine = 0;
@@ -849,6 +1023,7 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     private void setRenderTarget(BasicTexture oldTexture, RawTexture texture) {
+        flush();
         if (oldTexture == null && texture != null) {
             GLES20.glGenFramebuffers(1, mFrameBuffer, 0);
             checkError();
@@ -902,6 +1077,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void setTextureParameters(BasicTexture texture) {
+        flush();
         int target = texture.getTarget();
         GLES20.glBindTexture(target, texture.getId());
         checkError();
@@ -913,6 +1089,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void initializeTextureSize(BasicTexture texture, int format, int type) {
+        flush();
         int target = texture.getTarget();
         GLES20.glBindTexture(target, texture.getId());
         checkError();
@@ -923,6 +1100,7 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
+        flush();
         int target = texture.getTarget();
         GLES20.glBindTexture(target, texture.getId());
         checkError();
@@ -932,6 +1110,7 @@ public class GLES20Canvas implements GLCanvas {
     @Override
     public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset, Bitmap bitmap,
             int format, int type) {
+        flush();
         int target = texture.getTarget();
         GLES20.glBindTexture(target, texture.getId());
         checkError();
@@ -961,6 +1140,9 @@ public class GLES20Canvas implements GLCanvas {
     }
 
     public static void checkError() {
+        if (!DEBUG_GL_ERRORS) {
+            return;
+        }
         int error = GLES20.glGetError();
         if (error != 0) {
             Throwable t = new Throwable();
@@ -983,6 +1165,10 @@ public class GLES20Canvas implements GLCanvas {
 
     @Override
     public void recoverFromLightCycle() {
+        flush();
+        // Someone else may have changed the GL state
+        mCurrentProgram = 0;
+        mCurrentBlending = -1;
         GLES20.glViewport(0, 0, mWidth, mHeight);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
         GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
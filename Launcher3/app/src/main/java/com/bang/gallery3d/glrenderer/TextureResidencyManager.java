@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.glrenderer;
+
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Keeps the GPU memory used by {@link UploadedTexture}s under a budget (see
+ * {@link #setBudget}). Uploaded textures are tracked in the order they were last drawn, and
+ * once the budget is exceeded the least recently drawn ones are unloaded with
+ * {@link BasicTexture#yield}; they upload again from their bitmap the next time they're drawn.
+ * Textures drawn in the current frame are never evicted, so a frame that needs more than the
+ * budget goes over it rather than thrashing.
+ *
+ * Textures are only held weakly, so that tracking a texture doesn't keep it from being
+ * collected. A texture collected while resident is unloaded by its finalizer, and forgotten
+ * here on the next call from the GL thread rather than from the finalizer thread. Textures are
+ * uploaded, drawn and evicted on the GL thread, but the bookkeeping is synchronized so that
+ * textures may be yielded or recycled from other threads.
+ */
+public class TextureResidencyManager {
+    private static final String TAG = "TextureResidencyManager";
+
+    private static final int DEFAULT_BUDGET_BYTES = 48 * 1024 * 1024;
+
+    private static final TextureResidencyManager sInstance = new TextureResidencyManager();
+
+    /**
+     * A resident texture. The texture holds on to its entry, and the entries are linked from
+     * the least recently drawn to the most recently drawn.
+     */
+    static class Entry extends WeakReference<UploadedTexture> {
+        final int bytes;
+        int lastDrawnFrame;
+        boolean resident;
+        Entry prev;
+        Entry next;
+
+        Entry(UploadedTexture texture, int bytes, int frame,
+                ReferenceQueue<UploadedTexture> queue) {
+            super(texture, queue);
+            this.bytes = bytes;
+            this.lastDrawnFrame = frame;
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private Entry mHead;
+    private Entry mTail;
+    private int mResidentCount;
+    private int mBudgetBytes = DEFAULT_BUDGET_BYTES;
+    private int mResidentBytes;
+    private int mFrame;
+    // Entries of the textures collected while resident
+    private final ReferenceQueue<UploadedTexture> mCollected =
+            new ReferenceQueue<UploadedTexture>();
+
+    // Stats, for debugging; guarded by mLock
+    private int mPeakBytes;
+    private int mUploads;
+    private int mReuploads;
+    private int mEvictions;
+    private int mCollections;
+
+    public static TextureResidencyManager getInstance() {
+        return sInstance;
+    }
+
+    /** Sets how many bytes of textures may be resident, evicting textures if needed. */
+    public void setBudget(int bytes) {
+        final ArrayList<UploadedTexture> evicted;
+        synchronized (mLock) {
+            mBudgetBytes = bytes;
+            evicted = trimLocked();
+        }
+        evict(evicted);
+    }
+
+    /** Starts a new frame; textures drawn from now on are protected until the next frame. */
+    public void beginFrame() {
+        synchronized (mLock) {
+            mFrame++;
+            removeCollectedLocked();
+        }
+    }
+
+    void onUploaded(UploadedTexture texture, boolean wasEvicted) {
+        final int bytes = texture.getEstimatedUploadBytes();
+        final ArrayList<UploadedTexture> evicted;
+        synchronized (mLock) {
+            removeCollectedLocked();
+            if (texture.mResidencyEntry != null) {
+                removeLocked(texture.mResidencyEntry);
+            }
+            final Entry e = new Entry(texture, bytes, mFrame, mCollected);
+            texture.mResidencyEntry = e;
+            addLastLocked(e);
+            mPeakBytes = Math.max(mPeakBytes, mResidentBytes);
+            mUploads++;
+            if (wasEvicted) {
+                mReuploads++;
+            }
+            evicted = trimLocked();
+        }
+        evict(evicted);
+    }
+
+    void onDrawn(UploadedTexture texture) {
+        synchronized (mLock) {
+            final Entry e = texture.mResidencyEntry;
+            if (e != null && e.resident) {
+                e.lastDrawnFrame = mFrame;
+                if (e != mTail) {
+                    removeLocked(e);
+                    addLastLocked(e);
+                    texture.mResidencyEntry = e;
+                }
+            }
+        }
+    }
+
+    void onUnloaded(UploadedTexture texture) {
+        if (BasicTexture.inFinalizer()) {
+            // The entry of a collected texture is already queued, it is removed from the GL
+            // thread; don't touch the entries from the finalizer thread
+            return;
+        }
+        synchronized (mLock) {
+            if (texture.mResidencyEntry != null) {
+                removeLocked(texture.mResidencyEntry);
+            }
+        }
+    }
+
+    /** Forgets every texture, after the GL context was lost. */
+    void clear() {
+        synchronized (mLock) {
+            while (mHead != null) {
+                removeLocked(mHead);
+            }
+            removeCollectedLocked();
+        }
+    }
+
+    private void addLastLocked(Entry e) {
+        e.prev = mTail;
+        e.next = null;
+        if (mTail == null) {
+            mHead = e;
+        } else {
+            mTail.next = e;
+        }
+        mTail = e;
+        e.resident = true;
+        mResidentCount++;
+        mResidentBytes += e.bytes;
+    }
+
+    private void removeLocked(Entry e) {
+        if (!e.resident) {
+            return;
+        }
+        if (e.prev == null) {
+            mHead = e.next;
+        } else {
+            e.prev.next = e.next;
+        }
+        if (e.next == null) {
+            mTail = e.prev;
+        } else {
+            e.next.prev = e.prev;
+        }
+        e.prev = e.next = null;
+        e.resident = false;
+        mResidentCount--;
+        mResidentBytes -= e.bytes;
+        final UploadedTexture texture = e.get();
+        if (texture != null && texture.mResidencyEntry == e) {
+            texture.mResidencyEntry = null;
+        }
+    }
+
+    private void removeCollectedLocked() {
+        Entry e;
+        while ((e = (Entry) mCollected.poll()) != null) {
+            if (e.resident) {
+                removeLocked(e);
+                mCollections++;
+            }
+        }
+    }
+
+    // Returns the textures to evict, which is done out of the lock
+    private ArrayList<UploadedTexture> trimLocked() {
+        ArrayList<UploadedTexture> evicted = null;
+        while (mResidentBytes > mBudgetBytes && mHead != null) {
+            final Entry e = mHead;
+            if (e.lastDrawnFrame == mFrame) {
+                // Everything after it was drawn in this frame too
+                break;
+            }
+            removeLocked(e);
+            final UploadedTexture texture = e.get();
+            if (texture != null) {
+                if (evicted == null) {
+                    evicted = new ArrayList<UploadedTexture>();
+                }
+                evicted.add(texture);
+                mEvictions++;
+            }
+        }
+        return evicted;
+    }
+
+    private static void evict(ArrayList<UploadedTexture> textures) {
+        if (textures != null) {
+            for (UploadedTexture texture : textures) {
+                texture.evict();
+            }
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mLock) {
+            Log.d(TAG, "resident: " + mResidentCount + " textures, " + mResidentBytes / 1024
+                    + "/" + mBudgetBytes / 1024 + "KB (peak " + mPeakBytes / 1024 + "KB), "
+                    + mUploads + " uploads, " + mReuploads + " re-uploads, "
+                    + mEvictions + " evictions, " + mCollections + " collected");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.gallery3d.glrenderer;
+
+import android.util.Log;
+
+/**
+ * Decides how many texture uploads fit in a frame. Rather than a fixed number of uploads, each
+ * frame gets a time budget (see {@link #setFrameBudget}); the cost of an upload is predicted
+ * from the measured cost per byte of the previous ones, and uploads are allowed while the
+ * predicted time fits in what is left of the budget. The first upload of a frame is always
+ * allowed, so uploading makes progress even when a single texture costs more than the budget.
+ *
+ * Must only be used on the GL thread.
+ */
+public class UploadGovernor {
+    private static final String TAG = "UploadGovernor";
+
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 4 * 1000 * 1000;
+    private static final long FRAME_INTERVAL_NANOS = 1000 * 1000 * 1000 / 60;
+
+    // Initial guess of the upload cost, about 2ms for a 512x512 ARGB_8888 tile
+    private static final long INITIAL_NANOS_PER_KB = 2 * 1000 * 1000 / 1024;
+
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+    // Moving average of the upload cost, in nanoseconds per KB
+    private long mNanosPerKb = INITIAL_NANOS_PER_KB;
+
+    private long mFrameStart;
+    private long mFrameSpentNanos;
+    private int mFrameUploads;
+    // Whether the last frame asked for the next one; frames are otherwise drawn on demand
+    private boolean mNextFrameRequested;
+
+    // Stats, for debugging
+    private int mFrames;
+    private int mDroppedFrames;
+    private long mTotalUploads;
+    private long mTotalBytes;
+    private long mTotalNanos;
+
+    /** Sets how much of a frame may be spent uploading textures. */
+    public void setFrameBudget(long millis) {
+        mFrameBudgetNanos = millis * 1000 * 1000;
+    }
+
+    /**
+     * Starts a new frame, resetting the budget. A frame that starts more than one and a half
+     * frame intervals after a frame that uploaded something and asked for the next frame (see
+     * {@link #endFrame}) is counted as dropped. Gaps after other frames are idle time.
+     */
+    public void beginFrame() {
+        final long now = System.nanoTime();
+        if (mNextFrameRequested && mFrameUploads > 0
+                && now - mFrameStart > FRAME_INTERVAL_NANOS * 3 / 2) {
+            mDroppedFrames++;
+        }
+        mFrames++;
+        mFrameStart = now;
+        mFrameSpentNanos = 0;
+        mFrameUploads = 0;
+        mNextFrameRequested = false;
+    }
+
+    /** Ends the frame, noting whether it invalidated to have the next frame drawn right away. */
+    public void endFrame(boolean nextFrameRequested) {
+        mNextFrameRequested = nextFrameRequested;
+    }
+
+    /** Returns whether uploading the given number of bytes fits in what's left of the frame. */
+    public boolean canUpload(int bytes) {
+        return mFrameUploads == 0
+                || mFrameSpentNanos + estimateNanos(bytes) <= mFrameBudgetNanos;
+    }
+
+    /** Returns whether the budget of this frame is used up. */
+    public boolean isBudgetSpent() {
+        return mFrameUploads > 0 && mFrameSpentNanos >= mFrameBudgetNanos;
+    }
+
+    /** Records an upload, measured around the GL calls that did it. */
+    public void recordUpload(int bytes, long nanos) {
+        mFrameSpentNanos += nanos;
+        mFrameUploads++;
+        mTotalUploads++;
+        mTotalBytes += bytes;
+        mTotalNanos += nanos;
+        if (bytes >= 1024) {
+            // Weigh the new sample at 1/4 so a single slow upload doesn't stall the next frames
+            final long sample = nanos / (bytes / 1024);
+            mNanosPerKb = (mNanosPerKb * 3 + sample) / 4;
+        }
+    }
+
+    private long estimateNanos(int bytes) {
+        return mNanosPerKb * (bytes / 1024);
+    }
+
+    public void dumpState() {
+        Log.d(TAG, "uploads=" + mTotalUploads + " frames=" + mFrames
+                + " dropped=" + mDroppedFrames
+                + " throughput=" + (mTotalNanos > 0 ?
+                        mTotalBytes / 1024 * 1000 * 1000 / mTotalNanos : 0) + "KB/ms"
+                + " cost=" + mNanosPerKb + "ns/KB"
+                + " budget=" + mFrameBudgetNanos / 1000 + "us");
+    }
+}
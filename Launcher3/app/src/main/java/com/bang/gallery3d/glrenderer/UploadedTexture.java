@@ -56,8 +56,14 @@ public abstract class UploadedTexture extends BasicTexture {
     private boolean mIsUploading = false;
     private boolean mOpaque = true;
     private boolean mThrottled = false;
-    private static int sUploadedCount;
-    private static final int UPLOAD_LIMIT = 100;
+    // Budgets the uploads of throttled textures, and measures the cost of every upload
+    private static final UploadGovernor sUploadGovernor = new UploadGovernor();
+    private static final TextureResidencyManager sResidency =
+            TextureResidencyManager.getInstance();
+    // Whether the texture was unloaded to stay within the residency budget
+    private boolean mEvicted;
+    // Its entry while resident, guarded by the residency manager
+    TextureResidencyManager.Entry mResidencyEntry;
 
     protected Bitmap mBitmap;
     private int mBorder;
@@ -185,26 +191,45 @@ public abstract class UploadedTexture extends BasicTexture {
      */
     public void updateContent(GLCanvas canvas) {
         if (!isLoaded()) {
-            if (mThrottled && ++sUploadedCount > UPLOAD_LIMIT) {
+            if (mThrottled && !sUploadGovernor.canUpload(getEstimatedUploadBytes())) {
                 return;
             }
+            long start = System.nanoTime();
             uploadToCanvas(canvas);
+            sUploadGovernor.recordUpload(getEstimatedUploadBytes(), System.nanoTime() - start);
+            sResidency.onUploaded(this, mEvicted);
+            mEvicted = false;
         } else if (!mContentValid) {
+            long start = System.nanoTime();
             Bitmap bitmap = getBitmap();
             int format = GLUtils.getInternalFormat(bitmap);
             int type = GLUtils.getType(bitmap);
             canvas.texSubImage2D(this, mBorder, mBorder, bitmap, format, type);
             freeBitmap();
             mContentValid = true;
+            sUploadGovernor.recordUpload(getEstimatedUploadBytes(), System.nanoTime() - start);
         }
     }
 
+    /**
+     * Returns how many bytes uploading this texture transfers, assuming 4 bytes per pixel.
+     * Returns 0 if the size isn't known yet.
+     */
+    public int getEstimatedUploadBytes() {
+        return getTextureWidth() * getTextureHeight() * 4;
+    }
+
+    public static UploadGovernor getUploadGovernor() {
+        return sUploadGovernor;
+    }
+
+    /** Starts a new frame of the upload budget. */
     public static void resetUploadLimit() {
-        sUploadedCount = 0;
+        sUploadGovernor.beginFrame();
     }
 
     public static boolean uploadLimitReached() {
-        return sUploadedCount > UPLOAD_LIMIT;
+        return sUploadGovernor.isBudgetSpent();
     }
 
     private void uploadToCanvas(GLCanvas canvas) {
@@ -273,9 +298,22 @@ public abstract class UploadedTexture extends BasicTexture {
     @Override
     protected boolean onBind(GLCanvas canvas) {
         updateContent(canvas);
+        sResidency.onDrawn(this);
         return isContentValid();
     }
 
+    /** Unloads the texture to make room for others; it uploads again when next drawn. */
+    void evict() {
+        mEvicted = true;
+        super.yield();
+    }
+
+    @Override
+    public void yield() {
+        sResidency.onUnloaded(this);
+        super.yield();
+    }
+
     @Override
     protected int getTarget() {
         return GL11.GL_TEXTURE_2D;
@@ -292,6 +330,7 @@ public abstract class UploadedTexture extends BasicTexture {
 
     @Override
     public void recycle() {
+        sResidency.onUnloaded(this);
         super.recycle();
         if (mBitmap != null) freeBitmap();
     }
@@ -1608,6 +1608,9 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         // TODO: Dump information related to current list of Applications, Widgets, etc.
         AppInfo.dumpApplicationInfoList(TAG, "mApps", mApps);
         dumpAppWidgetProviderInfoList(TAG, "mWidgets", mWidgets);
+        if (mWidgetPreviewLoader != null) {
+            mWidgetPreviewLoader.dumpState();
+        }
     }
 
     private void dumpAppWidgetProviderInfoList(String tag, String label,
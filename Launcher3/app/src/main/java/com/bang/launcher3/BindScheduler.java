@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.launcher3;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Binds the items of the workspace pages that aren't visible, in order of how soon the user
+ * can see them: the pages next to the visible one first, then the other pages by distance, and
+ * the widgets of those other pages last, since inflating them is the most expensive part.
+ *
+ * Tasks are run on the main thread from {@link Choreographer} frame callbacks, as many as fit
+ * in {@link #FRAME_BUDGET_NANOS} per frame, so input and drawing keep being handled while the
+ * workspace is being bound. When the user switches pages, the tasks of the pages around the
+ * new one are moved to the front (see {@link #prioritizeScreen}).
+ *
+ * Tasks are added from the loader thread before {@link #start} is posted to the main thread;
+ * every other method must be called on the main thread.
+ */
+class BindScheduler implements Choreographer.FrameCallback {
+    private static final String TAG = "Launcher.BindScheduler";
+
+    // Time spent binding per frame, leaving the rest of the frame for input, layout and drawing
+    private static final long FRAME_BUDGET_NANOS = 8 * 1000 * 1000;
+
+    // Priority classes, in the order they are bound
+    private static final int PRIORITY_NEAR = 0;
+    private static final int PRIORITY_FAR = 1;
+    private static final int PRIORITY_FAR_WIDGET = 2;
+
+    private static class Task {
+        final Runnable runnable;
+        final long screenId;
+        final boolean isWidget;
+        final int sequence;
+        int priority;
+        int distance;
+
+        Task(Runnable runnable, long screenId, boolean isWidget, int sequence) {
+            this.runnable = runnable;
+            this.screenId = screenId;
+            this.isWidget = isWidget;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Task> TASK_ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+            if (lhs.priority != rhs.priority) {
+                return lhs.priority - rhs.priority;
+            }
+            if (lhs.distance != rhs.distance) {
+                return lhs.distance - rhs.distance;
+            }
+            return lhs.sequence - rhs.sequence;
+        }
+    };
+
+    private final ArrayList<Long> mScreenOrder;
+    private long mFocusedScreenId;
+    private final ArrayList<Task> mTasks = new ArrayList<Task>();
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>(16, TASK_ORDER);
+    private Runnable mOnComplete;
+    private Runnable mOnCancel;
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mCompleted;
+
+    // Stats, for debugging
+    private long mStartTime;
+    private int mFrames;
+    private int mTasksRun;
+
+    BindScheduler(ArrayList<Long> orderedScreenIds, long focusedScreenId) {
+        mScreenOrder = new ArrayList<Long>(orderedScreenIds);
+        mFocusedScreenId = focusedScreenId;
+    }
+
+    /** Adds a task binding items of the given screen. Must be called before {@link #start}. */
+    void add(Runnable r, long screenId, boolean isWidget) {
+        mTasks.add(new Task(r, screenId, isWidget, mTasks.size()));
+    }
+
+    /** Sets the runnable run on the main thread once every task has been run. */
+    void setOnComplete(Runnable r) {
+        mOnComplete = r;
+    }
+
+    /** Sets the runnable run on the main thread if the tasks are cancelled before completing. */
+    void setOnCancel(Runnable r) {
+        mOnCancel = r;
+    }
+
+    void start() {
+        if (mStarted || mCancelled) {
+            return;
+        }
+        mStarted = true;
+        mStartTime = System.nanoTime();
+        updatePriorities(mTasks);
+        mQueue.addAll(mTasks);
+        mTasks.clear();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /** Binds the pages around the given screen before the others. */
+    void prioritizeScreen(long screenId) {
+        if (mCancelled || screenId == mFocusedScreenId) {
+            return;
+        }
+        mFocusedScreenId = screenId;
+        if (mStarted && !mQueue.isEmpty()) {
+            ArrayList<Task> pending = new ArrayList<Task>(mQueue);
+            mQueue.clear();
+            updatePriorities(pending);
+            mQueue.addAll(pending);
+        }
+    }
+
+    /** Drops the remaining tasks, and runs the cancel runnable instead of the completion one. */
+    void cancel() {
+        if (mCancelled || mCompleted) {
+            return;
+        }
+        mCancelled = true;
+        mQueue.clear();
+        mTasks.clear();
+        Choreographer.getInstance().removeFrameCallback(this);
+        if (mOnCancel != null) {
+            mOnCancel.run();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mCancelled) {
+            return;
+        }
+        mFrames++;
+        final long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        // Always make progress, even if a single task takes longer than the budget
+        do {
+            Task task = mQueue.poll();
+            if (task == null) {
+                break;
+            }
+            task.runnable.run();
+            mTasksRun++;
+            // A task may have cancelled us, for instance by starting a new bind
+            if (mCancelled) {
+                return;
+            }
+        } while (!mQueue.isEmpty() && System.nanoTime() < deadline);
+
+        if (!mQueue.isEmpty()) {
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+        if (LauncherModel.DEBUG_LOADERS) {
+            Log.d(TAG, "bound " + mTasksRun + " deferred tasks in " + mFrames + " frames, "
+                    + (System.nanoTime() - mStartTime) / 1000000 + "ms");
+        }
+        mCompleted = true;
+        if (mOnComplete != null) {
+            mOnComplete.run();
+        }
+    }
+
+    private void updatePriorities(ArrayList<Task> tasks) {
+        final int focusedRank = mScreenOrder.indexOf(mFocusedScreenId);
+        for (Task task : tasks) {
+            final int rank = mScreenOrder.indexOf(task.screenId);
+            task.distance = (rank < 0 || focusedRank < 0) ?
+                    Integer.MAX_VALUE : Math.abs(rank - focusedRank);
+            if (task.distance <= 1) {
+                task.priority = PRIORITY_NEAR;
+            } else {
+                task.priority = task.isWidget ? PRIORITY_FAR_WIDGET : PRIORITY_FAR;
+            }
+        }
+    }
+}
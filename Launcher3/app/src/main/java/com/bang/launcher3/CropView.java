@@ -29,6 +29,7 @@ import android.view.ViewConfiguration;
 import android.view.ViewTreeObserver;
 import android.view.ViewTreeObserver.OnGlobalLayoutListener;
 
+import com.bang.photos.BitmapRegionTileSource;
 import com.bang.photos.views.TiledImageView;
 import com.bang.photos.views.TiledImageRenderer;
 
@@ -135,6 +136,7 @@ public class CropView extends TiledImageView implements OnScaleGestureListener {
     }
 
     public void setTileSource(TiledImageRenderer.TileSource source, Runnable isReadyCallback) {
+        releaseTileSource(source);
         super.setTileSource(source, isReadyCallback);
         mCenterX = mRenderer.centerX;
         mCenterY = mRenderer.centerY;
@@ -145,6 +147,18 @@ public class CropView extends TiledImageView implements OnScaleGestureListener {
         updateMinScale(getWidth(), getHeight(), source, true);
     }
 
+    /** Releases what the current tile source shares with other users of its image. */
+    public void releaseTileSource() {
+        releaseTileSource(null);
+    }
+
+    private void releaseTileSource(TiledImageRenderer.TileSource next) {
+        TiledImageRenderer.TileSource current = mRenderer.source;
+        if (current != next && current instanceof BitmapRegionTileSource) {
+            ((BitmapRegionTileSource) current).release();
+        }
+    }
+
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         updateMinScale(w, h, mRenderer.source, false);
     }
@@ -20,71 +20,149 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
-import android.util.Pair;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import android.util.Log;
+import android.util.SparseArray;
 
 /**
- * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
- * be actually enqued on the handler until after the last one has run, to keep from
- * starving the thread.
+ * Queue of things to run on a looper thread.  Items posted with {@link #post} are run from a
+ * single handler message, as many as fit in the frame budget (see {@link #setFrameBudget}),
+ * after which the rest is left for the next message so the thread can handle input and draw.
  *
- * This class is fifo.
+ * Items run in order of priority, and in fifo order within a priority. Items posted with
+ * {@link #postIdle} run after everything else, once the looper goes idle. Cancelled items are
+ * taken out of the queue right away.
  */
 public class DeferredHandler {
-    private LinkedList<Pair<Runnable, Integer>> mQueue = new LinkedList<Pair<Runnable, Integer>>();
+    private static final String TAG = "DeferredHandler";
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    private static final int PRIORITY_IDLE = 3;
+    private static final int NUM_PRIORITIES = 4;
+
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 8 * 1000 * 1000;
+
+    private static class Task {
+        final Runnable runnable;
+        final int type;
+        final int priority;
+        final long postTime;
+        // Links in the queue, and among the queued tasks of the same type
+        Task prev;
+        Task next;
+        Task prevOfType;
+        Task nextOfType;
+
+        Task(Runnable runnable, int type, int priority, long postTime) {
+            this.runnable = runnable;
+            this.type = type;
+            this.priority = priority;
+            this.postTime = postTime;
+        }
+    }
+
+    /** Fifo of tasks, which any task can be removed from. */
+    private static class TaskQueue {
+        Task head;
+        Task tail;
+
+        void add(Task task) {
+            task.prev = tail;
+            if (tail == null) {
+                head = task;
+            } else {
+                tail.next = task;
+            }
+            tail = task;
+        }
+
+        void remove(Task task) {
+            if (task.prev == null) {
+                head = task.next;
+            } else {
+                task.prev.next = task.next;
+            }
+            if (task.next == null) {
+                tail = task.prev;
+            } else {
+                task.next.prev = task.prev;
+            }
+            task.prev = task.next = null;
+        }
+
+        void clear() {
+            head = tail = null;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final TaskQueue[] mQueues = new TaskQueue[NUM_PRIORITIES];
+    // The task of each type queued last, from which the tasks of the type are chained
+    private final SparseArray<Task> mLastOfType = new SparseArray<Task>();
+    // Number of tasks, not counting the idle ones
+    private int mPendingCount;
+    private int mPendingIdleCount;
+    private boolean mMessagePending;
+    private boolean mIdleHandlerAdded;
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
     private MessageQueue mMessageQueue = Looper.myQueue();
     private Impl mHandler = new Impl();
 
+    // Stats, guarded by mLock
+    private int mMaxPendingCount;
+    private long mTasksRun;
+    private long mBatches;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
     private class Impl extends Handler implements MessageQueue.IdleHandler {
         public void handleMessage(Message msg) {
-            Pair<Runnable, Integer> p;
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
-                }
-                p = mQueue.removeFirst();
-                r = p.first;
-            }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
+            synchronized (mLock) {
+                mMessagePending = false;
+                mBatches++;
             }
+            runTasks(false);
         }
 
         public boolean queueIdle() {
-            handleMessage(null);
+            synchronized (mLock) {
+                mIdleHandlerAdded = false;
+            }
+            runTasks(true);
             return false;
         }
     }
 
-    private class IdleRunnable implements Runnable {
-        Runnable mRunnable;
-
-        IdleRunnable(Runnable r) {
-            mRunnable = r;
-        }
-
-        public void run() {
-            mRunnable.run();
+    public DeferredHandler() {
+        for (int i = 0; i < NUM_PRIORITIES; i++) {
+            mQueues[i] = new TaskQueue();
         }
     }
 
-    public DeferredHandler() {
+    /** Sets how long a single handler message may spend running queued items. */
+    public void setFrameBudget(long millis) {
+        synchronized (mLock) {
+            mFrameBudgetNanos = millis * 1000 * 1000;
+        }
     }
 
     /** Schedule runnable to run after everything that's on the queue right now. */
     public void post(Runnable runnable) {
-        post(runnable, 0);
+        post(runnable, 0, PRIORITY_NORMAL);
     }
     public void post(Runnable runnable, int type) {
-        synchronized (mQueue) {
-            mQueue.add(new Pair<Runnable, Integer>(runnable, type));
-            if (mQueue.size() == 1) {
-                scheduleNextLocked();
-            }
+        post(runnable, type, PRIORITY_NORMAL);
+    }
+    /**
+     * Schedule runnable to run after everything of the same or a higher priority that's on the
+     * queue right now, and before anything of a lower priority.
+     */
+    public void post(Runnable runnable, int type, int priority) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
         }
+        enqueue(runnable, type, priority);
     }
 
     /** Schedule runnable to run when the queue goes idle. */
@@ -92,55 +170,180 @@ public class DeferredHandler {
         postIdle(runnable, 0);
     }
     public void postIdle(final Runnable runnable, int type) {
-        post(new IdleRunnable(runnable), type);
+        enqueue(runnable, type, PRIORITY_IDLE);
+    }
+
+    private void enqueue(Runnable runnable, int type, int priority) {
+        synchronized (mLock) {
+            final Task task = new Task(runnable, type, priority, System.nanoTime());
+            mQueues[priority].add(task);
+            if (priority == PRIORITY_IDLE) {
+                mPendingIdleCount++;
+            } else {
+                mPendingCount++;
+            }
+            final Task lastOfType = mLastOfType.get(type);
+            if (lastOfType != null) {
+                lastOfType.nextOfType = task;
+                task.prevOfType = lastOfType;
+            }
+            mLastOfType.put(type, task);
+            mMaxPendingCount = Math.max(mMaxPendingCount, mPendingCount + mPendingIdleCount);
+            scheduleNextLocked();
+        }
     }
 
+    /** Cancels every pending instance of the runnable. This walks the whole queue. */
     public void cancelRunnable(Runnable runnable) {
-        synchronized (mQueue) {
-            while (mQueue.remove(runnable)) { }
+        synchronized (mLock) {
+            for (int i = 0; i < NUM_PRIORITIES; i++) {
+                cancelRunnableLocked(mQueues[i], runnable);
+            }
+        }
+    }
+
+    private void cancelRunnableLocked(TaskQueue queue, Runnable runnable) {
+        Task task = queue.head;
+        while (task != null) {
+            final Task next = task.next;
+            if (task.runnable == runnable) {
+                removeLocked(task);
+            }
+            task = next;
         }
     }
+
+    /** Cancels every pending runnable of the type, walking only the runnables of the type. */
     public void cancelAllRunnablesOfType(int type) {
-        synchronized (mQueue) {
-            ListIterator<Pair<Runnable, Integer>> iter = mQueue.listIterator();
-            Pair<Runnable, Integer> p;
-            while (iter.hasNext()) {
-                p = iter.next();
-                if (p.second == type) {
-                    iter.remove();
-                }
+        synchronized (mLock) {
+            Task task = mLastOfType.get(type);
+            while (task != null) {
+                final Task prev = task.prevOfType;
+                removeLocked(task);
+                task = prev;
             }
         }
     }
 
     public void cancel() {
-        synchronized (mQueue) {
-            mQueue.clear();
+        synchronized (mLock) {
+            for (int i = 0; i < NUM_PRIORITIES; i++) {
+                mQueues[i].clear();
+            }
+            mLastOfType.clear();
+            mPendingCount = 0;
+            mPendingIdleCount = 0;
         }
     }
 
     /** Runs all queued Runnables from the calling thread. */
     public void flush() {
-        LinkedList<Pair<Runnable, Integer>> queue = new LinkedList<Pair<Runnable, Integer>>();
-        synchronized (mQueue) {
-            queue.addAll(mQueue);
-            mQueue.clear();
+        final TaskQueue queue = new TaskQueue();
+        synchronized (mLock) {
+            Task task;
+            while ((task = pollLocked(true)) != null) {
+                queue.add(task);
+            }
+        }
+        Task task;
+        while ((task = queue.head) != null) {
+            queue.remove(task);
+            task.runnable.run();
+        }
+    }
+
+    /** Returns the number of runnables waiting to be run. */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mPendingCount + mPendingIdleCount;
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mLock) {
+            Log.d(TAG, "pending=" + mPendingCount + " (max " + mMaxPendingCount + ")"
+                    + " idle=" + mPendingIdleCount + " run=" + mTasksRun
+                    + " batches=" + mBatches
+                    + " avgLatency=" + (mTasksRun > 0 ?
+                            mTotalLatencyNanos / mTasksRun / 1000 : 0) + "us"
+                    + " maxLatency=" + mMaxLatencyNanos / 1000 + "us");
+        }
+    }
+
+    /**
+     * Runs queued tasks until the frame budget is spent. Idle tasks are only run from the idle
+     * handler, and only when nothing else is queued.
+     */
+    private void runTasks(boolean idle) {
+        final long deadline;
+        synchronized (mLock) {
+            deadline = System.nanoTime() + mFrameBudgetNanos;
+        }
+        while (true) {
+            final Task task;
+            synchronized (mLock) {
+                task = pollLocked(idle);
+                if (task == null) {
+                    break;
+                }
+                final long latency = System.nanoTime() - task.postTime;
+                mTotalLatencyNanos += latency;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+                mTasksRun++;
+            }
+            task.runnable.run();
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
         }
-        for (Pair<Runnable, Integer> p : queue) {
-            p.first.run();
+        synchronized (mLock) {
+            scheduleNextLocked();
         }
     }
 
+    private Task pollLocked(boolean includeIdle) {
+        final int last = includeIdle ? PRIORITY_IDLE : PRIORITY_LOW;
+        for (int i = PRIORITY_HIGH; i <= last; i++) {
+            final Task task = mQueues[i].head;
+            if (task != null) {
+                removeLocked(task);
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void removeLocked(Task task) {
+        mQueues[task.priority].remove(task);
+        if (task.priority == PRIORITY_IDLE) {
+            mPendingIdleCount--;
+        } else {
+            mPendingCount--;
+        }
+        if (task.prevOfType != null) {
+            task.prevOfType.nextOfType = task.nextOfType;
+        }
+        if (task.nextOfType != null) {
+            task.nextOfType.prevOfType = task.prevOfType;
+        } else if (task.prevOfType != null) {
+            mLastOfType.put(task.type, task.prevOfType);
+        } else {
+            mLastOfType.remove(task.type);
+        }
+        task.prevOfType = task.nextOfType = null;
+    }
+
     void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
-            Pair<Runnable, Integer> p = mQueue.getFirst();
-            Runnable peek = p.first;
-            if (peek instanceof IdleRunnable) {
-                mMessageQueue.addIdleHandler(mHandler);
-            } else {
+        if (mPendingCount > 0) {
+            if (!mMessagePending) {
+                mMessagePending = true;
                 mHandler.sendEmptyMessage(1);
             }
+        } else if (mPendingIdleCount > 0) {
+            if (!mIdleHandlerAdded) {
+                mIdleHandlerAdded = true;
+                mMessageQueue.addIdleHandler(mHandler);
+            }
         }
     }
 }
-
@@ -20,23 +20,39 @@ import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ContentValues;
 import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.util.Log;
 
+import com.bang.gallery3d.common.BitmapPool;
+
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Rendered icons and labels are also persisted to {@link IconDb} so that a cold start can
+ * skip re-rendering the icons of packages which have not changed since they were last seen.
  */
 public class IconCache {
-    @SuppressWarnings("unused")
     private static final String TAG = "Launcher.IconCache";
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
@@ -46,6 +62,14 @@ public class IconCache {
         public String title;
     }
 
+    private static class PersistedEntry {
+        long lastUpdateTime;
+        int versionCode;
+        String title;
+        byte[] icon;
+        boolean used;
+    }
+
     private final Bitmap mDefaultIcon;
     private final Context mContext;
     private final PackageManager mPackageManager;
@@ -53,6 +77,15 @@ public class IconCache {
             new HashMap<ComponentName, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
     private int mIconDpi;
 
+    private final IconDb mIconDb;
+    private final BitmapPool mBitmapPool = BitmapPool.getInstance();
+    // Only non-null between startBulkLoad() and finishBulkLoad()
+    private HashMap<ComponentName, PersistedEntry> mPersistedEntries;
+    private final HashMap<String, PackageInfo> mBulkPackageInfos =
+            new HashMap<String, PackageInfo>();
+    private final HashMap<ComponentName, CacheEntry> mPendingWrites =
+            new HashMap<ComponentName, CacheEntry>();
+
     public IconCache(Context context) {
         ActivityManager activityManager =
                 (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -60,6 +93,7 @@ public class IconCache {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mIconDpi = activityManager.getLauncherLargeIconDensity();
+        mIconDb = new IconDb(context);
 
         // need to set mIconDpi before getting default icon
         mDefaultIcon = makeDefaultIcon();
@@ -168,12 +202,10 @@ public class IconCache {
      */
     public void getTitleAndIcon(AppInfo application, ResolveInfo info,
             HashMap<Object, CharSequence> labelCache) {
-        synchronized (mCache) {
-            CacheEntry entry = cacheLocked(application.componentName, info, labelCache);
+        CacheEntry entry = cacheConcurrently(application.componentName, info, labelCache);
 
-            application.title = entry.title;
-            application.iconBitmap = entry.icon;
-        }
+        application.title = entry.title;
+        application.iconBitmap = entry.icon;
     }
 
     public Bitmap getIcon(Intent intent) {
@@ -214,23 +246,334 @@ public class IconCache {
 
             mCache.put(componentName, entry);
 
-            ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
-            if (labelCache != null && labelCache.containsKey(key)) {
-                entry.title = labelCache.get(key).toString();
+            PersistedEntry persisted = getValidPersistedEntryLocked(componentName);
+            if (restoreFromPersisted(persisted, info, entry)) {
+                markUsedLocked(persisted);
+                return entry;
+            }
+
+            renderEntry(info, labelCache, entry);
+            addPendingWriteLocked(componentName, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Like {@link #cacheLocked} but only holds the lock for the lookups, so that several
+     * threads can load and render the icons of different components at the same time.
+     * The label cache, if any, must not be shared between threads.
+     */
+    private CacheEntry cacheConcurrently(ComponentName componentName, ResolveInfo info,
+            HashMap<Object, CharSequence> labelCache) {
+        PersistedEntry persisted;
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(componentName);
+            if (entry != null) {
+                return entry;
+            }
+            persisted = getValidPersistedEntryLocked(componentName);
+        }
+
+        CacheEntry entry = new CacheEntry();
+        boolean restored = restoreFromPersisted(persisted, info, entry);
+        if (!restored) {
+            renderEntry(info, labelCache, entry);
+        }
+
+        synchronized (mCache) {
+            CacheEntry existing = mCache.get(componentName);
+            if (existing != null) {
+                // Someone else got there first
+                return existing;
+            }
+            mCache.put(componentName, entry);
+            if (restored) {
+                markUsedLocked(persisted);
             } else {
-                entry.title = info.loadLabel(mPackageManager).toString();
-                if (labelCache != null) {
-                    labelCache.put(key, entry.title);
+                addPendingWriteLocked(componentName, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static void markUsedLocked(PersistedEntry persisted) {
+        persisted.used = true;
+        // Once decoded, the compressed icon is not needed anymore
+        persisted.icon = null;
+    }
+
+    private void renderEntry(ResolveInfo info, HashMap<Object, CharSequence> labelCache,
+            CacheEntry entry) {
+        ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+        if (labelCache != null && labelCache.containsKey(key)) {
+            entry.title = labelCache.get(key).toString();
+        } else {
+            entry.title = info.loadLabel(mPackageManager).toString();
+            if (labelCache != null) {
+                labelCache.put(key, entry.title);
+            }
+        }
+        if (entry.title == null) {
+            entry.title = info.activityInfo.name;
+        }
+
+        entry.icon = Utilities.createIconBitmap(
+                getFullResIcon(info), mContext);
+    }
+
+    private void addPendingWriteLocked(ComponentName componentName, CacheEntry entry) {
+        mPendingWrites.put(componentName, entry);
+        if (mPersistedEntries == null) {
+            // Not part of a bulk load, so nothing else is going to flush this for us
+            persistPendingLocked(null);
+        }
+    }
+
+    /**
+     * Loads the persisted icons and labels matching the current icon size, density and locale
+     * so that the lookups which follow can skip rendering for packages that have not changed.
+     * Must be followed by a call to {@link #finishBulkLoad()} from the same thread.
+     */
+    public void startBulkLoad() {
+        final long t = LauncherModel.DEBUG_LOADERS ? System.currentTimeMillis() : 0;
+        final int iconSize = Utilities.getIconBitmapSize(mContext);
+        final HashMap<ComponentName, PersistedEntry> entries =
+                new HashMap<ComponentName, PersistedEntry>();
+        Cursor c = null;
+        try {
+            SQLiteDatabase db = mIconDb.getReadableDatabase();
+            c = db.query(IconDb.TABLE_NAME,
+                    new String[] { IconDb.COLUMN_COMPONENT, IconDb.COLUMN_LAST_UPDATED,
+                            IconDb.COLUMN_VERSION, IconDb.COLUMN_LABEL, IconDb.COLUMN_ICON },
+                    IconDb.COLUMN_ICON_DPI + " = ? AND " + IconDb.COLUMN_ICON_SIZE + " = ? AND " +
+                            IconDb.COLUMN_LOCALE + " = ?",
+                    new String[] { Integer.toString(mIconDpi), Integer.toString(iconSize),
+                            getLocaleString() },
+                    null, null, null);
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                if (cn == null) {
+                    continue;
                 }
+                PersistedEntry entry = new PersistedEntry();
+                entry.lastUpdateTime = c.getLong(1);
+                entry.versionCode = c.getInt(2);
+                entry.title = c.getString(3);
+                entry.icon = c.getBlob(4);
+                entries.put(cn, entry);
             }
-            if (entry.title == null) {
-                entry.title = info.activityInfo.name;
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to read persisted icons", e);
+        } finally {
+            if (c != null) {
+                c.close();
             }
+        }
 
-            entry.icon = Utilities.createIconBitmap(
-                    getFullResIcon(info), mContext);
+        synchronized (mCache) {
+            mPersistedEntries = entries;
+            mBulkPackageInfos.clear();
+        }
+        if (LauncherModel.DEBUG_LOADERS) {
+            Log.d(TAG, "read " + entries.size() + " persisted icons in "
+                    + (System.currentTimeMillis() - t) + "ms");
+        }
+    }
+
+    /**
+     * Seeds the label cache with the persisted labels of the supplied activities so that
+     * sorting them does not have to load each label from its package.
+     */
+    public void preloadTitles(List<ResolveInfo> apps, HashMap<Object, CharSequence> labelCache) {
+        synchronized (mCache) {
+            for (ResolveInfo info : apps) {
+                ComponentName key = LauncherModel.getComponentNameFromResolveInfo(info);
+                if (labelCache.containsKey(key)) {
+                    continue;
+                }
+                PersistedEntry persisted = getValidPersistedEntryLocked(key);
+                // Rows without a title are left for the label to be loaded from the package
+                if (persisted != null && persisted.title != null) {
+                    labelCache.put(key, persisted.title.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends a bulk load started with {@link #startBulkLoad()}, writing out every newly rendered
+     * entry and dropping the persisted entries of components which no longer exist.
+     */
+    public void finishBulkLoad() {
+        finishBulkLoad(true);
+    }
+
+    /**
+     * Like {@link #finishBulkLoad()}, but only drops the persisted entries that weren't used if
+     * every component was looked up; a load that stopped halfway can't tell which ones are gone.
+     */
+    public void finishBulkLoad(boolean complete) {
+        synchronized (mCache) {
+            if (mPersistedEntries == null) {
+                return;
+            }
+            ArrayList<ComponentName> unused = null;
+            if (complete) {
+                unused = new ArrayList<ComponentName>();
+                for (Entry<ComponentName, PersistedEntry> e : mPersistedEntries.entrySet()) {
+                    if (!e.getValue().used && !mPendingWrites.containsKey(e.getKey())) {
+                        unused.add(e.getKey());
+                    }
+                }
+            }
+            mPersistedEntries = null;
+            mBulkPackageInfos.clear();
+            persistPendingLocked(unused);
+        }
+    }
+
+    private boolean restoreFromPersisted(PersistedEntry persisted, ResolveInfo info,
+            CacheEntry entry) {
+        if (persisted == null) {
+            return false;
+        }
+        final byte[] blob = persisted.icon;
+        if (blob == null) {
+            return false;
+        }
+        Bitmap icon = decodeIcon(blob);
+        if (icon == null) {
+            return false;
+        }
+        entry.icon = icon;
+        entry.title = persisted.title != null ? persisted.title : info.activityInfo.name;
+        return true;
+    }
+
+    /**
+     * Decodes a persisted icon, into a pooled bitmap of the icon size if there is one. Icons
+     * are decoded mutable so that they can go back to the pool.
+     */
+    private Bitmap decodeIcon(byte[] blob) {
+        final int iconSize = Utilities.getIconBitmapSize(mContext);
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inMutable = true;
+        opts.inBitmap = mBitmapPool.acquire(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        try {
+            return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+        } catch (IllegalArgumentException e) {
+            // The icon isn't of the size of the bitmap we tried to reuse
+            mBitmapPool.release(opts.inBitmap);
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+        }
+    }
+
+    private PersistedEntry getValidPersistedEntryLocked(ComponentName componentName) {
+        if (mPersistedEntries == null) {
+            return null;
+        }
+        PersistedEntry persisted = mPersistedEntries.get(componentName);
+        if (persisted == null) {
+            return null;
+        }
+        PackageInfo pi = getBulkPackageInfoLocked(componentName.getPackageName());
+        if (pi == null || pi.lastUpdateTime != persisted.lastUpdateTime
+                || pi.versionCode != persisted.versionCode) {
+            // The package changed since the entry was written; it will be re-rendered
+            mPersistedEntries.remove(componentName);
+            return null;
+        }
+        return persisted;
+    }
+
+    private PackageInfo getBulkPackageInfoLocked(String packageName) {
+        if (mBulkPackageInfos.containsKey(packageName)) {
+            return mBulkPackageInfos.get(packageName);
+        }
+        PackageInfo pi = getPackageInfo(mPackageManager, packageName);
+        mBulkPackageInfos.put(packageName, pi);
+        return pi;
+    }
+
+    private static PackageInfo getPackageInfo(PackageManager pm, String packageName) {
+        try {
+            return pm.getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private String getLocaleString() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    private void persistPendingLocked(final ArrayList<ComponentName> removed) {
+        if (mPendingWrites.isEmpty() && (removed == null || removed.isEmpty())) {
+            return;
+        }
+        final HashMap<ComponentName, CacheEntry> writes =
+                new HashMap<ComponentName, CacheEntry>(mPendingWrites);
+        mPendingWrites.clear();
+        final String locale = getLocaleString();
+
+        // Use the serial executor so that writes for the same component land in order
+        new AsyncTask<Void, Void, Void>() {
+            public Void doInBackground(Void ... args) {
+                writeToDb(writes, removed, locale);
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, (Void) null);
+    }
+
+    private void writeToDb(HashMap<ComponentName, CacheEntry> writes,
+            ArrayList<ComponentName> removed, String locale) {
+        final HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
+        final ContentValues values = new ContentValues();
+        try {
+            SQLiteDatabase db = mIconDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (removed != null) {
+                    for (ComponentName cn : removed) {
+                        db.delete(IconDb.TABLE_NAME, IconDb.COLUMN_COMPONENT + " = ?",
+                                new String[] { cn.flattenToString() });
+                    }
+                }
+                for (Entry<ComponentName, CacheEntry> e : writes.entrySet()) {
+                    final String packageName = e.getKey().getPackageName();
+                    PackageInfo pi;
+                    if (packageInfos.containsKey(packageName)) {
+                        pi = packageInfos.get(packageName);
+                    } else {
+                        pi = getPackageInfo(mPackageManager, packageName);
+                        packageInfos.put(packageName, pi);
+                    }
+                    final CacheEntry entry = e.getValue();
+                    final byte[] icon = entry.icon != null ?
+                            ItemInfo.flattenBitmap(entry.icon) : null;
+                    if (pi == null || icon == null) {
+                        continue;
+                    }
+                    values.clear();
+                    values.put(IconDb.COLUMN_COMPONENT, e.getKey().flattenToString());
+                    values.put(IconDb.COLUMN_LAST_UPDATED, pi.lastUpdateTime);
+                    values.put(IconDb.COLUMN_VERSION, pi.versionCode);
+                    values.put(IconDb.COLUMN_ICON_DPI, mIconDpi);
+                    values.put(IconDb.COLUMN_ICON_SIZE, entry.icon.getWidth());
+                    values.put(IconDb.COLUMN_LOCALE, locale);
+                    values.put(IconDb.COLUMN_LABEL, entry.title);
+                    values.put(IconDb.COLUMN_ICON, icon);
+                    db.insertWithOnConflict(IconDb.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Unable to persist icons", e);
         }
-        return entry;
     }
 
     public HashMap<ComponentName,Bitmap> getAllIcons() {
@@ -243,4 +586,45 @@ public class IconCache {
             return set;
         }
     }
+
+    static class IconDb extends SQLiteOpenHelper {
+        final static int DB_VERSION = 1;
+        final static String DB_NAME = "app_icons.db";
+        final static String TABLE_NAME = "icons";
+        final static String COLUMN_COMPONENT = "component";
+        final static String COLUMN_LAST_UPDATED = "last_updated";
+        final static String COLUMN_VERSION = "version";
+        final static String COLUMN_ICON_DPI = "icon_dpi";
+        final static String COLUMN_ICON_SIZE = "icon_size";
+        final static String COLUMN_LOCALE = "locale";
+        final static String COLUMN_LABEL = "label";
+        final static String COLUMN_ICON = "icon";
+
+        public IconDb(Context context) {
+            super(context, new File(context.getCacheDir(), DB_NAME).getPath(), null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON_DPI + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON_SIZE + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_LOCALE + " TEXT, " +
+                    COLUMN_LABEL + " TEXT, " +
+                    COLUMN_ICON + " BLOB, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ") " +
+                    ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                // Delete all the records; they'll be repopulated as this is a cache
+                db.execSQL("DELETE FROM " + TABLE_NAME);
+            }
+        }
+    }
 }
@@ -96,7 +96,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.bang.gallery3d.common.BitmapPool;
 import com.bang.launcher3.DropTarget.DragObject;
+import com.bang.photos.DecodedImageRegistry;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -933,6 +935,9 @@ public class Launcher extends Activity
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
 
+        // Don't sit on item moves while we're in the background
+        LauncherModel.flushPendingItemUpdatesAsync();
+
         // We call onHide() aggressively. The custom content callbacks should be able to
         // debounce excess onHide calls.
         if (mWorkspace.getCustomContentCallbacks() != null) {
@@ -3015,8 +3020,10 @@ public class Launcher extends Activity
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        BitmapPool.getInstance().onTrimMemory(level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
             mAppsCustomizeTabHost.onTrimMemory();
+            DecodedImageRegistry.getInstance().trim();
         }
     }
 
@@ -3935,6 +3942,17 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * Add the apps from a later loader batch to the list set by bindAllApplications().
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void bindMoreApplications(final ArrayList<AppInfo> apps) {
+        if (!AppsCustomizePagedView.DISABLE_ALL_APPS && mAppsCustomizeContent != null) {
+            mAppsCustomizeContent.addApps(apps);
+        }
+    }
+
     /**
      * A package was updated.
      *
@@ -35,6 +35,7 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.RemoteException;
@@ -42,6 +43,8 @@ import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 import android.util.Pair;
+import android.view.Display;
+import android.view.WindowManager;
 
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
@@ -54,10 +57,20 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -68,11 +81,47 @@ public class LauncherModel extends BroadcastReceiver {
     static final boolean DEBUG_LOADERS = false;
     static final String TAG = "Launcher.Model";
 
+    // The favorites columns read by the workspace loader. The icon blob is left out as it is only
+    // needed for the shortcuts whose icon can't be loaded from their package.
+    private static final String[] WORKSPACE_LOAD_PROJECTION = new String[] {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.ICON_TYPE,
+            LauncherSettings.Favorites.ICON_PACKAGE,
+            LauncherSettings.Favorites.ICON_RESOURCE,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+    };
+    private static final String[] WORKSPACE_LOAD_PROJECTION_WITH_ICON;
+    static {
+        final int count = WORKSPACE_LOAD_PROJECTION.length;
+        WORKSPACE_LOAD_PROJECTION_WITH_ICON = new String[count + 1];
+        System.arraycopy(WORKSPACE_LOAD_PROJECTION, 0, WORKSPACE_LOAD_PROJECTION_WITH_ICON, 0,
+                count);
+        WORKSPACE_LOAD_PROJECTION_WITH_ICON[count] = LauncherSettings.Favorites.ICON;
+    }
+
     // true = use a "More Apps" folder for non-workspace apps on upgrade
     // false = strew non-workspace apps across the workspace on upgrade
     public static final boolean UPGRADE_USE_MORE_APPS_FOLDER = false;
 
     private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+
+    // true = load the all apps icons on a pool of threads and bind them in batches as they
+    // become available, sorting incrementally on the ui side
+    // false = load and sort every app on the loader thread, then bind them all at once
+    static final boolean LOAD_ALL_APPS_IN_PARALLEL = true;
+    private static final int MAX_ALL_APPS_LOADER_THREADS = 4;
+    // size of the first batch of apps bound; each batch after that is twice as large
+    private static final int ALL_APPS_FIRST_BATCH_SIZE = 12;
     private final boolean mAppsCanBeOnRemoveableStorage;
 
     private final LauncherAppState mApp;
@@ -94,6 +143,45 @@ public class LauncherModel extends BroadcastReceiver {
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
 
+    // Updates to existing items are held back for this long so that repeated updates to the
+    // same item (e.g. while items are reordered during a drag) are written only once
+    private static final int ITEM_UPDATE_FLUSH_DELAY = 300;
+
+    private static class PendingItemUpdate {
+        ItemInfo item;
+        ContentValues values;
+        StackTraceElement[] stackTrace;
+    }
+
+    // Item updates waiting to be written, keyed by item id, in the order they were first
+    // queued. Guarded by itself.
+    private static final LinkedHashMap<Long, PendingItemUpdate> sPendingItemUpdates =
+            new LinkedHashMap<Long, PendingItemUpdate>();
+    private static ContentResolver sPendingItemUpdatesResolver;
+
+    private static final Runnable sFlushItemUpdatesRunnable = new Runnable() {
+        public void run() {
+            flushPendingItemUpdates();
+        }
+    };
+
+    // Threads used by the loader to load and render all apps icons in parallel
+    private static final ExecutorService sAllAppsLoaderExecutor = Executors.newFixedThreadPool(
+            Math.min(MAX_ALL_APPS_LOADER_THREADS, Runtime.getRuntime().availableProcessors()),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(final Runnable r) {
+                    return new Thread("launcher-apps-loader-" + mCount.getAndIncrement()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
@@ -106,6 +194,9 @@ public class LauncherModel extends BroadcastReceiver {
     // a normal load, we also clear this set of Runnables.
     static final ArrayList<Runnable> mDeferredBindRunnables = new ArrayList<Runnable>();
 
+    // Binds the pages that aren't visible, only accessed on the main thread
+    private BindScheduler mBindScheduler;
+
     private WeakReference<Callbacks> mCallbacks;
 
     // < only access in worker thread >
@@ -139,6 +230,89 @@ public class LauncherModel extends BroadcastReceiver {
     // sBgWorkspaceScreens is the ordered set of workspace screens.
     static final ArrayList<Long> sBgWorkspaceScreens = new ArrayList<Long>();
 
+    // Bumped, with sBgLock held, whenever any of the bg data structures above (other than
+    // sBgDbIconCache) changes. See getBgSnapshot().
+    private static volatile int sBgVersion;
+    private static volatile BgDataSnapshot sBgSnapshot;
+
+    /**
+     * An immutable copy of the bg data structures at a given version, with an index by package.
+     * Readers use it instead of copying the collections with sBgLock
+     * held; the ItemInfos themselves are shared with the model, as before.
+     */
+    static class BgDataSnapshot {
+        final int version;
+        final HashMap<Long, ItemInfo> itemsIdMap;
+        final ArrayList<ItemInfo> workspaceItems;
+        final ArrayList<LauncherAppWidgetInfo> appWidgets;
+        final HashMap<Long, FolderInfo> folders;
+        final ArrayList<Long> workspaceScreens;
+        // Shortcuts (including the ones in folders) and widgets, by package
+        private final HashMap<String, ArrayList<ItemInfo>> mItemsByPackage =
+                new HashMap<String, ArrayList<ItemInfo>>();
+
+        /** Must be called with sBgLock held. */
+        private BgDataSnapshot(int version) {
+            this.version = version;
+            itemsIdMap = new HashMap<Long, ItemInfo>(sBgItemsIdMap);
+            workspaceItems = new ArrayList<ItemInfo>(sBgWorkspaceItems);
+            appWidgets = new ArrayList<LauncherAppWidgetInfo>(sBgAppWidgets);
+            folders = new HashMap<Long, FolderInfo>(sBgFolders);
+            workspaceScreens = new ArrayList<Long>(sBgWorkspaceScreens);
+
+            for (ItemInfo info : itemsIdMap.values()) {
+                ComponentName cn = null;
+                if (info instanceof ShortcutInfo) {
+                    cn = ((ShortcutInfo) info).intent.getComponent();
+                } else if (info instanceof LauncherAppWidgetInfo) {
+                    cn = ((LauncherAppWidgetInfo) info).providerName;
+                }
+                if (cn != null) {
+                    ArrayList<ItemInfo> items = mItemsByPackage.get(cn.getPackageName());
+                    if (items == null) {
+                        items = new ArrayList<ItemInfo>();
+                        mItemsByPackage.put(cn.getPackageName(), items);
+                    }
+                    items.add(info);
+                }
+            }
+        }
+
+        /** Returns the shortcuts and widgets of the package. */
+        List<ItemInfo> getItemsForPackage(String packageName) {
+            ArrayList<ItemInfo> items = mItemsByPackage.get(packageName);
+            return items != null ? Collections.unmodifiableList(items) :
+                    Collections.<ItemInfo>emptyList();
+        }
+    }
+
+    /** Must be called with sBgLock held, after changing any of the bg data structures. */
+    private static void bumpBgVersionLocked() {
+        sBgVersion++;
+    }
+
+    /**
+     * Returns a snapshot of the bg data structures. Readers only take sBgLock to rebuild the
+     * snapshot, the first time it is asked for after a change.
+     */
+    static BgDataSnapshot getBgSnapshot() {
+        BgDataSnapshot snapshot = sBgSnapshot;
+        if (snapshot != null && snapshot.version == sBgVersion) {
+            return snapshot;
+        }
+        synchronized (sBgLock) {
+            snapshot = sBgSnapshot;
+            if (snapshot == null || snapshot.version != sBgVersion) {
+                snapshot = new BgDataSnapshot(sBgVersion);
+                sBgSnapshot = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    // Number of icons read one at a time because the loader didn't project the icon column
+    private int mLazyIconLoads;
+
     // </ only access in worker thread >
 
     private IconCache mIconCache;
@@ -158,6 +332,7 @@ public class LauncherModel extends BroadcastReceiver {
         public void finishBindingItems(boolean upgradePath);
         public void bindAppWidget(LauncherAppWidgetInfo info);
         public void bindAllApplications(ArrayList<AppInfo> apps);
+        public void bindMoreApplications(ArrayList<AppInfo> apps);
         public void bindAppsAdded(ArrayList<Long> newScreens,
                                   ArrayList<ItemInfo> addNotAnimated,
                                   ArrayList<ItemInfo> addAnimated,
@@ -191,6 +366,14 @@ public class LauncherModel extends BroadcastReceiver {
         final Resources res = context.getResources();
         Configuration config = res.getConfiguration();
         mPreviousConfigMcc = config.mcc;
+
+        // Leave half of each frame to input, layout and drawing while binding
+        final Display display = ((WindowManager) context.getSystemService(
+                Context.WINDOW_SERVICE)).getDefaultDisplay();
+        final float refreshRate = display.getRefreshRate();
+        if (refreshRate > 0) {
+            mHandler.setFrameBudget(Math.max(1, (long) (1000 / refreshRate / 2)));
+        }
     }
 
     /** Runs the specified runnable immediately if called from the main thread, otherwise it is
@@ -199,9 +382,12 @@ public class LauncherModel extends BroadcastReceiver {
         runOnMainThread(r, 0);
     }
     private void runOnMainThread(Runnable r, int type) {
+        runOnMainThread(r, type, DeferredHandler.PRIORITY_NORMAL);
+    }
+    private void runOnMainThread(Runnable r, int type, int priority) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
             // If we are on the worker thread, post onto the main handler
-            mHandler.post(r);
+            mHandler.post(r, type, priority);
         } else {
             r.run();
         }
@@ -211,8 +397,17 @@ public class LauncherModel extends BroadcastReceiver {
      * posted on the worker thread handler. */
     private static void runOnWorkerThread(Runnable r) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
+            // Anything queued before this call has to hit the db first
+            flushPendingItemUpdates();
             r.run();
         } else {
+            synchronized (sPendingItemUpdates) {
+                if (!sPendingItemUpdates.isEmpty()) {
+                    // Pull the queued updates in ahead of r
+                    sWorker.removeCallbacks(sFlushItemUpdatesRunnable);
+                    sWorker.post(sFlushItemUpdatesRunnable);
+                }
+            }
             // If we are not on the worker thread, then post to the worker handler
             sWorker.post(r);
         }
@@ -412,20 +607,21 @@ public class LauncherModel extends BroadcastReceiver {
         mDeferredBindRunnables.clear();
         // Remove any queued bind runnables
         mHandler.cancelAllRunnablesOfType(MAIN_THREAD_BINDING_RUNNABLE);
+        cancelBindScheduler();
         // Unbind all the workspace items
         unbindWorkspaceItemsOnMainThread();
     }
 
     /** Unbinds all the sBgWorkspaceItems and sBgAppWidgets on the main thread */
     void unbindWorkspaceItemsOnMainThread() {
+        unbindWorkspaceItemsOnMainThread(DeferredHandler.PRIORITY_NORMAL);
+    }
+    private void unbindWorkspaceItemsOnMainThread(int priority) {
         // Ensure that we don't use the same workspace items data structure on the main thread
         // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpWorkspaceItems = new ArrayList<ItemInfo>();
-        final ArrayList<ItemInfo> tmpAppWidgets = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpWorkspaceItems.addAll(sBgWorkspaceItems);
-            tmpAppWidgets.addAll(sBgAppWidgets);
-        }
+        final BgDataSnapshot snapshot = getBgSnapshot();
+        final ArrayList<ItemInfo> tmpWorkspaceItems = snapshot.workspaceItems;
+        final ArrayList<LauncherAppWidgetInfo> tmpAppWidgets = snapshot.appWidgets;
         Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -437,7 +633,7 @@ public class LauncherModel extends BroadcastReceiver {
                    }
                 }
             };
-        runOnMainThread(r);
+        runOnMainThread(r, 0, priority);
     }
 
     /**
@@ -514,48 +710,89 @@ public class LauncherModel extends BroadcastReceiver {
 
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
-        final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-        final ContentResolver cr = context.getContentResolver();
-
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
-        Runnable r = new Runnable() {
-            public void run() {
-                cr.update(uri, values, null, null);
-                updateItemArrays(item, itemId, stackTrace);
-            }
-        };
-        runOnWorkerThread(r);
+        synchronized (sPendingItemUpdates) {
+            queueItemUpdateLocked(context, item, values, stackTrace);
+        }
     }
 
     static void updateItemsInDatabaseHelper(Context context, final ArrayList<ContentValues> valuesList,
             final ArrayList<ItemInfo> items, final String callingFunction) {
-        final ContentResolver cr = context.getContentResolver();
-
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
-        Runnable r = new Runnable() {
-            public void run() {
-                ArrayList<ContentProviderOperation> ops =
-                        new ArrayList<ContentProviderOperation>();
-                int count = items.size();
-                for (int i = 0; i < count; i++) {
-                    ItemInfo item = items.get(i);
-                    final long itemId = item.id;
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-                    ContentValues values = valuesList.get(i);
+        synchronized (sPendingItemUpdates) {
+            int count = items.size();
+            for (int i = 0; i < count; i++) {
+                queueItemUpdateLocked(context, items.get(i), valuesList.get(i), stackTrace);
+            }
+        }
+    }
 
-                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
-                    updateItemArrays(item, itemId, stackTrace);
+    /**
+     * Queues an update of an existing item, merging it with any update of the same item that
+     * has not been written yet, and (re)schedules the write.
+     */
+    private static void queueItemUpdateLocked(Context context, ItemInfo item,
+            ContentValues values, StackTraceElement[] stackTrace) {
+        PendingItemUpdate update = sPendingItemUpdates.get(item.id);
+        if (update == null) {
+            update = new PendingItemUpdate();
+            update.values = new ContentValues(values);
+            sPendingItemUpdates.put(item.id, update);
+        } else {
+            update.values.putAll(values);
+        }
+        update.item = item;
+        update.stackTrace = stackTrace;
+        sPendingItemUpdatesResolver = context.getContentResolver();
 
-                }
-                try {
-                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        sWorker.removeCallbacks(sFlushItemUpdatesRunnable);
+        sWorker.postDelayed(sFlushItemUpdatesRunnable, ITEM_UPDATE_FLUSH_DELAY);
+    }
+
+    /**
+     * Writes out any queued item updates right away rather than after the usual delay, e.g.
+     * because the launcher is being paused and may not come back.
+     */
+    static void flushPendingItemUpdatesAsync() {
+        synchronized (sPendingItemUpdates) {
+            if (sPendingItemUpdates.isEmpty()) {
+                return;
             }
-        };
-        runOnWorkerThread(r);
+            sWorker.removeCallbacks(sFlushItemUpdatesRunnable);
+            sWorker.post(sFlushItemUpdatesRunnable);
+        }
+    }
+
+    /**
+     * Writes all queued item updates in a single batch. Must be called on the worker thread.
+     */
+    private static void flushPendingItemUpdates() {
+        final ArrayList<PendingItemUpdate> updates;
+        final ContentResolver cr;
+        synchronized (sPendingItemUpdates) {
+            if (sPendingItemUpdates.isEmpty()) {
+                return;
+            }
+            sWorker.removeCallbacks(sFlushItemUpdatesRunnable);
+            updates = new ArrayList<PendingItemUpdate>(sPendingItemUpdates.values());
+            sPendingItemUpdates.clear();
+            cr = sPendingItemUpdatesResolver;
+        }
+
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(updates.size());
+        for (PendingItemUpdate update : updates) {
+            final Uri uri = LauncherSettings.Favorites.getContentUri(update.item.id, false);
+            ops.add(ContentProviderOperation.newUpdate(uri).withValues(update.values).build());
+        }
+        try {
+            cr.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to write " + ops.size() + " item updates", e);
+        }
+        for (PendingItemUpdate update : updates) {
+            updateItemArrays(update.item, update.item.id, update.stackTrace);
+        }
     }
 
     static void updateItemArrays(ItemInfo item, long itemId, StackTraceElement[] stackTrace) {
@@ -595,6 +832,7 @@ public class LauncherModel extends BroadcastReceiver {
             } else {
                 sBgWorkspaceItems.remove(modelItem);
             }
+            bumpBgVersionLocked();
         }
     }
 
@@ -889,6 +1127,7 @@ public class LauncherModel extends BroadcastReceiver {
                             sBgAppWidgets.add((LauncherAppWidgetInfo) item);
                             break;
                     }
+                    bumpBgVersionLocked();
                 }
             }
         };
@@ -943,6 +1182,7 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                     sBgItemsIdMap.remove(item.id);
                     sBgDbIconCache.remove(item);
+                    bumpBgVersionLocked();
                 }
             }
         };
@@ -970,22 +1210,28 @@ public class LauncherModel extends BroadcastReceiver {
         Runnable r = new Runnable() {
             @Override
             public void run() {
-                // Clear the table
-                cr.delete(uri, null, null);
+                // Clear the table and write the new order in a single transaction
+                ArrayList<ContentProviderOperation> ops =
+                        new ArrayList<ContentProviderOperation>();
+                ops.add(ContentProviderOperation.newDelete(uri).build());
                 int count = screensCopy.size();
-                ContentValues[] values = new ContentValues[count];
                 for (int i = 0; i < count; i++) {
                     ContentValues v = new ContentValues();
                     long screenId = screensCopy.get(i);
                     v.put(LauncherSettings.WorkspaceScreens._ID, screenId);
                     v.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, i);
-                    values[i] = v;
+                    ops.add(ContentProviderOperation.newInsert(uri).withValues(v).build());
+                }
+                try {
+                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to update workspace screen order", e);
                 }
-                cr.bulkInsert(uri, values);
 
                 synchronized (sBgLock) {
                     sBgWorkspaceScreens.clear();
                     sBgWorkspaceScreens.addAll(screensCopy);
+                    bumpBgVersionLocked();
                 }
             }
         };
@@ -1007,6 +1253,7 @@ public class LauncherModel extends BroadcastReceiver {
                     sBgFolders.remove(info.id);
                     sBgDbIconCache.remove(info);
                     sBgWorkspaceItems.remove(info);
+                    bumpBgVersionLocked();
                 }
 
                 cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
@@ -1017,6 +1264,7 @@ public class LauncherModel extends BroadcastReceiver {
                         sBgItemsIdMap.remove(childInfo.id);
                         sBgDbIconCache.remove(childInfo);
                     }
+                    bumpBgVersionLocked();
                 }
             }
         };
@@ -1175,6 +1423,8 @@ public class LauncherModel extends BroadcastReceiver {
             // Clear any deferred bind-runnables from the synchronized load process
             // We must do this before any loading/binding is scheduled below.
             mDeferredBindRunnables.clear();
+            // Likewise, stop binding the pages of the previous load
+            cancelBindSchedulerOnMainThread();
 
             // Don't bother to start the thread if we know it's not going to do anything
             if (mCallbacks != null && mCallbacks.get() != null) {
@@ -1192,6 +1442,34 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
+    /** Called on the main thread when the workspace switches to the given screen. */
+    void prioritizeBindingOfScreen(long screenId) {
+        if (mBindScheduler != null) {
+            mBindScheduler.prioritizeScreen(screenId);
+        }
+    }
+
+    private void cancelBindScheduler() {
+        if (mBindScheduler != null) {
+            mBindScheduler.cancel();
+            mBindScheduler = null;
+        }
+    }
+
+    private void cancelBindSchedulerOnMainThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            cancelBindScheduler();
+        } else {
+            // Posted before anything the new load binds, so it can't cancel the new scheduler;
+            // at the priority of the first page, which is bound before anything else
+            mHandler.post(new Runnable() {
+                public void run() {
+                    cancelBindScheduler();
+                }
+            }, 0, DeferredHandler.PRIORITY_HIGH);
+        }
+    }
+
     void bindRemainingSynchronousPages() {
         // Post the remaining side pages to be loaded
         if (!mDeferredBindRunnables.isEmpty()) {
@@ -1207,6 +1485,8 @@ public class LauncherModel extends BroadcastReceiver {
             if (mLoaderTask != null) {
                 mLoaderTask.stopLocked();
             }
+            mDeferredBindRunnables.clear();
+            cancelBindSchedulerOnMainThread();
         }
     }
 
@@ -1304,25 +1584,27 @@ public class LauncherModel extends BroadcastReceiver {
             return isUpgradePath;
         }
 
+        /**
+         * Called once the workspace is bound, including the pages the bind scheduler binds
+         * over the following frames, or once binding it was cancelled or never started.
+         */
+        private void onWorkspaceBindingFinished() {
+            synchronized (LoaderTask.this) {
+                mLoadAndBindStepFinished = true;
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "done with previous binding step");
+                }
+                LoaderTask.this.notify();
+            }
+        }
+
         private void waitForIdle() {
-            // Wait until the either we're stopped or the other threads are done.
-            // This way we don't start loading all apps until the workspace has settled
-            // down.
+            // Wait until the either we're stopped or the workspace is bound. This way we don't
+            // start loading all apps until the workspace has settled down; the main thread
+            // going idle isn't enough, since the other pages are bound over several frames.
             synchronized (LoaderTask.this) {
                 final long workspaceWaitTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
-                mHandler.postIdle(new Runnable() {
-                        public void run() {
-                            synchronized (LoaderTask.this) {
-                                mLoadAndBindStepFinished = true;
-                                if (DEBUG_LOADERS) {
-                                    Log.d(TAG, "done with previous binding step");
-                                }
-                                LoaderTask.this.notify();
-                            }
-                        }
-                    });
-
                 while (!mStopped && !mLoadAndBindStepFinished && !mFlushingWorkerThread) {
                     try {
                         // Just in case mFlushingWorkerThread changes but we aren't woken up,
@@ -1593,6 +1875,7 @@ public class LauncherModel extends BroadcastReceiver {
                 sBgItemsIdMap.clear();
                 sBgDbIconCache.clear();
                 sBgWorkspaceScreens.clear();
+                bumpBgVersionLocked();
             }
         }
 
@@ -1600,6 +1883,9 @@ public class LauncherModel extends BroadcastReceiver {
         private boolean loadWorkspace() {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
+            // Make sure the db reflects every change made so far
+            flushPendingItemUpdates();
+
             final Context context = mContext;
             final ContentResolver contentResolver = context.getContentResolver();
             final PackageManager manager = context.getPackageManager();
@@ -1623,7 +1909,16 @@ public class LauncherModel extends BroadcastReceiver {
                 final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
                 final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                // The icon blobs are only read up front when every stored app icon is compared
+                // against the loaded one (see queueIconToBeChecked); otherwise they are read on
+                // demand for the few shortcuts that need them.
+                final String[] projection = mAppsCanBeOnRemoveableStorage ?
+                        WORKSPACE_LOAD_PROJECTION_WITH_ICON : WORKSPACE_LOAD_PROJECTION;
+                final Cursor c = contentResolver.query(contentUri, projection, null, null, null);
+                final long queryTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+                final LoaderPackageCache packageCache = new LoaderPackageCache(manager);
+                int rowCount = 0;
+                mLazyIconLoads = 0;
 
                 // +1 for the hotseat (it can be larger than the workspace)
                 // Load workspace in reverse order to ensure that latest items are loaded first (and
@@ -1638,7 +1933,7 @@ public class LauncherModel extends BroadcastReceiver {
                             (LauncherSettings.Favorites.TITLE);
                     final int iconTypeIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.ICON_TYPE);
-                    final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+                    final int iconIndex = c.getColumnIndex(LauncherSettings.Favorites.ICON);
                     final int iconPackageIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.ICON_PACKAGE);
                     final int iconResourceIndex = c.getColumnIndexOrThrow(
@@ -1673,6 +1968,7 @@ public class LauncherModel extends BroadcastReceiver {
                     Intent intent;
 
                     while (!mStopped && c.moveToNext()) {
+                        rowCount++;
                         AtomicBoolean deleteOnItemOverlap = new AtomicBoolean(false);
                         try {
                             int itemType = c.getInt(itemTypeIndex);
@@ -1685,7 +1981,7 @@ public class LauncherModel extends BroadcastReceiver {
                                 try {
                                     intent = Intent.parseUri(intentDescription, 0);
                                     ComponentName cn = intent.getComponent();
-                                    if (cn != null && !isValidPackageComponent(manager, cn)) {
+                                    if (cn != null && !packageCache.isValidComponent(cn)) {
                                         if (!mAppsCanBeOnRemoveableStorage) {
                                             // Log the invalid package, and remove it from the db
                                             Launcher.addDumpLog(TAG, "Invalid package removed: " + cn, true);
@@ -1705,7 +2001,7 @@ public class LauncherModel extends BroadcastReceiver {
 
                                 if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
                                     info = getShortcutInfo(manager, intent, context, c, iconIndex,
-                                            titleIndex, mLabelCache);
+                                            titleIndex, mLabelCache, packageCache);
                                 } else {
                                     info = getShortcutInfo(c, context, iconTypeIndex,
                                             iconPackageIndex, iconResourceIndex, iconIndex,
@@ -1767,7 +2063,8 @@ public class LauncherModel extends BroadcastReceiver {
 
                                     // now that we've loaded everthing re-save it with the
                                     // icon in case it disappears somehow.
-                                    queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex);
+                                    queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex,
+                                            context);
                                 } else {
                                     throw new RuntimeException("Unexpected null ShortcutInfo");
                                 }
@@ -1899,6 +2196,7 @@ public class LauncherModel extends BroadcastReceiver {
                     clearSBgDataStructures();
                     return false;
                 }
+                final long rowsTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
                 if (itemsToRemove.size() > 0) {
                     ContentProviderClient client = contentResolver.acquireContentProviderClient(
@@ -1966,8 +2264,16 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
 
+                bumpBgVersionLocked();
+
                 if (DEBUG_LOADERS) {
-                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
+                    final long now = SystemClock.uptimeMillis();
+                    Log.d(TAG, "loaded workspace in " + (now-t) + "ms");
+                    Log.d(TAG, "  query: " + (queryTime-t) + "ms, " + rowCount + " rows: "
+                            + (rowsTime-queryTime) + "ms, cleanup and screens: "
+                            + (now-rowsTime) + "ms");
+                    Log.d(TAG, "  packages checked: " + packageCache.getPackageCount()
+                            + ", lazy icon loads: " + mLazyIconLoads);
                     Log.d(TAG, "workspace layout: ");
                     int nScreens = occupied.size();
                     for (int y = 0; y < countY; y++) {
@@ -2113,7 +2419,7 @@ public class LauncherModel extends BroadcastReceiver {
         }
 
         private void bindWorkspaceScreens(final Callbacks oldCallbacks,
-                final ArrayList<Long> orderedScreens) {
+                final ArrayList<Long> orderedScreens, int priority) {
             final Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -2123,17 +2429,13 @@ public class LauncherModel extends BroadcastReceiver {
                     }
                 }
             };
-            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
         }
 
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                 final ArrayList<ItemInfo> workspaceItems,
                 final ArrayList<LauncherAppWidgetInfo> appWidgets,
-                final HashMap<Long, FolderInfo> folders,
-                ArrayList<Runnable> deferredBindRunnables) {
-
-            final boolean postOnMainThread = (deferredBindRunnables != null);
-
+                final HashMap<Long, FolderInfo> folders, int priority) {
             // Bind the workspace items
             int N = workspaceItems.size();
             for (int i = 0; i < N; i += ITEMS_CHUNK) {
@@ -2149,11 +2451,7 @@ public class LauncherModel extends BroadcastReceiver {
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
-                } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
-                }
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
             }
 
             // Bind the folders
@@ -2166,11 +2464,7 @@ public class LauncherModel extends BroadcastReceiver {
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
-                } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
-                }
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
             }
 
             // Bind the widgets, one at a time
@@ -2185,11 +2479,64 @@ public class LauncherModel extends BroadcastReceiver {
                         }
                     }
                 };
-                if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
-                } else {
-                    runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
-                }
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, priority);
+            }
+        }
+
+        /**
+         * Adds the tasks binding the given items, which are not on the current page, to the
+         * scheduler. Items are bound in chunks that don't span screens so that each chunk can be
+         * prioritized on its own.
+         */
+        private void scheduleWorkspaceItems(final Callbacks oldCallbacks,
+                BindScheduler scheduler, long currentScreenId,
+                final ArrayList<ItemInfo> workspaceItems,
+                final ArrayList<LauncherAppWidgetInfo> appWidgets,
+                final HashMap<Long, FolderInfo> folders) {
+            // Bind the folders first, they only register the folders with the launcher
+            if (!folders.isEmpty()) {
+                scheduler.add(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindFolders(folders);
+                        }
+                    }
+                }, currentScreenId, false);
+            }
+
+            // Bind the workspace items, which are sorted by screen
+            final int N = workspaceItems.size();
+            int i = 0;
+            while (i < N) {
+                final int start = i;
+                final long screenId = workspaceItems.get(start).screenId;
+                do {
+                    i++;
+                } while (i < N && i - start < ITEMS_CHUNK &&
+                        workspaceItems.get(i).screenId == screenId);
+                final int end = i;
+                scheduler.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindItems(workspaceItems, start, end, false);
+                        }
+                    }
+                }, screenId, false);
+            }
+
+            // Bind the widgets, one at a time
+            for (final LauncherAppWidgetInfo widget : appWidgets) {
+                scheduler.add(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindAppWidget(widget);
+                        }
+                    }
+                }, widget.screenId, true);
             }
         }
 
@@ -2206,6 +2553,7 @@ public class LauncherModel extends BroadcastReceiver {
             if (oldCallbacks == null) {
                 // This launcher has exited and nobody bothered to tell us.  Just bail.
                 Log.w(TAG, "LoaderTask running with no launcher");
+                onWorkspaceBindingFinished();
                 return;
             }
 
@@ -2213,22 +2561,25 @@ public class LauncherModel extends BroadcastReceiver {
             final int currentScreen = isLoadingSynchronously ? synchronizeBindPage :
                 oldCallbacks.getCurrentWorkspaceScreen();
 
+            // The current page is bound ahead of anything else queued on the main thread, the
+            // runnables that bind it keep their order among themselves
+            final int firstPagePriority = DeferredHandler.PRIORITY_HIGH;
+            if (!isLoadingSynchronously) {
+                // The bind runnables of a previous bind still queued would now run after this
+                // bind clears the workspace; this bind binds everything again anyway
+                mHandler.cancelAllRunnablesOfType(MAIN_THREAD_BINDING_RUNNABLE);
+            }
+
             // Load all the items that are on the current page first (and in the process, unbind
             // all the existing workspace items before we call startBinding() below.
-            unbindWorkspaceItemsOnMainThread();
-            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
-            ArrayList<LauncherAppWidgetInfo> appWidgets =
-                    new ArrayList<LauncherAppWidgetInfo>();
-            HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>();
-            HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
-            ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                folders.putAll(sBgFolders);
-                itemsIdMap.putAll(sBgItemsIdMap);
-                orderedScreenIds.addAll(sBgWorkspaceScreens);
-            }
+            unbindWorkspaceItemsOnMainThread(firstPagePriority);
+            // The snapshot is shared, only the lists that get sorted or filtered are copied
+            final BgDataSnapshot snapshot = getBgSnapshot();
+            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>(snapshot.workspaceItems);
+            ArrayList<LauncherAppWidgetInfo> appWidgets = snapshot.appWidgets;
+            HashMap<Long, FolderInfo> folders = snapshot.folders;
+            HashMap<Long, ItemInfo> itemsIdMap = snapshot.itemsIdMap;
+            ArrayList<Long> orderedScreenIds = snapshot.workspaceScreens;
 
             ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
             ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
@@ -2252,19 +2603,21 @@ public class LauncherModel extends BroadcastReceiver {
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
                 public void run() {
+                    // The pages of a previous bind must not be bound into the cleared workspace
+                    cancelBindScheduler();
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
                         callbacks.startBinding();
                     }
                 }
             };
-            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, firstPagePriority);
 
-            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            bindWorkspaceScreens(oldCallbacks, orderedScreenIds, firstPagePriority);
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
+                    currentFolders, firstPagePriority);
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -2274,17 +2627,23 @@ public class LauncherModel extends BroadcastReceiver {
                         }
                     }
                 };
-                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE, firstPagePriority);
             }
 
-            // Load all the remaining pages (if we are loading synchronously, we want to defer this
-            // work until after the first render)
+            // Load all the remaining pages, the ones closest to the current page first and a few
+            // items per frame (if we are loading synchronously, we want to defer this work until
+            // after the first render)
             mDeferredBindRunnables.clear();
-            bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
+            // The scheduler works with screen ids, currentScreen is the index of the page
+            final long currentScreenId =
+                    currentScreen >= 0 && currentScreen < orderedScreenIds.size() ?
+                    orderedScreenIds.get(currentScreen) : -1;
+            final BindScheduler scheduler = new BindScheduler(orderedScreenIds, currentScreenId);
+            scheduleWorkspaceItems(oldCallbacks, scheduler, currentScreenId, otherWorkspaceItems,
+                    otherAppWidgets, otherFolders);
 
             // Tell the workspace that we're done binding items
-            r = new Runnable() {
+            scheduler.setOnComplete(new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
@@ -2298,6 +2657,23 @@ public class LauncherModel extends BroadcastReceiver {
                     }
 
                     mIsLoadingAndBindingWorkspace = false;
+                    if (mBindScheduler == scheduler) {
+                        mBindScheduler = null;
+                    }
+                    onWorkspaceBindingFinished();
+                }
+            });
+            scheduler.setOnCancel(new Runnable() {
+                public void run() {
+                    // Don't keep the loader waiting for pages that won't be bound
+                    onWorkspaceBindingFinished();
+                }
+            });
+            r = new Runnable() {
+                public void run() {
+                    cancelBindScheduler();
+                    mBindScheduler = scheduler;
+                    scheduler.start();
                 }
             };
             if (isLoadingSynchronously) {
@@ -2386,6 +2762,20 @@ public class LauncherModel extends BroadcastReceiver {
             if (apps == null || apps.isEmpty()) {
                 return;
             }
+            // Pull in the icons and labels persisted by a previous run
+            mIconCache.startBulkLoad();
+
+            if (LOAD_ALL_APPS_IN_PARALLEL && !AppsCustomizePagedView.DISABLE_ALL_APPS) {
+                final boolean complete = loadAllAppsInParallel(oldCallbacks, apps);
+                mIconCache.finishBulkLoad(complete);
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "Icons processed in parallel in "
+                            + (SystemClock.uptimeMillis() - loadTime) + "ms");
+                }
+                return;
+            }
+            mIconCache.preloadTitles(apps, mLabelCache);
+
             // Sort the applications by name
             final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
             Collections.sort(apps,
@@ -2402,6 +2792,7 @@ public class LauncherModel extends BroadcastReceiver {
                 mBgAllAppsList.add(new AppInfo(packageManager, app,
                         mIconCache, mLabelCache));
             }
+            mIconCache.finishBulkLoad();
 
             // Huh? Shouldn't this be inside the Runnable below?
             final ArrayList<AppInfo> added = mBgAllAppsList.added;
@@ -2430,14 +2821,118 @@ public class LauncherModel extends BroadcastReceiver {
             }
         }
 
-        public void dumpState() {
-            synchronized (sBgLock) {
-                Log.d(TAG, "mLoaderTask.mContext=" + mContext);
-                Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
-                Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
-                Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
-                Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
+        /**
+         * Builds the AppInfos for the supplied activities on sAllAppsLoaderExecutor and binds
+         * them in growing batches in the order they finish loading. The apps are not sorted
+         * here; the all apps view inserts each batch in place.
+         *
+         * Returns once no worker is building an AppInfo anymore, so that the icon cache can
+         * end its bulk load; returns whether every app was loaded, which isn't the case if the
+         * loader was stopped.
+         */
+        private boolean loadAllAppsInParallel(final Callbacks oldCallbacks,
+                List<ResolveInfo> apps) {
+            final PackageManager packageManager = mContext.getPackageManager();
+            final CompletionService<AppInfo> completionService =
+                    new ExecutorCompletionService<AppInfo>(sAllAppsLoaderExecutor);
+            // Set once the loader stops, so that the apps not started yet are skipped
+            final AtomicBoolean abandoned = new AtomicBoolean();
+            for (final ResolveInfo app : apps) {
+                completionService.submit(new Callable<AppInfo>() {
+                    public AppInfo call() {
+                        if (abandoned.get()) {
+                            return null;
+                        }
+                        // The label cache is not thread safe, so don't use it here.
+                        // This builds the icon bitmaps.
+                        return new AppInfo(packageManager, app, mIconCache, null);
+                    }
+                });
             }
+
+            final int count = apps.size();
+            int done = 0;
+            int batchSize = ALL_APPS_FIRST_BATCH_SIZE;
+            boolean firstBatch = true;
+            boolean interrupted = false;
+            while (done < count) {
+                final Future<AppInfo> future;
+                try {
+                    future = completionService.take();
+                } catch (InterruptedException e) {
+                    // Still wait for the workers, they use the icon cache's bulk load
+                    Log.w(TAG, "Interrupted while loading apps");
+                    interrupted = true;
+                    abandoned.set(true);
+                    continue;
+                }
+                done++;
+                if (mStopped) {
+                    // Don't leave the pool busy with work for a loader that has stopped
+                    abandoned.set(true);
+                }
+                if (abandoned.get()) {
+                    continue;
+                }
+                try {
+                    mBgAllAppsList.add(future.get());
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Unable to load app", e.getCause());
+                } catch (InterruptedException e) {
+                    // Can't happen, the future is done
+                    interrupted = true;
+                }
+                if (mBgAllAppsList.added.size() >= batchSize) {
+                    bindAllAppsBatch(oldCallbacks, firstBatch);
+                    firstBatch = false;
+                    batchSize *= 2;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (abandoned.get()) {
+                // A stopped loader doesn't bind what it has
+                return false;
+            }
+            if (firstBatch || !mBgAllAppsList.added.isEmpty()) {
+                bindAllAppsBatch(oldCallbacks, firstBatch);
+            }
+            return true;
+        }
+
+        private void bindAllAppsBatch(final Callbacks oldCallbacks, final boolean firstBatch) {
+            final ArrayList<AppInfo> added = mBgAllAppsList.added;
+            mBgAllAppsList.added = new ArrayList<AppInfo>();
+
+            // Post callback on main thread
+            mHandler.post(new Runnable() {
+                public void run() {
+                    final long bindTime = SystemClock.uptimeMillis();
+                    final Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        if (firstBatch) {
+                            callbacks.bindAllApplications(added);
+                        } else {
+                            callbacks.bindMoreApplications(added);
+                        }
+                        if (DEBUG_LOADERS) {
+                            Log.d(TAG, "bound batch of " + added.size() + " apps in "
+                                + (SystemClock.uptimeMillis() - bindTime) + "ms");
+                        }
+                    } else {
+                        Log.i(TAG, "not binding apps: no Launcher activity");
+                    }
+                }
+            });
+        }
+
+        public void dumpState() {
+            Log.d(TAG, "mLoaderTask.mContext=" + mContext);
+            Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
+            Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
+            Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
+            Log.d(TAG, "mItems size=" + getBgSnapshot().workspaceItems.size());
         }
     }
 
@@ -2464,6 +2959,9 @@ public class LauncherModel extends BroadcastReceiver {
         public void run() {
             final Context context = mApp.getContext();
 
+            // The model has to be up to date before we look for items of these packages
+            flushPendingItemUpdates();
+
             final String[] packages = mPackages;
             final int N = packages.length;
             switch (mOp) {
@@ -2478,7 +2976,7 @@ public class LauncherModel extends BroadcastReceiver {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.updatePackage " + packages[i]);
                         mBgAllAppsList.updatePackage(context, packages[i]);
                         WidgetPreviewLoader.removePackageFromDb(
-                                mApp.getWidgetPreviewCacheDb(), packages[i]);
+                                mApp.getWidgetPreviewStore(), packages[i]);
                     }
                     break;
                 case OP_REMOVE:
@@ -2487,7 +2985,7 @@ public class LauncherModel extends BroadcastReceiver {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.removePackage " + packages[i]);
                         mBgAllAppsList.removePackage(packages[i]);
                         WidgetPreviewLoader.removePackageFromDb(
-                                mApp.getWidgetPreviewCacheDb(), packages[i]);
+                                mApp.getWidgetPreviewStore(), packages[i]);
                     }
                     break;
             }
@@ -2628,6 +3126,92 @@ public class LauncherModel extends BroadcastReceiver {
         return widgetsAndShortcuts;
     }
 
+    /**
+     * Caches the package manager lookups made while loading the workspace, so that each package
+     * and component is queried once no matter how many times it is on the workspace. Packages
+     * are queried without their components, which can make a reply too large for the binder;
+     * components are resolved one at a time, or from the launcher activities of their package.
+     */
+    private static class LoaderPackageCache {
+        private final PackageManager mPm;
+        private final HashMap<String, PackageInfo> mPackageInfos =
+                new HashMap<String, PackageInfo>();
+        private final HashMap<ComponentName, Boolean> mValidComponents =
+                new HashMap<ComponentName, Boolean>();
+        private final HashMap<String, List<ResolveInfo>> mLauncherActivities =
+                new HashMap<String, List<ResolveInfo>>();
+
+        LoaderPackageCache(PackageManager pm) {
+            mPm = pm;
+        }
+
+        /** Returns the package info, or null if the package isn't installed. */
+        PackageInfo getPackageInfo(String packageName) {
+            if (mPackageInfos.containsKey(packageName)) {
+                return mPackageInfos.get(packageName);
+            }
+            PackageInfo pi = null;
+            try {
+                // Only the application info and install time are read
+                pi = mPm.getPackageInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                // Cache the miss as well
+            }
+            mPackageInfos.put(packageName, pi);
+            return pi;
+        }
+
+        /** Same as {@link LauncherModel#isValidPackageComponent}. */
+        boolean isValidComponent(ComponentName cn) {
+            if (cn == null) {
+                return false;
+            }
+            final PackageInfo pi = getPackageInfo(cn.getPackageName());
+            if (pi == null || !pi.applicationInfo.enabled) {
+                return false;
+            }
+            Boolean valid = mValidComponents.get(cn);
+            if (valid == null) {
+                valid = isLauncherActivity(cn);
+                if (!valid) {
+                    try {
+                        valid = mPm.getActivityInfo(cn, 0) != null;
+                    } catch (NameNotFoundException e) {
+                        valid = false;
+                    }
+                }
+                mValidComponents.put(cn, valid);
+            }
+            return valid;
+        }
+
+        private boolean isLauncherActivity(ComponentName cn) {
+            for (ResolveInfo info : getLauncherActivities(cn.getPackageName())) {
+                if (info.activityInfo != null
+                        && cn.getClassName().equals(info.activityInfo.name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<ResolveInfo> getLauncherActivities(String packageName) {
+            List<ResolveInfo> infos = mLauncherActivities.get(packageName);
+            if (infos == null) {
+                Intent intent = new Intent(Intent.ACTION_MAIN, null);
+                intent.addCategory(Intent.CATEGORY_LAUNCHER);
+                intent.setPackage(packageName);
+                infos = mPm.queryIntentActivities(intent, 0);
+                mLauncherActivities.put(packageName, infos);
+            }
+            return infos;
+        }
+
+        int getPackageCount() {
+            return mPackageInfos.size();
+        }
+    }
+
     private boolean isValidPackageComponent(PackageManager pm, ComponentName cn) {
         if (cn == null) {
             return false;
@@ -2662,9 +3246,23 @@ public class LauncherModel extends BroadcastReceiver {
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
             Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache) {
+        return getShortcutInfo(manager, intent, context, c, iconIndex, titleIndex, labelCache,
+                null);
+    }
+
+    private ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent, Context context,
+            Cursor c, int iconIndex, int titleIndex, HashMap<Object, CharSequence> labelCache,
+            LoaderPackageCache packageCache) {
         ComponentName componentName = intent.getComponent();
         final ShortcutInfo info = new ShortcutInfo();
-        if (componentName != null && !isValidPackageComponent(manager, componentName)) {
+        if (packageCache != null) {
+            if (componentName != null && !packageCache.isValidComponent(componentName)) {
+                Log.d(TAG, "Invalid package found in getShortcutInfo: " + componentName);
+                return null;
+            }
+            info.initFlagsAndFirstInstallTime(
+                    packageCache.getPackageInfo(componentName.getPackageName()));
+        } else if (componentName != null && !isValidPackageComponent(manager, componentName)) {
             Log.d(TAG, "Invalid package found in getShortcutInfo: " + componentName);
             return null;
         } else {
@@ -2691,10 +3289,15 @@ public class LauncherModel extends BroadcastReceiver {
         Bitmap icon = null;
         ResolveInfo resolveInfo = null;
         ComponentName oldComponent = intent.getComponent();
-        Intent newIntent = new Intent(intent.getAction(), null);
-        newIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        newIntent.setPackage(oldComponent.getPackageName());
-        List<ResolveInfo> infos = manager.queryIntentActivities(newIntent, 0);
+        List<ResolveInfo> infos;
+        if (packageCache != null && Intent.ACTION_MAIN.equals(intent.getAction())) {
+            infos = packageCache.getLauncherActivities(oldComponent.getPackageName());
+        } else {
+            Intent newIntent = new Intent(intent.getAction(), null);
+            newIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+            newIntent.setPackage(oldComponent.getPackageName());
+            infos = manager.queryIntentActivities(newIntent, 0);
+        }
         for (ResolveInfo i : infos) {
             ComponentName cn = new ComponentName(i.activityInfo.packageName,
                     i.activityInfo.name);
@@ -2777,13 +3380,7 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     private ArrayList<ItemInfo> getItemInfoForPackageName(final String pn) {
-        ItemInfoFilter filter  = new ItemInfoFilter() {
-            @Override
-            public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn) {
-                return cn.getPackageName().equals(pn);
-            }
-        };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        return new ArrayList<ItemInfo>(getBgSnapshot().getItemsForPackage(pn));
     }
 
     private ArrayList<ItemInfo> getItemInfoForComponentName(final ComponentName cname) {
@@ -2793,7 +3390,8 @@ public class LauncherModel extends BroadcastReceiver {
                 return cn.equals(cname);
             }
         };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        return filterItemInfos(getBgSnapshot().getItemsForPackage(cname.getPackageName()),
+                filter);
     }
 
     public static boolean isShortcutInfoUpdateable(ItemInfo i) {
@@ -2882,7 +3480,7 @@ public class LauncherModel extends BroadcastReceiver {
             Log.d(TAG, "getIconFromCursor app="
                     + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
         }
-        byte[] data = c.getBlob(iconIndex);
+        byte[] data = getIconBlob(c, iconIndex, context);
         try {
             return Utilities.createIconBitmap(
                     BitmapFactory.decodeByteArray(data, 0, data.length), context);
@@ -2891,6 +3489,32 @@ public class LauncherModel extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Returns the stored icon of the item the cursor is on. If the cursor was queried without
+     * the icon column (iconIndex < 0), the icon of just that item is read from the db.
+     */
+    private byte[] getIconBlob(Cursor c, int iconIndex, Context context) {
+        if (iconIndex >= 0) {
+            return c.getBlob(iconIndex);
+        }
+        final int idIndex = c.getColumnIndex(LauncherSettings.Favorites._ID);
+        if (idIndex < 0) {
+            return null;
+        }
+        mLazyIconLoads++;
+        final Cursor iconCursor = context.getContentResolver().query(
+                LauncherSettings.Favorites.getContentUri(c.getLong(idIndex), false),
+                new String[] { LauncherSettings.Favorites.ICON }, null, null, null);
+        if (iconCursor == null) {
+            return null;
+        }
+        try {
+            return iconCursor.moveToFirst() ? iconCursor.getBlob(0) : null;
+        } finally {
+            iconCursor.close();
+        }
+    }
+
     ShortcutInfo addShortcut(Context context, Intent data, long container, int screen,
             int cellX, int cellY, boolean notify) {
         final ShortcutInfo info = infoFromShortcutIntent(context, data, null);
@@ -3011,7 +3635,7 @@ public class LauncherModel extends BroadcastReceiver {
     }
 
     boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+            int iconIndex, Context context) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnRemoveableStorage) {
             return false;
@@ -3023,7 +3647,7 @@ public class LauncherModel extends BroadcastReceiver {
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
         if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+            cache.put(info, getIconBlob(c, iconIndex, context));
             return true;
         }
         return false;
@@ -3172,6 +3796,7 @@ public class LauncherModel extends BroadcastReceiver {
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.added", mBgAllAppsList.added);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.removed", mBgAllAppsList.removed);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.modified", mBgAllAppsList.modified);
+        mHandler.dumpState();
         if (mLoaderTask != null) {
             mLoaderTask.dumpState();
         } else {
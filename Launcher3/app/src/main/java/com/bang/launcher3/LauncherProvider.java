@@ -22,11 +22,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
@@ -34,6 +37,7 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -43,6 +47,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.AttributeSet;
@@ -58,6 +63,9 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class LauncherProvider extends ContentProvider {
@@ -95,6 +103,18 @@ public class LauncherProvider extends ContentProvider {
     private DatabaseHelper mOpenHelper;
     private static boolean sJustLoadedFromOldDb;
 
+    /**
+     * State of the applyBatch() call running on the current thread, if any: the compiled
+     * statements reused across its operations and the tables whose change notifications are
+     * deferred until it commits.
+     */
+    private static class BatchState {
+        final HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        final HashSet<String> notifyTables = new HashSet<String>();
+    }
+
+    private final ThreadLocal<BatchState> mBatchState = new ThreadLocal<BatchState>();
+
     @Override
     public boolean onCreate() {
         final Context context = getContext();
@@ -148,7 +168,13 @@ public class LauncherProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         addModifiedTime(initialValues);
-        final long rowId = dbInsertAndCheck(mOpenHelper, db, args.table, null, initialValues);
+        final BatchState batch = mBatchState.get();
+        final long rowId;
+        if (batch != null) {
+            rowId = insertWithStatement(batch.statements, db, args.table, initialValues);
+        } else {
+            rowId = dbInsertAndCheck(mOpenHelper, db, args.table, null, initialValues);
+        }
         if (rowId <= 0) return null;
 
         uri = ContentUris.withAppendedId(uri, rowId);
@@ -162,18 +188,24 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final BatchState batch = mBatchState.get();
+        final HashMap<String, SQLiteStatement> statements = batch != null ?
+                batch.statements : new HashMap<String, SQLiteStatement>();
         db.beginTransaction();
         try {
             int numValues = values.length;
             for (int i = 0; i < numValues; i++) {
                 addModifiedTime(values[i]);
-                if (dbInsertAndCheck(mOpenHelper, db, args.table, null, values[i]) < 0) {
+                if (insertWithStatement(statements, db, args.table, values[i]) < 0) {
                     return 0;
                 }
             }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
+            if (batch == null) {
+                closeStatements(statements);
+            }
         }
 
         sendNotify(uri);
@@ -197,16 +229,138 @@ public class LauncherProvider extends ContentProvider {
 
         addModifiedTime(values);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
+        final BatchState batch = mBatchState.get();
+        int count;
+        if (batch != null && uri.getPathSegments().size() == 2) {
+            // A single item, as updated by the model; reuse one statement for all of them
+            count = updateItemWithStatement(batch.statements, db, args.table,
+                    ContentUris.parseId(uri), values);
+        } else {
+            count = db.update(args.table, values, args.where, args.args);
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
     }
 
+    /**
+     * Applies all the operations in a single transaction. Statements are compiled once per
+     * distinct set of columns, and change notifications are sent once per table after the
+     * transaction commits instead of once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatchState.get() != null) {
+            // Nested batch, already inside our transaction
+            return super.applyBatch(operations);
+        }
+        final long t = LOGD ? SystemClock.uptimeMillis() : 0;
+        final BatchState batch = new BatchState();
+        ContentProviderResult[] results;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mBatchState.set(batch);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchState.set(null);
+            closeStatements(batch.statements);
+        }
+
+        final ContentResolver resolver = getContext().getContentResolver();
+        for (String table : batch.notifyTables) {
+            resolver.notifyChange(Uri.parse("content://" + AUTHORITY + "/" + table), null);
+        }
+        if (LOGD) {
+            Log.d(TAG, "applyBatch of " + operations.size() + " operations took "
+                    + (SystemClock.uptimeMillis() - t) + "ms");
+        }
+        return results;
+    }
+
+    private static long insertWithStatement(HashMap<String, SQLiteStatement> statements,
+            SQLiteDatabase db, String table, ContentValues values) {
+        if (!values.containsKey(LauncherSettings.Favorites._ID)) {
+            throw new RuntimeException("Error: attempting to add item without specifying an id");
+        }
+        final String[] columns = getSortedColumns(values);
+        final String key = "INSERT " + table + " " + Arrays.toString(columns);
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ");
+            sql.append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(")");
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            // Match SQLiteDatabase.insert(), which reports failure as -1
+            Log.e(TAG, "Error inserting into " + table, e);
+            return -1;
+        }
+    }
+
+    private static int updateItemWithStatement(HashMap<String, SQLiteStatement> statements,
+            SQLiteDatabase db, String table, long id, ContentValues values) {
+        final String[] columns = getSortedColumns(values);
+        final String key = "UPDATE " + table + " " + Arrays.toString(columns);
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            sql.append(table).append(" SET ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(columns[i]).append("=?");
+            }
+            sql.append(" WHERE _id=?");
+            statement = db.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+        statement.bindLong(columns.length + 1, id);
+        return statement.executeUpdateDelete();
+    }
+
+    private static String[] getSortedColumns(ContentValues values) {
+        final String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void closeStatements(HashMap<String, SQLiteStatement> statements) {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+    }
+
     private void sendNotify(Uri uri) {
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
         if (notify == null || "true".equals(notify)) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            final BatchState batch = mBatchState.get();
+            if (batch != null) {
+                batch.notifyTables.add(uri.getPathSegments().get(0));
+            } else {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
         }
     }
 
@@ -24,14 +24,13 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.ListAdapter;
 
 import com.bang.photos.BitmapRegionTileSource;
@@ -44,15 +43,20 @@ import java.util.ArrayList;
 
 public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
     private static String TAG = "Launcher3.SavedWallpaperImages";
+    private static final int PAGE_SIZE = 24;
     private ImageDb mDb;
-    ArrayList<SavedWallpaperTile> mImages;
+    // The pages loaded so far
+    ArrayList<SavedWallpaperTile> mImages = new ArrayList<SavedWallpaperTile>();
+    private int mLastLoadedId = -1;
+    private boolean mHasMorePages = true;
     Context mContext;
     LayoutInflater mLayoutInflater;
+    WallpaperThumbnailLoader mThumbnailLoader;
 
     public static class SavedWallpaperTile extends WallpaperPickerActivity.WallpaperTileInfo {
         private int mDbId;
-        private Drawable mThumb;
-        public SavedWallpaperTile(int dbId, Drawable thumb) {
+        private ThumbnailFileSource mThumb;
+        SavedWallpaperTile(int dbId, ThumbnailFileSource thumb) {
             mDbId = dbId;
             mThumb = thumb;
         }
@@ -87,35 +91,70 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
         }
     }
 
-    public SavedWallpaperImages(Activity context) {
+    // A thumbnail saved along with the wallpaper
+    static class ThumbnailFileSource extends WallpaperThumbnailLoader.ThumbnailSource {
+        private final File mFile;
+
+        ThumbnailFileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        String getKey() {
+            return "file:" + mFile.getPath();
+        }
+
+        @Override
+        Bitmap loadThumbnail() {
+            return BitmapFactory.decodeFile(mFile.getAbsolutePath());
+        }
+    }
+
+    SavedWallpaperImages(Activity context, WallpaperThumbnailLoader thumbnailLoader) {
         mDb = new ImageDb(context);
         mContext = context;
         mLayoutInflater = context.getLayoutInflater();
+        mThumbnailLoader = thumbnailLoader;
     }
 
-    public void loadThumbnailsAndImageIdList() {
-        mImages = new ArrayList<SavedWallpaperTile>();
+    /**
+     * Loads the next page of saved wallpapers, newest first. Only ids and file names are read;
+     * thumbnails are decoded in the background when their tile is shown.
+     *
+     * @return the number of wallpapers added
+     */
+    public int loadNextPage() {
+        if (!mHasMorePages) {
+            return 0;
+        }
         SQLiteDatabase db = mDb.getReadableDatabase();
+        // Page by id rather than by offset, so that deleting images doesn't shift the pages
         Cursor result = db.query(ImageDb.TABLE_NAME,
                 new String[] { ImageDb.COLUMN_ID,
                     ImageDb.COLUMN_IMAGE_THUMBNAIL_FILENAME }, // cols to return
-                null, // select query
-                null, // args to select query
+                mLastLoadedId < 0 ? null : ImageDb.COLUMN_ID + " < ?", // select query
+                mLastLoadedId < 0 ? null :
+                    new String[] { Integer.toString(mLastLoadedId) }, // args to select query
                 null,
                 null,
                 ImageDb.COLUMN_ID + " DESC",
-                null);
+                Integer.toString(PAGE_SIZE));
 
+        int loaded = 0;
         while (result.moveToNext()) {
+            mLastLoadedId = result.getInt(0);
             String filename = result.getString(1);
             File file = new File(mContext.getFilesDir(), filename);
-
-            Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
-            if (thumb != null) {
-                mImages.add(new SavedWallpaperTile(result.getInt(0), new BitmapDrawable(thumb)));
-            }
+            mImages.add(new SavedWallpaperTile(mLastLoadedId, new ThumbnailFileSource(file)));
+            loaded++;
         }
         result.close();
+        mHasMorePages = loaded == PAGE_SIZE;
+        return loaded;
+    }
+
+    public boolean hasMorePages() {
+        return mHasMorePages;
     }
 
     public int getCount() {
@@ -131,12 +170,11 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
-        Drawable thumbDrawable = mImages.get(position).mThumb;
-        if (thumbDrawable == null) {
-            Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-        }
-        return WallpaperPickerActivity.createImageTileView(
-                mLayoutInflater, position, convertView, parent, thumbDrawable);
+        View view = WallpaperPickerActivity.createImageTileView(
+                mLayoutInflater, position, convertView, parent, null);
+        mThumbnailLoader.bind((ImageView) view.findViewById(R.id.wallpaper_image),
+                mImages.get(position).mThumb);
+        return view;
     }
 
     public String getImageFilename(int id) {
@@ -175,6 +213,12 @@ public class SavedWallpaperImages extends BaseAdapter implements ListAdapter {
         imageFile.delete();
         File thumbFile = new File(mContext.getFilesDir(), filenames.second);
         thumbFile.delete();
+        for (int i = 0; i < mImages.size(); i++) {
+            if (mImages.get(i).mDbId == id) {
+                mImages.remove(i);
+                break;
+            }
+        }
         SQLiteDatabase db = mDb.getWritableDatabase();
         db.delete(ImageDb.TABLE_NAME,
                 ImageDb.COLUMN_ID + " = ?", // SELECT query
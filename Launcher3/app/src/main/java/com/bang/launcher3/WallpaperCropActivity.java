@@ -19,6 +19,7 @@ package com.bang.launcher3;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.WallpaperManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -42,23 +43,28 @@ import android.view.Display;
 import android.view.View;
 import android.view.WindowManager;
 
+import com.bang.gallery3d.common.BitmapPool;
 import com.bang.gallery3d.common.Utils;
 import com.bang.gallery3d.exif.ExifInterface;
 import com.bang.photos.BitmapRegionTileSource;
+import com.bang.photos.DecodedImageRegistry;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 public class WallpaperCropActivity extends Activity {
     private static final String LOGTAG = "Launcher3.CropActivity";
+    private static final boolean DEBUG = false;
 
     protected static final String WALLPAPER_WIDTH_KEY = "wallpaper.width";
     protected static final String WALLPAPER_HEIGHT_KEY = "wallpaper.height";
     private static final int DEFAULT_COMPRESS_QUALITY = 90;
+    // Largest band of the crop decoded at once
+    private static final int MAX_BAND_BYTES = 2 * 1024 * 1024;
     /**
      * The maximum bitmap size we allow to be returned through the intent.
      * Intents have a maximum of 1MB in total size. However, the Bitmap seems to
@@ -112,6 +118,14 @@ public class WallpaperCropActivity extends Activity {
                 });
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mCropView != null) {
+            mCropView.releaseTileSource();
+        }
+        super.onDestroy();
+    }
+
     public boolean enableRotation() {
         return getResources().getBoolean(R.bool.allow_rotation);
     }
@@ -191,6 +205,8 @@ public class WallpaperCropActivity extends Activity {
     private static int getRotationFromExifHelper(
             String path, Resources res, int resId, Context context, Uri uri) {
         ExifInterface ei = new ExifInterface();
+        // Only the orientation is needed
+        ei.setReadValuesOnDemand(true);
         try {
             if (path != null) {
                 ei.readExif(path);
@@ -361,6 +377,17 @@ public class WallpaperCropActivity extends Activity {
         cropTask.execute();
     }
 
+    // A ByteArrayOutputStream whose buffer can be read without copying it
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
     public interface OnBitmapCroppedHandler {
         public void onBitmapCropped(byte[] imageBytes);
     }
@@ -371,7 +398,14 @@ public class WallpaperCropActivity extends Activity {
         String mInFilePath;
         byte[] mInImageBytes;
         int mInResId = 0;
-        InputStream mInStream;
+        // The source, read once by loadSource()
+        boolean mSourceLoaded;
+        String mSourcePath;
+        byte[] mSourceBytes;
+        int mSourceLength;
+        Point mImageBounds;
+        // What the tile source showing the image has decoded of it, while cropping
+        DecodedImageRegistry.SharedImage mSharedImage;
         RectF mCropBounds = null;
         int mOutWidth, mOutHeight;
         int mRotation;
@@ -384,6 +418,13 @@ public class WallpaperCropActivity extends Activity {
         OnBitmapCroppedHandler mOnBitmapCroppedHandler;
         boolean mNoCrop;
 
+        // Stats, for debugging
+        long mLoadNanos;
+        long mDecodeNanos;
+        long mEncodeNanos;
+        long mWriteNanos;
+        int mPeakBytes;
+
         public BitmapCropTask(Context c, String filePath,
                 RectF cropBounds, int rotation, int outWidth, int outHeight,
                 boolean setWallpaper, boolean saveCroppedBitmap, Runnable onEndRunnable) {
@@ -443,43 +484,131 @@ public class WallpaperCropActivity extends Activity {
             mOnEndRunnable = onEndRunnable;
         }
 
-        // Helper to setup input stream
-        private void regenerateInputStream() {
-            if (mInUri == null && mInResId == 0 && mInFilePath == null && mInImageBytes == null) {
-                Log.w(LOGTAG, "cannot read original file, no input URI, resource ID, or " +
-                        "image byte array given");
-            } else {
-                Utils.closeSilently(mInStream);
+        // Helper to read the source once. Decoders read it straight from mSourcePath when it is
+        // a file, and from mSourceBytes otherwise.
+        private boolean loadSource() {
+            if (mSourceLoaded) {
+                return mSourcePath != null || mSourceBytes != null;
+            }
+            mSourceLoaded = true;
+            final long start = System.nanoTime();
+            if (mInImageBytes != null) {
+                mSourceBytes = mInImageBytes;
+                mSourceLength = mInImageBytes.length;
+            } else if (mInFilePath != null) {
+                mSourcePath = mContext.getFileStreamPath(mInFilePath).getAbsolutePath();
+            } else if (mInUri != null
+                    && ContentResolver.SCHEME_FILE.equals(mInUri.getScheme())) {
+                mSourcePath = mInUri.getPath();
+            } else if (mInUri != null || mInResId != 0) {
+                InputStream in = null;
                 try {
                     if (mInUri != null) {
-                        mInStream = new BufferedInputStream(
-                                mContext.getContentResolver().openInputStream(mInUri));
-                    } else if (mInFilePath != null) {
-                        mInStream = mContext.openFileInput(mInFilePath);
-                    } else if (mInImageBytes != null) {
-                        mInStream = new BufferedInputStream(
-                                new ByteArrayInputStream(mInImageBytes));
+                        in = mContext.getContentResolver().openInputStream(mInUri);
                     } else {
-                        mInStream = new BufferedInputStream(
-                                mResources.openRawResource(mInResId));
+                        in = mResources.openRawResource(mInResId);
                     }
-                } catch (FileNotFoundException e) {
-                    Log.w(LOGTAG, "cannot read file: " + mInUri.toString(), e);
+                    ExposedByteArrayOutputStream bytes =
+                            new ExposedByteArrayOutputStream(Math.max(in.available(), 8192));
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        bytes.write(buffer, 0, n);
+                    }
+                    mSourceBytes = bytes.getBuffer();
+                    mSourceLength = bytes.size();
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "cannot read file: " + mInUri, e);
+                } finally {
+                    Utils.closeSilently(in);
+                }
+            } else {
+                Log.w(LOGTAG, "cannot read original file, no input URI, resource ID, or " +
+                        "image byte array given");
+            }
+            mLoadNanos = System.nanoTime() - start;
+            return mSourcePath != null || mSourceBytes != null;
+        }
+
+        private InputStream openSourceStream() throws IOException {
+            if (mSourcePath != null) {
+                return new BufferedInputStream(new FileInputStream(mSourcePath));
+            }
+            return new ByteArrayInputStream(mSourceBytes, 0, mSourceLength);
+        }
+
+        // Opens the source without loading it first, or returns null if there is none
+        private InputStream openUnloadedSourceStream() throws IOException {
+            if (mSourceLoaded) {
+                // Already loaded for getImageBounds(), reuse it
+                return loadSource() ? openSourceStream() : null;
+            }
+            if (mInImageBytes != null) {
+                return new ByteArrayInputStream(mInImageBytes);
+            } else if (mInFilePath != null) {
+                return new BufferedInputStream(mContext.openFileInput(mInFilePath));
+            } else if (mInUri != null) {
+                return new BufferedInputStream(
+                        mContext.getContentResolver().openInputStream(mInUri));
+            } else if (mInResId != 0) {
+                return new BufferedInputStream(mResources.openRawResource(mInResId));
+            }
+            Log.w(LOGTAG, "cannot read original file, no input URI, resource ID, or " +
+                    "image byte array given");
+            return null;
+        }
+
+        private Bitmap decodeSource(BitmapFactory.Options options) {
+            if (mSourcePath != null) {
+                return BitmapFactory.decodeFile(mSourcePath, options);
+            }
+            return BitmapFactory.decodeByteArray(mSourceBytes, 0, mSourceLength, options);
+        }
+
+        private BitmapRegionDecoder openRegionDecoder() {
+            try {
+                if (mSourcePath != null) {
+                    return BitmapRegionDecoder.newInstance(mSourcePath, true);
+                }
+                return BitmapRegionDecoder.newInstance(mSourceBytes, 0, mSourceLength, true);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri, e);
+                return null;
+            }
+        }
+
+        // Like openRegionDecoder, but borrows the decoder of whoever is showing the image if
+        // there is one, or else shares the new decoder with them. Release with releaseDecoder.
+        private BitmapRegionDecoder openSharedRegionDecoder() {
+            mSharedImage = DecodedImageRegistry.getInstance().acquireIfPresent(
+                    BitmapRegionTileSource.getSharingKey(
+                            mContext, mSourcePath, mInUri, mResources, mInResId));
+            BitmapRegionDecoder decoder = null;
+            if (mSharedImage != null) {
+                decoder = mSharedImage.getDecoder(0, 1, null);
+                if (mImageBounds == null) {
+                    mImageBounds = mSharedImage.getSize();
                 }
             }
+            if (decoder == null) {
+                decoder = openRegionDecoder();
+                if (decoder != null && mSharedImage != null) {
+                    mSharedImage.addDecoder(decoder);
+                }
+            }
+            return decoder;
         }
 
         public Point getImageBounds() {
-            regenerateInputStream();
-            if (mInStream != null) {
+            if (mImageBounds == null && loadSource()) {
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(mInStream, null, options);
+                decodeSource(options);
                 if (options.outWidth != 0 && options.outHeight != 0) {
-                    return new Point(options.outWidth, options.outHeight);
+                    mImageBounds = new Point(options.outWidth, options.outHeight);
                 }
             }
-            return null;
+            return mImageBounds == null ? null : new Point(mImageBounds);
         }
 
         public void setCropBounds(RectF cropBounds) {
@@ -490,186 +619,293 @@ public class WallpaperCropActivity extends Activity {
             return mCroppedBitmap;
         }
         public boolean cropBitmap() {
-            boolean failure = false;
-
-            regenerateInputStream();
-
             WallpaperManager wallpaperManager = null;
             if (mSetWallpaper) {
                 wallpaperManager = WallpaperManager.getInstance(mContext.getApplicationContext());
             }
-            if (mSetWallpaper && mNoCrop && mInStream != null) {
+            if (mSetWallpaper && mNoCrop) {
+                // Streamed straight to the wallpaper, without reading the source into memory
+                InputStream in = null;
                 try {
-                    wallpaperManager.setStream(mInStream);
+                    in = openUnloadedSourceStream();
+                    if (in == null) {
+                        return false;
+                    }
+                    wallpaperManager.setStream(in);
                 } catch (IOException e) {
                     Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-                    failure = true;
+                    return false;
+                } finally {
+                    Utils.closeSilently(in);
                 }
-                return !failure;
+                return true;
             }
-            if (mInStream != null) {
-                // Find crop bounds (scaled to original image size)
-                Rect roundedTrueCrop = new Rect();
-                Matrix rotateMatrix = new Matrix();
-                Matrix inverseRotateMatrix = new Matrix();
-                if (mRotation > 0) {
-                    rotateMatrix.setRotate(mRotation);
-                    inverseRotateMatrix.setRotate(-mRotation);
 
-                    mCropBounds.roundOut(roundedTrueCrop);
-                    mCropBounds = new RectF(roundedTrueCrop);
-
-                    Point bounds = getImageBounds();
-
-                    float[] rotatedBounds = new float[] { bounds.x, bounds.y };
-                    rotateMatrix.mapPoints(rotatedBounds);
-                    rotatedBounds[0] = Math.abs(rotatedBounds[0]);
-                    rotatedBounds[1] = Math.abs(rotatedBounds[1]);
-
-                    mCropBounds.offset(-rotatedBounds[0]/2, -rotatedBounds[1]/2);
-                    inverseRotateMatrix.mapRect(mCropBounds);
-                    mCropBounds.offset(bounds.x/2, bounds.y/2);
+            if (!loadSource()) {
+                return false;
+            }
+            long stageStart = System.nanoTime();
+            // Attempt to open a region decoder, which also knows the size of the image
+            BitmapRegionDecoder decoder = openSharedRegionDecoder();
+            if (decoder != null && mImageBounds == null) {
+                mImageBounds = new Point(decoder.getWidth(), decoder.getHeight());
+            }
 
-                    regenerateInputStream();
-                }
+            // Find crop bounds (scaled to original image size)
+            Rect roundedTrueCrop = new Rect();
+            if (mRotation > 0) {
+                Matrix rotateMatrix = new Matrix();
+                rotateMatrix.setRotate(mRotation);
+                Matrix inverseRotateMatrix = new Matrix();
+                inverseRotateMatrix.setRotate(-mRotation);
 
                 mCropBounds.roundOut(roundedTrueCrop);
+                mCropBounds = new RectF(roundedTrueCrop);
 
-                if (roundedTrueCrop.width() <= 0 || roundedTrueCrop.height() <= 0) {
-                    Log.w(LOGTAG, "crop has bad values for full size image");
-                    failure = true;
+                Point bounds = getImageBounds();
+                if (bounds == null) {
+                    Log.w(LOGTAG, "cannot get bounds for image");
+                    releaseDecoder(decoder);
                     return false;
                 }
 
-                // See how much we're reducing the size of the image
-                int scaleDownSampleSize = Math.min(roundedTrueCrop.width() / mOutWidth,
-                        roundedTrueCrop.height() / mOutHeight);
+                float[] rotatedBounds = new float[] { bounds.x, bounds.y };
+                rotateMatrix.mapPoints(rotatedBounds);
+                rotatedBounds[0] = Math.abs(rotatedBounds[0]);
+                rotatedBounds[1] = Math.abs(rotatedBounds[1]);
 
-                // Attempt to open a region decoder
-                BitmapRegionDecoder decoder = null;
-                try {
-                    decoder = BitmapRegionDecoder.newInstance(mInStream, true);
-                } catch (IOException e) {
-                    Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
-                }
+                mCropBounds.offset(-rotatedBounds[0]/2, -rotatedBounds[1]/2);
+                inverseRotateMatrix.mapRect(mCropBounds);
+                mCropBounds.offset(bounds.x/2, bounds.y/2);
+            }
 
-                Bitmap crop = null;
-                if (decoder != null) {
-                    // Do region decoding to get crop bitmap
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    if (scaleDownSampleSize > 1) {
-                        options.inSampleSize = scaleDownSampleSize;
-                    }
-                    crop = decoder.decodeRegion(roundedTrueCrop, options);
-                    decoder.recycle();
-                }
+            mCropBounds.roundOut(roundedTrueCrop);
 
-                if (crop == null) {
-                    // BitmapRegionDecoder has failed, try to crop in-memory
-                    regenerateInputStream();
-                    Bitmap fullSize = null;
-                    if (mInStream != null) {
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        if (scaleDownSampleSize > 1) {
-                            options.inSampleSize = scaleDownSampleSize;
-                        }
-                        fullSize = BitmapFactory.decodeStream(mInStream, null, options);
-                    }
-                    if (fullSize != null) {
-                        mCropBounds.left /= scaleDownSampleSize;
-                        mCropBounds.top /= scaleDownSampleSize;
-                        mCropBounds.bottom /= scaleDownSampleSize;
-                        mCropBounds.right /= scaleDownSampleSize;
-                        mCropBounds.roundOut(roundedTrueCrop);
-
-                        crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
-                                roundedTrueCrop.top, roundedTrueCrop.width(),
-                                roundedTrueCrop.height());
-                    }
-                }
+            if (roundedTrueCrop.width() <= 0 || roundedTrueCrop.height() <= 0) {
+                Log.w(LOGTAG, "crop has bad values for full size image");
+                releaseDecoder(decoder);
+                return false;
+            }
 
-                if (crop == null) {
-                    Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
-                    failure = true;
-                    return false;
+            // Decode at the largest power of 2 sample size that still gives at least as many
+            // pixels as the output needs
+            int sampleSize = 1;
+            if (mOutWidth > 0 && mOutHeight > 0) {
+                int scaleDownSampleSize = Math.min(roundedTrueCrop.width() / mOutWidth,
+                        roundedTrueCrop.height() / mOutHeight);
+                if (scaleDownSampleSize > 1) {
+                    sampleSize = Utils.prevPowerOf2(scaleDownSampleSize);
                 }
-                if (mOutWidth > 0 && mOutHeight > 0 || mRotation > 0) {
-                    float[] dimsAfter = new float[] { crop.getWidth(), crop.getHeight() };
-                    rotateMatrix.mapPoints(dimsAfter);
-                    dimsAfter[0] = Math.abs(dimsAfter[0]);
-                    dimsAfter[1] = Math.abs(dimsAfter[1]);
-
-                    if (!(mOutWidth > 0 && mOutHeight > 0)) {
-                        mOutWidth = Math.round(dimsAfter[0]);
-                        mOutHeight = Math.round(dimsAfter[1]);
-                    }
+            }
 
-                    RectF cropRect = new RectF(0, 0, dimsAfter[0], dimsAfter[1]);
-                    RectF returnRect = new RectF(0, 0, mOutWidth, mOutHeight);
+            float[] dimsAfter = new float[] { roundedTrueCrop.width(), roundedTrueCrop.height() };
+            Matrix rotateMatrix = new Matrix();
+            rotateMatrix.setRotate(mRotation);
+            rotateMatrix.mapPoints(dimsAfter);
+            dimsAfter[0] = Math.abs(dimsAfter[0]);
+            dimsAfter[1] = Math.abs(dimsAfter[1]);
 
-                    Matrix m = new Matrix();
-                    if (mRotation == 0) {
-                        m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                    } else {
-                        Matrix m1 = new Matrix();
-                        m1.setTranslate(-crop.getWidth() / 2f, -crop.getHeight() / 2f);
-                        Matrix m2 = new Matrix();
-                        m2.setRotate(mRotation);
-                        Matrix m3 = new Matrix();
-                        m3.setTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
-                        Matrix m4 = new Matrix();
-                        m4.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-
-                        Matrix c1 = new Matrix();
-                        c1.setConcat(m2, m1);
-                        Matrix c2 = new Matrix();
-                        c2.setConcat(m4, m3);
-                        m.setConcat(c2, c1);
-                    }
+            if (!(mOutWidth > 0 && mOutHeight > 0)) {
+                mOutWidth = Math.round(dimsAfter[0]);
+                mOutHeight = Math.round(dimsAfter[1]);
+            }
 
-                    Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
-                            (int) returnRect.height(), Bitmap.Config.ARGB_8888);
-                    if (tmp != null) {
-                        Canvas c = new Canvas(tmp);
-                        Paint p = new Paint();
-                        p.setFilterBitmap(true);
-                        c.drawBitmap(crop, m, p);
-                        crop = tmp;
-                    }
-                }
+            // Maps the crop, in full size image pixels relative to its top left corner, to the
+            // rotated and scaled output
+            Matrix m = new Matrix();
+            m.setTranslate(-roundedTrueCrop.width() / 2f, -roundedTrueCrop.height() / 2f);
+            m.postRotate(mRotation);
+            m.postTranslate(dimsAfter[0] / 2f, dimsAfter[1] / 2f);
+            Matrix fit = new Matrix();
+            fit.setRectToRect(new RectF(0, 0, dimsAfter[0], dimsAfter[1]),
+                    new RectF(0, 0, mOutWidth, mOutHeight), Matrix.ScaleToFit.FILL);
+            m.postConcat(fit);
+
+            Bitmap crop = Bitmap.createBitmap(mOutWidth, mOutHeight, Bitmap.Config.ARGB_8888);
+            Canvas c = new Canvas(crop);
+            c.concat(m);
+            Paint p = new Paint();
+            p.setFilterBitmap(true);
+            mPeakBytes = crop.getByteCount();
+
+            boolean decoded = false;
+            if (decoder != null) {
+                decoded = drawBands(decoder, roundedTrueCrop, sampleSize, c, p, crop);
+            }
+            releaseDecoder(decoder);
+            if (!decoded) {
+                // BitmapRegionDecoder has failed, crop from the whole image decoded in memory
+                crop.eraseColor(0);
+                decoded = drawSampled(roundedTrueCrop, sampleSize, c, p, crop);
+            }
+            mDecodeNanos = System.nanoTime() - stageStart;
 
-                if (mSaveCroppedBitmap) {
-                    mCroppedBitmap = crop;
-                }
+            if (!decoded) {
+                Log.w(LOGTAG, "cannot decode file: " + mInUri);
+                crop.recycle();
+                return false;
+            }
+
+            if (mSaveCroppedBitmap) {
+                mCroppedBitmap = crop;
+            }
 
+            boolean failure = false;
+            // If we need to set to the wallpaper, compress and set it
+            if (mSetWallpaper) {
+                stageStart = System.nanoTime();
                 // Get output compression format
                 CompressFormat cf =
                         convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
 
-                // Compress to byte array
-                ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
+                // Compress to a buffer big enough for most images, so it rarely has to grow
+                ExposedByteArrayOutputStream tmpOut =
+                        new ExposedByteArrayOutputStream(mOutWidth * mOutHeight / 4);
                 if (crop.compress(cf, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-                    // If we need to set to the wallpaper, set it
-                    if (mSetWallpaper && wallpaperManager != null) {
-                        try {
-                            byte[] outByteArray = tmpOut.toByteArray();
-                            wallpaperManager.setStream(new ByteArrayInputStream(outByteArray));
-                            if (mOnBitmapCroppedHandler != null) {
-                                mOnBitmapCroppedHandler.onBitmapCropped(outByteArray);
-                            }
-                        } catch (IOException e) {
-                            Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-                            failure = true;
+                    mPeakBytes = Math.max(mPeakBytes,
+                            crop.getByteCount() + tmpOut.getBuffer().length);
+                    mEncodeNanos = System.nanoTime() - stageStart;
+                    stageStart = System.nanoTime();
+                    try {
+                        wallpaperManager.setStream(
+                                new ByteArrayInputStream(tmpOut.getBuffer(), 0, tmpOut.size()));
+                        if (mOnBitmapCroppedHandler != null) {
+                            mOnBitmapCroppedHandler.onBitmapCropped(tmpOut.toByteArray());
                         }
+                    } catch (IOException e) {
+                        Log.w(LOGTAG, "cannot write stream to wallpaper", e);
+                        failure = true;
                     }
+                    mWriteNanos = System.nanoTime() - stageStart;
                 } else {
                     Log.w(LOGTAG, "cannot compress bitmap");
                     failure = true;
                 }
             }
+
+            if (!mSaveCroppedBitmap) {
+                crop.recycle();
+            }
+            if (DEBUG) {
+                dumpState();
+            }
             return !failure; // True if any of the operations failed
         }
 
+        /**
+         * Decodes the crop in horizontal bands of at most {@link #MAX_BAND_BYTES} and draws
+         * each into the output as soon as it is decoded, so that the decoded crop is never in
+         * memory as a whole. The canvas maps crop coordinates to the output.
+         */
+        private boolean drawBands(BitmapRegionDecoder decoder, Rect crop, int sampleSize,
+                Canvas c, Paint p, Bitmap out) {
+            final int bandWidth = (crop.width() + sampleSize - 1) / sampleSize;
+            // Rows of the crop drawn from each band
+            final int bandRows = Math.max(1, MAX_BAND_BYTES / (bandWidth * 4) - 2);
+            final int bandHeight = Math.min(bandRows * sampleSize, crop.height());
+            // Each band also decodes one row on either side, so that filtering is seamless
+            // across bands
+            final int margin = sampleSize;
+            final int bandBitmapHeight =
+                    (bandHeight + 2 * margin + sampleSize - 1) / sampleSize;
+
+            final BitmapPool pool = BitmapPool.getInstance();
+            Bitmap band = pool.acquire(bandWidth, bandBitmapHeight, Bitmap.Config.ARGB_8888);
+            if (band == null) {
+                band = Bitmap.createBitmap(bandWidth, bandBitmapHeight, Bitmap.Config.ARGB_8888);
+            }
+            mPeakBytes = Math.max(mPeakBytes, out.getByteCount() + band.getByteCount());
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            final Rect region = new Rect();
+            final Rect src = new Rect();
+            final RectF dst = new RectF();
+            try {
+                for (int top = crop.top; top < crop.bottom; top += bandHeight) {
+                    final int bottom = Math.min(top + bandHeight, crop.bottom);
+                    region.set(crop.left, top == crop.top ? top : top - margin,
+                            crop.right, bottom == crop.bottom ? bottom : bottom + margin);
+
+                    options.inBitmap = band.isMutable() ? band : null;
+                    Bitmap decoded;
+                    try {
+                        decoded = decoder.decodeRegion(region, options);
+                    } catch (IllegalArgumentException e) {
+                        // The band can't be decoded into, let the decoder allocate one
+                        options.inBitmap = null;
+                        decoded = decoder.decodeRegion(region, options);
+                    }
+                    if (decoded == null) {
+                        return false;
+                    }
+                    if (decoded != band) {
+                        pool.release(band);
+                        band = decoded;
+                        mPeakBytes = Math.max(mPeakBytes,
+                                out.getByteCount() + band.getByteCount());
+                    }
+
+                    // The band may be taller than the region, only draw the rows decoded
+                    src.set(0, 0, Math.min(band.getWidth(), bandWidth), Math.min(
+                            band.getHeight(), Math.max(1, region.height() / sampleSize)));
+                    dst.set(0, region.top - crop.top, crop.width(), region.bottom - crop.top);
+                    c.save();
+                    c.clipRect(0, top - crop.top, crop.width(), bottom - crop.top);
+                    c.drawBitmap(band, src, dst, p);
+                    c.restore();
+                }
+            } finally {
+                options.inBitmap = null;
+                pool.release(band);
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the whole image at the given sample size and draws the crop out of it. The
+         * canvas maps crop coordinates to the output.
+         */
+        private boolean drawSampled(Rect crop, int sampleSize, Canvas c, Paint p, Bitmap out) {
+            Point bounds = getImageBounds();
+            if (bounds == null) {
+                return false;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap fullSize = decodeSource(options);
+            if (fullSize == null) {
+                return false;
+            }
+            mPeakBytes = Math.max(mPeakBytes, out.getByteCount() + fullSize.getByteCount());
+            c.save();
+            c.clipRect(0, 0, crop.width(), crop.height());
+            c.drawBitmap(fullSize, null, new RectF(-crop.left, -crop.top,
+                    bounds.x - crop.left, bounds.y - crop.top), p);
+            c.restore();
+            fullSize.recycle();
+            return true;
+        }
+
+        private void releaseDecoder(BitmapRegionDecoder decoder) {
+            if (mSharedImage != null) {
+                // The decoder belongs to the shared image
+                mSharedImage.release();
+                mSharedImage = null;
+            } else if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+
+        public void dumpState() {
+            Log.d(LOGTAG, "crop " + mOutWidth + "x" + mOutHeight
+                    + ": load=" + mLoadNanos / 1000 + "us"
+                    + " decode=" + mDecodeNanos / 1000 + "us"
+                    + " encode=" + mEncodeNanos / 1000 + "us"
+                    + " write=" + mWriteNanos / 1000 + "us"
+                    + " peak=" + mPeakBytes / 1024 + "KB");
+        }
+
         @Override
         protected Boolean doInBackground(Void... params) {
             return cropBitmap();
@@ -36,10 +36,11 @@ import android.graphics.Point;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LevelListDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -66,8 +67,6 @@ import android.widget.ListAdapter;
 import com.bang.photos.BitmapRegionTileSource;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 
 public class WallpaperPickerActivity extends WallpaperCropActivity {
@@ -77,6 +76,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     public static final int PICK_WALLPAPER_THIRD_PARTY_ACTIVITY = 6;
     public static final int PICK_LIVE_WALLPAPER = 7;
     private static final String TEMP_WALLPAPER_TILES = "TEMP_WALLPAPER_TILES";
+    // Where the thumbnail of the default wallpaper was kept before the thumbnail cache
+    private static final String OLD_DEFAULT_THUMBNAIL_FILENAME = "default_thumb.jpg";
 
     private View mSelectedThumb;
     private boolean mIgnoreNextTap;
@@ -93,6 +94,7 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     ArrayList<Uri> mTempWallpaperTiles = new ArrayList<Uri>();
     private SavedWallpaperImages mSavedImages;
     private WallpaperInfo mLiveWallpaperInfoOnPickerLaunch;
+    private WallpaperThumbnailLoader mThumbnailLoader;
 
     public static abstract class WallpaperTileInfo {
         protected View mView;
@@ -159,9 +161,10 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     public static class ResourceWallpaperInfo extends WallpaperTileInfo {
         private Resources mResources;
         private int mResId;
-        private Drawable mThumb;
+        private WallpaperThumbnailLoader.ThumbnailSource mThumb;
 
-        public ResourceWallpaperInfo(Resources res, int resId, Drawable thumb) {
+        ResourceWallpaperInfo(Resources res, int resId,
+                WallpaperThumbnailLoader.ThumbnailSource thumb) {
             mResources = res;
             mResId = resId;
             mThumb = thumb;
@@ -196,6 +199,82 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         }
     }
 
+    // A thumbnail bundled as a resource
+    private static class ResourceThumbnailSource extends WallpaperThumbnailLoader.ThumbnailSource {
+        private final Resources mResources;
+        private final String mPackageName;
+        private final int mResId;
+
+        ResourceThumbnailSource(Resources res, String packageName, int resId) {
+            mResources = res;
+            mPackageName = packageName;
+            mResId = resId;
+        }
+
+        @Override
+        String getKey() {
+            return "res:" + mPackageName + "/" + mResId;
+        }
+
+        @Override
+        Bitmap loadThumbnail() {
+            return BitmapFactory.decodeResource(mResources, mResId);
+        }
+    }
+
+    // A thumbnail cropped out of a full size image, either a URI or a resource
+    private static class CroppedThumbnailSource
+            extends WallpaperThumbnailLoader.ThumbnailSource {
+        private final Context mContext;
+        private final Uri mUri;
+        private final Resources mResources;
+        private final int mResId;
+        private final Point mSize;
+        private final String mKey;
+
+        CroppedThumbnailSource(Context context, Uri uri) {
+            mContext = context;
+            mUri = uri;
+            mResources = null;
+            mResId = 0;
+            mSize = getDefaultThumbnailSize(context.getResources());
+            mKey = "uri:" + uri + ":" + mSize.x + "x" + mSize.y;
+        }
+
+        CroppedThumbnailSource(Context context, Resources res, int resId, String version) {
+            mContext = context;
+            mUri = null;
+            mResources = res;
+            mResId = resId;
+            mSize = getDefaultThumbnailSize(context.getResources());
+            mKey = "res:" + resId + ":" + version + ":" + mSize.x + "x" + mSize.y;
+        }
+
+        @Override
+        String getKey() {
+            return mKey;
+        }
+
+        @Override
+        String getPersistentKey() {
+            if (mUri == null) {
+                // The version is part of the key
+                return mKey;
+            }
+            String stableKey = BitmapRegionTileSource.getStableKey(mContext, null, mUri, null, 0);
+            return stableKey != null ? stableKey + ":" + mSize.x + "x" + mSize.y : null;
+        }
+
+        @Override
+        Bitmap loadThumbnail() {
+            final int rotation = mUri != null ?
+                    WallpaperCropActivity.getRotationFromExif(mContext, mUri) :
+                    WallpaperCropActivity.getRotationFromExif(mResources, mResId);
+            return createThumbnail(
+                    mSize, mContext, mUri, null, mResources, mResId, rotation, false);
+        }
+    }
+
     public void setWallpaperStripYOffset(float offset) {
         mWallpaperStrip.setPadding(0, 0, 0, (int) offset);
     }
@@ -297,16 +376,28 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
             }
         };
 
+        // Thumbnails are loaded in the background, starting with the visible ones
+        mThumbnailLoader = new WallpaperThumbnailLoader(this,
+                findViewById(R.id.wallpaper_scroll_container));
+
         // Populate the built-in wallpapers
         ArrayList<ResourceWallpaperInfo> wallpapers = findBundledWallpapers();
         mWallpapersView = (LinearLayout) findViewById(R.id.wallpaper_list);
-        BuiltInWallpapersAdapter ia = new BuiltInWallpapersAdapter(this, wallpapers);
+        BuiltInWallpapersAdapter ia =
+                new BuiltInWallpapersAdapter(this, wallpapers, mThumbnailLoader);
         populateWallpapersFromAdapter(mWallpapersView, ia, false, true);
 
-        // Populate the saved wallpapers
-        mSavedImages = new SavedWallpaperImages(this);
-        mSavedImages.loadThumbnailsAndImageIdList();
+        // Populate the saved wallpapers, a page at a time as the strip scrolls towards the last
+        // one that was added
+        mSavedImages = new SavedWallpaperImages(this, mThumbnailLoader);
+        mSavedImages.loadNextPage();
         populateWallpapersFromAdapter(mWallpapersView, mSavedImages, true, true);
+        findViewById(R.id.wallpaper_scroll_container).getViewTreeObserver()
+                .addOnScrollChangedListener(new ViewTreeObserver.OnScrollChangedListener() {
+                    public void onScrollChanged() {
+                        loadMoreSavedWallpapersIfNeeded();
+                    }
+                });
 
         // Populate the live wallpapers
         final LinearLayout liveWallpapersView =
@@ -336,15 +427,21 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         masterWallpaperList.addView(pickImageTile, 0);
 
         // Make its background the last photo taken on external storage
-        Bitmap lastPhoto = getThumbnailOfLastPhoto();
-        if (lastPhoto != null) {
-            ImageView galleryThumbnailBg =
-                    (ImageView) pickImageTile.findViewById(R.id.wallpaper_image);
-            galleryThumbnailBg.setImageBitmap(getThumbnailOfLastPhoto());
-            int colorOverlay = getResources().getColor(R.color.wallpaper_picker_translucent_gray);
-            galleryThumbnailBg.setColorFilter(colorOverlay, PorterDuff.Mode.SRC_ATOP);
+        ImageView galleryThumbnailBg =
+                (ImageView) pickImageTile.findViewById(R.id.wallpaper_image);
+        int colorOverlay = getResources().getColor(R.color.wallpaper_picker_translucent_gray);
+        galleryThumbnailBg.setColorFilter(colorOverlay, PorterDuff.Mode.SRC_ATOP);
+        mThumbnailLoader.bind(galleryThumbnailBg, new WallpaperThumbnailLoader.ThumbnailSource() {
+            @Override
+            String getKey() {
+                return "lastphoto";
+            }
 
-        }
+            @Override
+            Bitmap loadThumbnail() {
+                return getThumbnailOfLastPhoto();
+            }
+        });
 
         PickImageInfo pickImageInfo = new PickImageInfo();
         pickImageTile.setTag(pickImageInfo);
@@ -434,6 +531,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
                         }
                     }
                     for (View v : viewsToRemove) {
+                        mThumbnailLoader.unbind(
+                                (ImageView) v.findViewById(R.id.wallpaper_image));
                         mWallpapersView.removeView(v);
                     }
                     updateTileIndices();
@@ -495,6 +594,14 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         return thumb;
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mThumbnailLoader != null) {
+            mThumbnailLoader.shutdown();
+        }
+    }
+
     protected void onStop() {
         super.onStop();
         mWallpaperStrip = findViewById(R.id.wallpaper_strip);
@@ -517,9 +624,16 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 
     private void populateWallpapersFromAdapter(ViewGroup parent, BaseAdapter adapter,
             boolean addLongPressHandler, boolean selectFirstTile) {
-        for (int i = 0; i < adapter.getCount(); i++) {
+        populateWallpapersFromAdapter(
+                parent, adapter, 0, 0, addLongPressHandler, selectFirstTile);
+    }
+
+    // Adds the tiles of the items of the adapter from position start on, from insertIndex on
+    private void populateWallpapersFromAdapter(ViewGroup parent, BaseAdapter adapter,
+            int start, int insertIndex, boolean addLongPressHandler, boolean selectFirstTile) {
+        for (int i = start; i < adapter.getCount(); i++) {
             FrameLayout thumbnail = (FrameLayout) adapter.getView(i, null, parent);
-            parent.addView(thumbnail, i);
+            parent.addView(thumbnail, insertIndex + i - start);
             WallpaperTileInfo info = (WallpaperTileInfo) adapter.getItem(i);
             thumbnail.setTag(info);
             info.setView(thumbnail);
@@ -533,6 +647,31 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         }
     }
 
+    private void loadMoreSavedWallpapersIfNeeded() {
+        if (!mSavedImages.hasMorePages()) {
+            return;
+        }
+        int lastIndex = -1;
+        for (int i = mWallpapersView.getChildCount() - 1; i >= 0; i--) {
+            if (mWallpapersView.getChildAt(i).getTag()
+                    instanceof SavedWallpaperImages.SavedWallpaperTile) {
+                lastIndex = i;
+                break;
+            }
+        }
+        // Load the next page once the last saved wallpaper is less than a screen away
+        if (lastIndex >= 0 && mThumbnailLoader.getDistanceToViewport(
+                mWallpapersView.getChildAt(lastIndex)) > mWallpapersView.getRootView().getWidth()) {
+            return;
+        }
+        final int start = mSavedImages.getCount();
+        if (mSavedImages.loadNextPage() > 0) {
+            populateWallpapersFromAdapter(
+                    mWallpapersView, mSavedImages, start, lastIndex + 1, true, false);
+            updateTileIndices();
+        }
+    }
+
     private void updateTileIndices() {
         LinearLayout masterWallpaperList = (LinearLayout) findViewById(R.id.master_wallpaper_list);
         final int childCount = masterWallpaperList.getChildCount();
@@ -628,18 +767,10 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
 
         // Load the thumbnail
         ImageView image = (ImageView) pickedImageThumbnail.findViewById(R.id.wallpaper_image);
-        Point defaultSize = getDefaultThumbnailSize(this.getResources());
-        int rotation = WallpaperCropActivity.getRotationFromExif(this, uri);
-        Bitmap thumb = createThumbnail(defaultSize, this, uri, null, null, 0, rotation, false);
-        if (thumb != null) {
-            image.setImageBitmap(thumb);
-            Drawable thumbDrawable = image.getDrawable();
-            thumbDrawable.setDither(true);
-        } else {
-            Log.e(TAG, "Error loading thumbnail for uri=" + uri);
-        }
         mWallpapersView.addView(pickedImageThumbnail, 0);
 
+        mThumbnailLoader.bind(image, new CroppedThumbnailSource(this, uri));
+
         UriWallpaperInfo info = new UriWallpaperInfo(uri);
         pickedImageThumbnail.setTag(info);
         info.setView(pickedImageThumbnail);
@@ -706,37 +837,18 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     private ResourceWallpaperInfo getDefaultWallpaperInfo() {
         Resources sysRes = Resources.getSystem();
         int resId = sysRes.getIdentifier("default_wallpaper", "drawable", "android");
-
-        File defaultThumbFile = new File(getFilesDir(), "default_thumb.jpg");
-        Bitmap thumb = null;
-        boolean defaultWallpaperExists = false;
-        if (defaultThumbFile.exists()) {
-            thumb = BitmapFactory.decodeFile(defaultThumbFile.getAbsolutePath());
-            defaultWallpaperExists = true;
-        } else {
-            Resources res = getResources();
-            Point defaultThumbSize = getDefaultThumbnailSize(res);
-            int rotation = WallpaperCropActivity.getRotationFromExif(res, resId);
-            thumb = createThumbnail(
-                    defaultThumbSize, this, null, null, sysRes, resId, rotation, false);
-            if (thumb != null) {
-                try {
-                    defaultThumbFile.createNewFile();
-                    FileOutputStream thumbFileStream =
-                            openFileOutput(defaultThumbFile.getName(), Context.MODE_PRIVATE);
-                    thumb.compress(Bitmap.CompressFormat.JPEG, 95, thumbFileStream);
-                    thumbFileStream.close();
-                    defaultWallpaperExists = true;
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while writing default wallpaper thumbnail to file " + e);
-                    defaultThumbFile.delete();
-                }
-            }
-        }
-        if (defaultWallpaperExists) {
-            return new ResourceWallpaperInfo(sysRes, resId, new BitmapDrawable(thumb));
+        if (resId == 0) {
+            return null;
         }
-        return null;
+        final File oldDefaultThumbFile = new File(getFilesDir(), OLD_DEFAULT_THUMBNAIL_FILENAME);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                oldDefaultThumbFile.delete();
+            }
+        });
+        // The default wallpaper only changes with a system update
+        return new ResourceWallpaperInfo(sysRes, resId,
+                new CroppedThumbnailSource(this, sysRes, resId, Build.FINGERPRINT));
     }
 
     public Pair<ApplicationInfo, Integer> getWallpaperArrayResourceId() {
@@ -764,8 +876,8 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
                 final int thumbRes = res.getIdentifier(extra + "_small", "drawable", packageName);
 
                 if (thumbRes != 0) {
-                    ResourceWallpaperInfo wallpaperInfo =
-                            new ResourceWallpaperInfo(res, resId, res.getDrawable(thumbRes));
+                    ResourceWallpaperInfo wallpaperInfo = new ResourceWallpaperInfo(res, resId,
+                            new ResourceThumbnailSource(res, packageName, thumbRes));
                     bundledWallpapers.add(wallpaperInfo);
                     // Log.d(TAG, "add: [" + packageName + "]: " + extra + " (" + res + ")");
                 }
@@ -805,10 +917,13 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
     private static class BuiltInWallpapersAdapter extends BaseAdapter implements ListAdapter {
         private LayoutInflater mLayoutInflater;
         private ArrayList<ResourceWallpaperInfo> mWallpapers;
+        private WallpaperThumbnailLoader mThumbnailLoader;
 
-        BuiltInWallpapersAdapter(Activity activity, ArrayList<ResourceWallpaperInfo> wallpapers) {
+        BuiltInWallpapersAdapter(Activity activity, ArrayList<ResourceWallpaperInfo> wallpapers,
+                WallpaperThumbnailLoader thumbnailLoader) {
             mLayoutInflater = activity.getLayoutInflater();
             mWallpapers = wallpapers;
+            mThumbnailLoader = thumbnailLoader;
         }
 
         public int getCount() {
@@ -824,11 +939,10 @@ public class WallpaperPickerActivity extends WallpaperCropActivity {
         }
 
         public View getView(int position, View convertView, ViewGroup parent) {
-            Drawable thumb = mWallpapers.get(position).mThumb;
-            if (thumb == null) {
-                Log.e(TAG, "Error decoding thumbnail for wallpaper #" + position);
-            }
-            return createImageTileView(mLayoutInflater, position, convertView, parent, thumb);
+            View view = createImageTileView(mLayoutInflater, position, convertView, parent, null);
+            mThumbnailLoader.bind((ImageView) view.findViewById(R.id.wallpaper_image),
+                    mWallpapers.get(position).mThumb);
+            return view;
         }
     }
 
@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.launcher3;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
+
+import com.bang.gallery3d.common.Utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Loads the thumbnails of the wallpaper picker on a background thread, so that the picker can
+ * show its tiles right away, with their empty background as a placeholder, however many
+ * wallpapers there are.
+ *
+ * Pending thumbnails are loaded in viewport order: those of the tiles visible in the scrolling
+ * strip first, then the others by distance from it, re-evaluated whenever the strip scrolls.
+ * Tiles are assumed to be laid out in a row; where each target is in the strip is only worked
+ * out on layout, so that a scroll only looks at the targets entering or leaving the range kept
+ * around the viewport.
+ * Loaded thumbnails are kept in a memory cache of bounded size, and the ones that are expensive
+ * to make (see {@link ThumbnailSource#getPersistentKey}) are also saved to a disk cache, so that
+ * they are only made once. The thumbnails of tiles that scroll far from the viewport are dropped,
+ * and bound again when they come back, so memory use doesn't grow with the number of tiles.
+ *
+ * Every method must be called on the main thread.
+ */
+class WallpaperThumbnailLoader {
+    private static final String TAG = "Launcher.WallpaperThumbnailLoader";
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "wallpaper_thumbnails";
+    private static final long MAX_DISK_CACHE_BYTES = 4 * 1024 * 1024;
+    // Share of the heap the memory cache may hold
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 16;
+    private static final int THUMBNAIL_QUALITY = 95;
+    // Thumbnails are dropped from targets farther than this many viewports from the viewport
+    private static final int KEEP_DISTANCE_VIEWPORTS = 2;
+
+    /** Makes a thumbnail. {@link #loadThumbnail} is called on the loader thread. */
+    static abstract class ThumbnailSource {
+        /**
+         * Returns a key identifying the thumbnail, including anything the thumbnail depends
+         * on such as its size.
+         */
+        abstract String getKey();
+
+        /**
+         * Returns a key identifying the thumbnail across runs, including what identifies the
+         * content it is made from, for the thumbnail to be saved to the disk cache once made; or
+         * null if the thumbnail shouldn't be saved, such as when its content may change behind
+         * our back. Called on the loader thread.
+         */
+        String getPersistentKey() {
+            return null;
+        }
+
+        abstract Bitmap loadThumbnail();
+    }
+
+    // Horizontal bounds of a target in the scrolling content of the viewport
+    private static class Slot {
+        ImageView target;
+        int left = NOT_LAID_OUT;
+        int right = NOT_LAID_OUT;
+    }
+
+    private static class Request extends Slot {
+        final ThumbnailSource source;
+        final int sequence;
+
+        Request(ThumbnailSource source, ImageView target, int sequence) {
+            this.source = source;
+            this.target = target;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final int NOT_LAID_OUT = Integer.MIN_VALUE;
+
+    private static final Comparator<Slot> LEFT_TO_RIGHT = new Comparator<Slot>() {
+        @Override
+        public int compare(Slot lhs, Slot rhs) {
+            return Utils.compare(lhs.left, rhs.left);
+        }
+    };
+
+    private static final Comparator<File> LEAST_RECENTLY_USED = new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs) {
+            return Utils.compare(lhs.lastModified(), rhs.lastModified());
+        }
+    };
+
+    private final Handler mHandler = new Handler();
+    private final File mCacheDir;
+    private final View mViewport;
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // The request waiting for each target, so that rebinding a target cancels the previous one
+    private final HashMap<ImageView, Request> mTargets = new HashMap<ImageView, Request>();
+    // Every bound target, and the targets whose thumbnail was dropped
+    private final HashMap<ImageView, ThumbnailSource> mBound =
+            new HashMap<ImageView, ThumbnailSource>();
+    private final HashSet<ImageView> mDropped = new HashSet<ImageView>();
+    // The laid out targets from left to right as of the last layout, and the range of them
+    // whose thumbnails are kept
+    private final ArrayList<Slot> mSlots = new ArrayList<Slot>();
+    private int mKeptStart;
+    private int mKeptEnd;
+    // Guarded by mPending, along with the visible part of the scrolling content the loader
+    // thread measures the distance of requests from
+    private final ArrayList<Request> mPending = new ArrayList<Request>();
+    private int mVisibleLeft;
+    private int mVisibleRight;
+    private final LoaderThread mThread;
+    private int mSequence;
+    private boolean mShutdown;
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    onViewportScrolled();
+                }
+            };
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    onViewportLaidOut();
+                }
+            };
+
+    /**
+     * @param viewport the view the tiles scroll in; tiles closest to it are loaded first
+     */
+    WallpaperThumbnailLoader(Context context, View viewport) {
+        mCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+        mViewport = viewport;
+        mMemoryCache = new LruCache<String, Bitmap>(
+                (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        ViewTreeObserver observer = viewport.getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollListener);
+        observer.addOnGlobalLayoutListener(mLayoutListener);
+        mThread = new LoaderThread();
+        mThread.start();
+    }
+
+    /**
+     * Shows the given thumbnail in the target, right away if it is in the memory cache and
+     * once it has been loaded otherwise.
+     */
+    void bind(ImageView target, ThumbnailSource source) {
+        if (mShutdown) {
+            return;
+        }
+        mBound.put(target, source);
+        mDropped.remove(target);
+        Request previous = mTargets.remove(target);
+        if (previous != null) {
+            synchronized (mPending) {
+                mPending.remove(previous);
+            }
+        }
+
+        Bitmap thumb = mMemoryCache.get(source.getKey());
+        if (thumb != null) {
+            setThumbnail(target, thumb);
+            return;
+        }
+        target.setImageDrawable(null);
+        Request r = new Request(source, target, mSequence++);
+        mTargets.put(target, r);
+        measure(r);
+        synchronized (mPending) {
+            mPending.add(r);
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * Forgets the target, such as when its tile is removed, and stops loading its thumbnail.
+     */
+    void unbind(ImageView target) {
+        mBound.remove(target);
+        mDropped.remove(target);
+        Request r = mTargets.remove(target);
+        if (r != null) {
+            synchronized (mPending) {
+                mPending.remove(r);
+            }
+        }
+        // Its slot goes with the next layout, which the removal of the tile brings
+    }
+
+    /** Stops loading, and drops the thumbnails that are still pending. */
+    void shutdown() {
+        mShutdown = true;
+        ViewTreeObserver observer = mViewport.getViewTreeObserver();
+        observer.removeOnScrollChangedListener(mScrollListener);
+        observer.removeGlobalOnLayoutListener(mLayoutListener);
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mTargets.clear();
+        mBound.clear();
+        mDropped.clear();
+        mSlots.clear();
+        mKeptStart = mKeptEnd = 0;
+        mThread.interrupt();
+    }
+
+    // Sets the bounds of the slot's target in the scrolling content, if it is laid out in it
+    private void measure(Slot slot) {
+        final int left = getContentLeft(slot.target);
+        if (left == NOT_LAID_OUT || slot.target.getWidth() == 0) {
+            slot.left = slot.right = NOT_LAID_OUT;
+        } else {
+            slot.left = left;
+            slot.right = left + slot.target.getWidth();
+        }
+    }
+
+    /**
+     * Returns the left of the view in the scrolling content of the viewport, or
+     * {@link #NOT_LAID_OUT} if the view isn't in the viewport.
+     */
+    private int getContentLeft(View v) {
+        int left = 0;
+        while (v != mViewport) {
+            left += v.getLeft();
+            ViewParent parent = v.getParent();
+            if (!(parent instanceof View)) {
+                return NOT_LAID_OUT;
+            }
+            v = (View) parent;
+        }
+        return left;
+    }
+
+    private int getKeepDistance() {
+        return mViewport.getWidth() * KEEP_DISTANCE_VIEWPORTS;
+    }
+
+    private void updateVisibleBounds() {
+        synchronized (mPending) {
+            mVisibleLeft = mViewport.getScrollX();
+            mVisibleRight = mVisibleLeft + mViewport.getWidth();
+        }
+    }
+
+    private void onViewportLaidOut() {
+        // Where the targets are only changes on layout
+        mSlots.clear();
+        for (ImageView target : mBound.keySet()) {
+            Slot slot = new Slot();
+            slot.target = target;
+            measure(slot);
+            if (slot.left != NOT_LAID_OUT) {
+                mSlots.add(slot);
+            }
+        }
+        Collections.sort(mSlots, LEFT_TO_RIGHT);
+        synchronized (mPending) {
+            for (Request r : mPending) {
+                measure(r);
+            }
+        }
+        updateVisibleBounds();
+        if (getKeepDistance() == 0) {
+            return;
+        }
+
+        // The slots changed, so every target is kept or dropped again
+        mKeptStart = getFirstSlotEndingAfter(mViewport.getScrollX() - getKeepDistance());
+        mKeptEnd = getFirstSlotStartingAfter(
+                mViewport.getScrollX() + mViewport.getWidth() + getKeepDistance());
+        final int count = mSlots.size();
+        for (int i = 0; i < count; i++) {
+            if (i >= mKeptStart && i < mKeptEnd) {
+                keepThumbnail(mSlots.get(i).target);
+            } else {
+                dropThumbnail(mSlots.get(i).target);
+            }
+        }
+    }
+
+    private void onViewportScrolled() {
+        updateVisibleBounds();
+        if (getKeepDistance() == 0) {
+            return;
+        }
+
+        // Only the targets entering or leaving the kept range change
+        final int start = getFirstSlotEndingAfter(mViewport.getScrollX() - getKeepDistance());
+        final int end = getFirstSlotStartingAfter(
+                mViewport.getScrollX() + mViewport.getWidth() + getKeepDistance());
+        for (int i = mKeptStart; i < mKeptEnd; i++) {
+            if (i < start || i >= end) {
+                dropThumbnail(mSlots.get(i).target);
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (i < mKeptStart || i >= mKeptEnd) {
+                keepThumbnail(mSlots.get(i).target);
+            }
+        }
+        mKeptStart = start;
+        mKeptEnd = end;
+    }
+
+    // Returns the index of the first slot whose right is at or after x
+    private int getFirstSlotEndingAfter(int x) {
+        int low = 0;
+        int high = mSlots.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mSlots.get(mid).right < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns the index of the first slot whose left is after x
+    private int getFirstSlotStartingAfter(int x) {
+        int low = 0;
+        int high = mSlots.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mSlots.get(mid).left <= x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void keepThumbnail(ImageView target) {
+        if (mDropped.contains(target)) {
+            bind(target, mBound.get(target));
+        }
+    }
+
+    private void dropThumbnail(ImageView target) {
+        // Targets still waiting for their thumbnail are dropped once it is loaded
+        if (mBound.containsKey(target) && !mDropped.contains(target)
+                && !mTargets.containsKey(target)) {
+            target.setImageDrawable(null);
+            mDropped.add(target);
+        }
+    }
+
+    private boolean isKept(Slot slot) {
+        if (slot.left == NOT_LAID_OUT || getKeepDistance() == 0) {
+            return true;
+        }
+        final int visibleLeft = mViewport.getScrollX();
+        final int visibleRight = visibleLeft + mViewport.getWidth();
+        return getDistance(slot, visibleLeft, visibleRight) <= getKeepDistance();
+    }
+
+    // Returns how far the slot is from the visible bounds horizontally, 0 if it is in them
+    private static int getDistance(Slot slot, int visibleLeft, int visibleRight) {
+        if (slot.left == NOT_LAID_OUT) {
+            // Not laid out yet, after everything that is
+            return Integer.MAX_VALUE;
+        }
+        if (slot.right < visibleLeft) {
+            return visibleLeft - slot.right;
+        } else if (slot.left > visibleRight) {
+            return slot.left - visibleRight;
+        }
+        return 0;
+    }
+
+    /** Returns how far the view is from the viewport horizontally, 0 if it is in it. */
+    int getDistanceToViewport(View v) {
+        Slot slot = new Slot();
+        final int left = getContentLeft(v);
+        if (left != NOT_LAID_OUT && v.getWidth() != 0) {
+            slot.left = left;
+            slot.right = left + v.getWidth();
+        }
+        final int visibleLeft = mViewport.getScrollX();
+        return getDistance(slot, visibleLeft, visibleLeft + mViewport.getWidth());
+    }
+
+    private void onThumbnailLoaded(Request r, Bitmap thumb) {
+        if (mShutdown) {
+            return;
+        }
+        if (thumb == null) {
+            Log.e(TAG, "Error loading thumbnail " + r.source.getKey());
+        } else {
+            mMemoryCache.put(r.source.getKey(), thumb);
+        }
+        if (mTargets.get(r.target) == r) {
+            mTargets.remove(r.target);
+            if (thumb == null) {
+                return;
+            }
+            if (isKept(r)) {
+                setThumbnail(r.target, thumb);
+            } else {
+                // It scrolled far away while loading
+                mDropped.add(r.target);
+            }
+        }
+    }
+
+    private static void setThumbnail(ImageView target, Bitmap thumb) {
+        target.setImageBitmap(thumb);
+        Drawable thumbDrawable = target.getDrawable();
+        thumbDrawable.setDither(true);
+    }
+
+    // Runs on the loader thread
+    private Bitmap load(ThumbnailSource source) {
+        final String persistentKey = source.getPersistentKey();
+        if (persistentKey == null) {
+            return source.loadThumbnail();
+        }
+        File file = new File(mCacheDir, Long.toHexString(Utils.crc64Long(persistentKey)));
+        if (file.exists()) {
+            Bitmap thumb = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (thumb != null) {
+                file.setLastModified(System.currentTimeMillis());
+                return thumb;
+            }
+            file.delete();
+        }
+
+        Bitmap thumb = source.loadThumbnail();
+        if (thumb != null) {
+            writeToDiskCache(file, thumb);
+        }
+        return thumb;
+    }
+
+    private void writeToDiskCache(File file, Bitmap thumb) {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            Log.w(TAG, "cannot create " + mCacheDir);
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            thumb.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Error while writing thumbnail to " + file, e);
+            file.delete();
+        } finally {
+            Utils.closeSilently(out);
+        }
+        trimDiskCache();
+    }
+
+    private void trimDiskCache() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, LEAST_RECENTLY_USED);
+        for (int i = 0; i < files.length && size > MAX_DISK_CACHE_BYTES; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private class LoaderThread extends Thread {
+        LoaderThread() {
+            super("WallpaperThumbnailLoader");
+        }
+
+        private Request waitForRequest() throws InterruptedException {
+            synchronized (mPending) {
+                while (mPending.isEmpty()) {
+                    mPending.wait();
+                }
+                Request next = null;
+                int nextDistance = 0;
+                for (Request r : mPending) {
+                    final int distance = getDistance(r, mVisibleLeft, mVisibleRight);
+                    if (next == null || distance < nextDistance
+                            || (distance == nextDistance && r.sequence < next.sequence)) {
+                        next = r;
+                        nextDistance = distance;
+                    }
+                }
+                mPending.remove(next);
+                return next;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    final Request r = waitForRequest();
+                    final long start = System.nanoTime();
+                    Bitmap loaded = null;
+                    try {
+                        loaded = load(r.source);
+                    } catch (RuntimeException e) {
+                        // Keep loading the other thumbnails
+                        Log.e(TAG, "Failed to load thumbnail " + r.source.getKey(), e);
+                    } catch (OutOfMemoryError e) {
+                        Log.e(TAG, "Out of memory loading thumbnail " + r.source.getKey(), e);
+                    }
+                    final Bitmap thumb = loaded;
+                    if (DEBUG) {
+                        Log.d(TAG, "loaded " + r.source.getKey() + " in "
+                                + (System.nanoTime() - start) / 1000 + "us");
+                    }
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            onThumbnailLoaded(r, thumb);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                // We've been shut down
+            }
+        }
+    }
+}
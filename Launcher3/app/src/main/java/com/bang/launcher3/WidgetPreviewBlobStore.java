@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.launcher3;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Stores widget and shortcut previews as run-length encoded raw pixels in an append-only
+ * blob file, which is memory mapped for reading, plus a small append-only index file.
+ * Unlike {@link WidgetPreviewLoader.CacheDb} neither reading nor writing a preview involves
+ * PNG encoding or decoding.
+ *
+ * Blob file: a header (version, generation) followed by a sequence of encoded previews. Each
+ * preview is a sequence of runs; a positive count n is followed by one pixel repeated n times,
+ * a negative count -n by n literal pixels.
+ *
+ * Index file: a header (version, generation) followed by a sequence of records, either OP_PUT
+ * (name, size, offset, length, width, height) or OP_REMOVE (name, size). Replaying it gives the
+ * live previews. The index is only used with a blob file of the same generation, so that an
+ * index never points into a blob file it wasn't written for.
+ *
+ * The live previews are capped to {@link #MAX_LIVE_BYTES}, the least recently used ones being
+ * dropped first, and the blob file is compacted once most of it is no longer reachable.
+ */
+class WidgetPreviewBlobStore implements WidgetPreviewLoader.PreviewStore {
+    private static final String TAG = "WidgetPreviewBlobStore";
+
+    private static final String DIR_NAME = "widgetpreviews";
+    private static final String BLOB_FILE_NAME = "previews.blob";
+    private static final String INDEX_FILE_NAME = "previews.idx";
+
+    private static final int VERSION = 2;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // Version and generation
+    private static final int BLOB_HEADER_SIZE = 4 + 8;
+
+    // Don't bother compacting until this many bytes are unreachable
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+    // Most bytes of previews kept
+    private static final long MAX_LIVE_BYTES = 16 * 1024 * 1024;
+
+    private static class Entry {
+        String name;
+        String size;
+        long offset;
+        int length;
+        int width;
+        int height;
+    }
+
+    private final File mBlobFile;
+    private final File mIndexFile;
+    // Store used before this one, which is deleted
+    private final File mLegacyDbFile;
+    // In access order, to drop the least recently used previews first
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mLiveBytes;
+    private long mGeneration;
+
+    private RandomAccessFile mBlob;
+    private DataOutputStream mIndex;
+    private MappedByteBuffer mMapped;
+
+    // Scratch buffers, reused across calls under the store lock
+    private ByteBuffer mPixels;
+    private ByteBuffer mEncoded;
+
+    public WidgetPreviewBlobStore(Context context) {
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        dir.mkdirs();
+        mBlobFile = new File(dir, BLOB_FILE_NAME);
+        mIndexFile = new File(dir, INDEX_FILE_NAME);
+        mLegacyDbFile = new File(context.getCacheDir(), WidgetPreviewLoader.CacheDb.DB_NAME);
+    }
+
+    private static String getKey(String name, String size) {
+        return size + ";" + name;
+    }
+
+    @Override
+    public synchronized Bitmap read(String name, String size, Bitmap b) {
+        if (!ensureOpenLocked()) {
+            return null;
+        }
+        Entry entry = mEntries.get(getKey(name, size));
+        if (entry == null) {
+            return null;
+        }
+        if (b == null || !b.isMutable() || b.getConfig() != Bitmap.Config.ARGB_8888 ||
+                b.getWidth() != entry.width || b.getHeight() != entry.height) {
+            b = Bitmap.createBitmap(entry.width, entry.height, Bitmap.Config.ARGB_8888);
+        }
+        try {
+            if (mMapped == null || mMapped.capacity() < entry.offset + entry.length) {
+                mMapped = mBlob.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        mBlob.length());
+                mMapped.order(ByteOrder.nativeOrder());
+            }
+            ByteBuffer src = mMapped.duplicate();
+            src.order(ByteOrder.nativeOrder());
+            src.position((int) entry.offset);
+            src.limit((int) (entry.offset + entry.length));
+
+            ByteBuffer pixels = getPixelBufferLocked(entry.width * entry.height * 4);
+            if (!decode(src, pixels.asIntBuffer())) {
+                Log.w(TAG, "Corrupt preview " + name + ", dropping it");
+                removeEntryLocked(entry);
+                return null;
+            }
+            pixels.rewind();
+            b.copyPixelsFromBuffer(pixels);
+            return b;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read preview " + name, e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void write(String name, String size, Bitmap preview) {
+        if (preview.getConfig() != Bitmap.Config.ARGB_8888 || !ensureOpenLocked()) {
+            return;
+        }
+        final int width = preview.getWidth();
+        final int height = preview.getHeight();
+        ByteBuffer pixels = getPixelBufferLocked(width * height * 4);
+        preview.copyPixelsToBuffer(pixels);
+        pixels.rewind();
+
+        ByteBuffer encoded = getEncodedBufferLocked(width * height);
+        encode(pixels.asIntBuffer(), encoded);
+        encoded.flip();
+
+        try {
+            final long offset = mBlob.length();
+            final int length = encoded.remaining();
+            FileChannel channel = mBlob.getChannel();
+            long position = offset;
+            while (encoded.hasRemaining()) {
+                position += channel.write(encoded, position);
+            }
+
+            Entry entry = new Entry();
+            entry.name = name;
+            entry.size = size;
+            entry.offset = offset;
+            entry.length = length;
+            entry.width = width;
+            entry.height = height;
+            writePutLocked(entry);
+            Entry old = mEntries.put(getKey(name, size), entry);
+            if (old != null) {
+                mLiveBytes -= old.length;
+            }
+            mLiveBytes += length;
+            trimLocked();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write preview " + name, e);
+        }
+    }
+
+    /**
+     * Drops the least recently used previews beyond {@link #MAX_LIVE_BYTES}, and compacts the
+     * blob file if that leaves most of it unreachable.
+     */
+    private void trimLocked() throws IOException {
+        if (mLiveBytes > MAX_LIVE_BYTES) {
+            ArrayList<Entry> removed = new ArrayList<Entry>();
+            long liveBytes = mLiveBytes;
+            Iterator<Entry> it = mEntries.values().iterator();
+            // Never the preview just written, which is the most recently used one
+            while (liveBytes > MAX_LIVE_BYTES && mEntries.size() - removed.size() > 1) {
+                Entry entry = it.next();
+                removed.add(entry);
+                liveBytes -= entry.length;
+            }
+            for (Entry entry : removed) {
+                removeEntryLocked(entry);
+            }
+        }
+        if (needsCompactionLocked(mBlob.length())) {
+            closeLocked();
+            compactLocked();
+            openLocked();
+        }
+    }
+
+    @Override
+    public synchronized void removeItem(String name) {
+        if (!ensureOpenLocked()) {
+            return;
+        }
+        ArrayList<Entry> removed = new ArrayList<Entry>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.name.equals(name)) {
+                removed.add(entry);
+            }
+        }
+        for (Entry entry : removed) {
+            removeEntryLocked(entry);
+        }
+    }
+
+    @Override
+    public synchronized void removePackage(String packageName) {
+        if (!ensureOpenLocked()) {
+            return;
+        }
+        ArrayList<Entry> removed = new ArrayList<Entry>();
+        for (Entry entry : mEntries.values()) {
+            if (WidgetPreviewLoader.isPreviewForPackage(entry.name, packageName)) {
+                removed.add(entry);
+            }
+        }
+        for (Entry entry : removed) {
+            removeEntryLocked(entry);
+        }
+    }
+
+    private void removeEntryLocked(Entry entry) {
+        mEntries.remove(getKey(entry.name, entry.size));
+        mLiveBytes -= entry.length;
+        try {
+            mIndex.writeByte(OP_REMOVE);
+            mIndex.writeUTF(entry.name);
+            mIndex.writeUTF(entry.size);
+            mIndex.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to update index", e);
+        }
+    }
+
+    private void writePutLocked(Entry entry) throws IOException {
+        mIndex.writeByte(OP_PUT);
+        mIndex.writeUTF(entry.name);
+        mIndex.writeUTF(entry.size);
+        mIndex.writeLong(entry.offset);
+        mIndex.writeInt(entry.length);
+        mIndex.writeInt(entry.width);
+        mIndex.writeInt(entry.height);
+        mIndex.flush();
+    }
+
+    private boolean needsCompactionLocked(long blobLength) {
+        final long deadBytes = blobLength - BLOB_HEADER_SIZE - mLiveBytes;
+        return deadBytes > Math.max(mLiveBytes, MIN_COMPACT_BYTES);
+    }
+
+    /**
+     * Opens the files and replays the index the first time the store is used, compacting
+     * the blob file if most of it is no longer reachable.
+     */
+    private boolean ensureOpenLocked() {
+        if (mBlob != null) {
+            return true;
+        }
+        try {
+            if (mLegacyDbFile.exists()) {
+                SQLiteDatabase.deleteDatabase(mLegacyDbFile);
+            }
+            if (!readIndexLocked()) {
+                mBlobFile.delete();
+                mIndexFile.delete();
+                mEntries.clear();
+                mLiveBytes = 0;
+                mGeneration = 0;
+            } else if (needsCompactionLocked(mBlobFile.length())) {
+                compactLocked();
+            }
+            openLocked();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open preview store", e);
+            closeLocked();
+            return false;
+        }
+    }
+
+    private void openLocked() throws IOException {
+        final boolean newFiles = !mBlobFile.exists();
+        mBlob = new RandomAccessFile(mBlobFile, "rw");
+        mIndex = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mIndexFile, true)));
+        if (newFiles) {
+            mBlob.writeInt(VERSION);
+            mBlob.writeLong(mGeneration);
+            mIndex.writeInt(VERSION);
+            mIndex.writeLong(mGeneration);
+            mIndex.flush();
+        }
+    }
+
+    private void closeLocked() {
+        try {
+            if (mBlob != null) {
+                mBlob.close();
+            }
+            if (mIndex != null) {
+                mIndex.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close preview store", e);
+        }
+        mBlob = null;
+        mIndex = null;
+        mMapped = null;
+    }
+
+    /**
+     * Returns false if the files don't exist or can't be used.
+     */
+    private boolean readIndexLocked() throws IOException {
+        if (!mIndexFile.exists() || !mBlobFile.exists()) {
+            return false;
+        }
+        final long blobLength = mBlobFile.length();
+        if (blobLength < BLOB_HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream blob = new DataInputStream(new FileInputStream(mBlobFile));
+        try {
+            if (blob.readInt() != VERSION) {
+                return false;
+            }
+            mGeneration = blob.readLong();
+        } finally {
+            blob.close();
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mIndexFile)));
+        try {
+            if (in.readInt() != VERSION || in.readLong() != mGeneration) {
+                // The index belongs to other previews, such as after a crash while compacting
+                return false;
+            }
+            while (true) {
+                final byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                Entry entry = new Entry();
+                entry.name = in.readUTF();
+                entry.size = in.readUTF();
+                final String key = getKey(entry.name, entry.size);
+                Entry old = mEntries.remove(key);
+                if (old != null) {
+                    mLiveBytes -= old.length;
+                }
+                if (op == OP_PUT) {
+                    entry.offset = in.readLong();
+                    entry.length = in.readInt();
+                    entry.width = in.readInt();
+                    entry.height = in.readInt();
+                    if (entry.offset >= BLOB_HEADER_SIZE
+                            && entry.offset + entry.length <= blobLength) {
+                        mEntries.put(key, entry);
+                        mLiveBytes += entry.length;
+                    }
+                } else if (op != OP_REMOVE) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            // A record was only partially written, the ones before it are still good
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Rewrites the blob file with only the live previews, along with a new index. Both are
+     * written under the next generation and synced before replacing the current files, the
+     * index first: until the blob file is replaced as well, the generations don't match and
+     * the previews are dropped on the next open rather than read from the wrong offsets.
+     * The files must be closed.
+     */
+    private void compactLocked() throws IOException {
+        final long generation = mGeneration + 1;
+        final File blobTmp = new File(mBlobFile.getPath() + ".tmp");
+        final File indexTmp = new File(mIndexFile.getPath() + ".tmp");
+
+        // New offsets, only applied once the new files are in place
+        final ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        final long[] offsets = new long[entries.size()];
+        RandomAccessFile src = new RandomAccessFile(mBlobFile, "r");
+        RandomAccessFile dst = new RandomAccessFile(blobTmp, "rw");
+        try {
+            dst.setLength(0);
+            dst.writeInt(VERSION);
+            dst.writeLong(generation);
+            FileChannel in = src.getChannel();
+            FileChannel out = dst.getChannel();
+            long position = BLOB_HEADER_SIZE;
+            for (int i = 0; i < offsets.length; i++) {
+                final Entry entry = entries.get(i);
+                long copied = 0;
+                while (copied < entry.length) {
+                    copied += in.transferTo(entry.offset + copied, entry.length - copied, out);
+                }
+                offsets[i] = position;
+                position += entry.length;
+            }
+            dst.getFD().sync();
+        } finally {
+            src.close();
+            dst.close();
+        }
+
+        FileOutputStream indexOut = new FileOutputStream(indexTmp);
+        try {
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(indexOut));
+            index.writeInt(VERSION);
+            index.writeLong(generation);
+            for (int i = 0; i < offsets.length; i++) {
+                final Entry entry = entries.get(i);
+                index.writeByte(OP_PUT);
+                index.writeUTF(entry.name);
+                index.writeUTF(entry.size);
+                index.writeLong(offsets[i]);
+                index.writeInt(entry.length);
+                index.writeInt(entry.width);
+                index.writeInt(entry.height);
+            }
+            index.flush();
+            indexOut.getFD().sync();
+        } finally {
+            indexOut.close();
+        }
+
+        if (!indexTmp.renameTo(mIndexFile) || !blobTmp.renameTo(mBlobFile)) {
+            blobTmp.delete();
+            indexTmp.delete();
+            throw new IOException("Unable to replace " + mBlobFile);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            entries.get(i).offset = offsets[i];
+        }
+        mGeneration = generation;
+    }
+
+    private ByteBuffer getPixelBufferLocked(int bytes) {
+        if (mPixels == null || mPixels.capacity() < bytes) {
+            mPixels = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        mPixels.clear();
+        mPixels.limit(bytes);
+        return mPixels;
+    }
+
+    private ByteBuffer getEncodedBufferLocked(int pixels) {
+        // Runs are at least 3 pixels long, so the worst case is a single run of literals:
+        // one count followed by every pixel
+        final int bytes = (pixels + 1) * 4;
+        if (mEncoded == null || mEncoded.capacity() < bytes) {
+            mEncoded = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        mEncoded.clear();
+        return mEncoded;
+    }
+
+    private static void encode(IntBuffer src, ByteBuffer dst) {
+        final int count = src.remaining();
+        int i = 0;
+        int literalStart = -1;
+        while (i < count) {
+            final int pixel = src.get(i);
+            int run = 1;
+            while (i + run < count && src.get(i + run) == pixel) {
+                run++;
+            }
+            if (run >= 3) {
+                if (literalStart >= 0) {
+                    writeLiterals(src, literalStart, i, dst);
+                    literalStart = -1;
+                }
+                dst.putInt(run);
+                dst.putInt(pixel);
+                i += run;
+            } else {
+                if (literalStart < 0) {
+                    literalStart = i;
+                }
+                i += run;
+            }
+        }
+        if (literalStart >= 0) {
+            writeLiterals(src, literalStart, count, dst);
+        }
+    }
+
+    private static void writeLiterals(IntBuffer src, int start, int end, ByteBuffer dst) {
+        dst.putInt(start - end);
+        for (int i = start; i < end; i++) {
+            dst.putInt(src.get(i));
+        }
+    }
+
+    private static boolean decode(ByteBuffer src, IntBuffer dst) {
+        while (src.remaining() >= 4) {
+            final int n = src.getInt();
+            if (n > 0) {
+                if (src.remaining() < 4 || dst.remaining() < n) {
+                    return false;
+                }
+                final int pixel = src.getInt();
+                for (int i = 0; i < n; i++) {
+                    dst.put(pixel);
+                }
+            } else if (n < 0) {
+                if (src.remaining() < -n * 4 || dst.remaining() < -n) {
+                    return false;
+                }
+                for (int i = 0; i < -n; i++) {
+                    dst.put(src.getInt());
+                }
+            } else {
+                return false;
+            }
+        }
+        return !dst.hasRemaining();
+    }
+}
@@ -1,5 +1,6 @@
 package com.bang.launcher3;
 
+import android.app.ActivityManager;
 import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.ContentValues;
@@ -25,13 +26,17 @@ import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import com.bang.gallery3d.common.BitmapPool;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 
 abstract class SoftReferenceThreadLocal<T> {
     private ThreadLocal<SoftReference<T>> mThreadLocal;
@@ -101,6 +106,15 @@ class BitmapFactoryOptionsCache extends SoftReferenceThreadLocal<BitmapFactory.O
 public class WidgetPreviewLoader {
     static final String TAG = "WidgetPreviewLoader";
 
+    // true = store generated previews as raw pixels in a memory mapped file
+    // (WidgetPreviewBlobStore)
+    // false = store them as PNGs in widgetpreviews.db (CacheDb)
+    static final boolean USE_PREVIEW_BLOB_STORE = true;
+
+    // The memory cache may use up to 1/MEMORY_CACHE_FRACTION of the app's memory class,
+    // and the pool of reusable bitmaps half of that again
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
     private int mPreviewBitmapWidth;
     private int mPreviewBitmapHeight;
     private String mSize;
@@ -118,18 +132,32 @@ public class WidgetPreviewLoader {
     private RectCache mCachedAppWidgetPreviewSrcRect = new RectCache();
     private RectCache mCachedAppWidgetPreviewDestRect = new RectCache();
     private PaintCache mCachedAppWidgetPreviewPaint = new PaintCache();
-    private String mCachedSelectQuery;
-    private BitmapFactoryOptionsCache mCachedBitmapFactoryOptions = new BitmapFactoryOptionsCache();
 
     private int mAppIconSize;
     private IconCache mIconCache;
 
     private final float sWidgetPreviewIconPaddingPercentage = 0.25f;
 
-    private CacheDb mDb;
+    private PreviewStore mDb;
 
+    // Previews currently handed out to views, until they are passed to recycleBitmap()
     private HashMap<String, WeakReference<Bitmap>> mLoadedPreviews;
-    private ArrayList<SoftReference<Bitmap>> mUnusedBitmaps;
+    // Most recently used previews, in least recently used first order. Guarded by
+    // mLoadedPreviews, as is everything below it.
+    private final LinkedHashMap<String, Bitmap> mMemoryCache = new LinkedHashMap<String, Bitmap>();
+    private final int mMemoryCacheMaxBytes;
+    private int mMemoryCacheBytes;
+    private int mMemoryHits;
+    private int mMemoryMisses;
+    private int mMemoryEvictions;
+    private int mDbHits;
+    private int mGeneratedPreviews;
+    private int mDbReads;
+    private long mDbReadNanos;
+    private int mDbWrites;
+    private long mDbWriteNanos;
+
+    private final BitmapPool mBitmapPool = BitmapPool.getInstance();
     private static HashSet<String> sInvalidPackages;
 
     static {
@@ -144,9 +172,12 @@ public class WidgetPreviewLoader {
         mPackageManager = mContext.getPackageManager();
         mAppIconSize = grid.iconSizePx;
         mIconCache = app.getIconCache();
-        mDb = app.getWidgetPreviewCacheDb();
+        mDb = app.getWidgetPreviewStore();
         mLoadedPreviews = new HashMap<String, WeakReference<Bitmap>>();
-        mUnusedBitmaps = new ArrayList<SoftReference<Bitmap>>();
+
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryCacheMaxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_FRACTION;
     }
 
     public void setPreviewSize(int previewWidth, int previewHeight,
@@ -168,46 +199,44 @@ public class WidgetPreviewLoader {
         if (!packageValid) {
             return null;
         }
-        if (packageValid) {
-            synchronized(mLoadedPreviews) {
-                // check if it exists in our existing cache
-                if (mLoadedPreviews.containsKey(name) && mLoadedPreviews.get(name).get() != null) {
-                    return mLoadedPreviews.get(name).get();
-                }
-            }
-        }
-
-        Bitmap unusedBitmap = null;
-        synchronized(mUnusedBitmaps) {
-            // not in cache; we need to load it from the db
-            while ((unusedBitmap == null || !unusedBitmap.isMutable() ||
-                    unusedBitmap.getWidth() != mPreviewBitmapWidth ||
-                    unusedBitmap.getHeight() != mPreviewBitmapHeight)
-                    && mUnusedBitmaps.size() > 0) {
-                unusedBitmap = mUnusedBitmaps.remove(0).get();
-            }
-            if (unusedBitmap != null) {
-                final Canvas c = mCachedAppWidgetPreviewCanvas.get();
-                c.setBitmap(unusedBitmap);
-                c.drawColor(0, PorterDuff.Mode.CLEAR);
-                c.setBitmap(null);
+        synchronized(mLoadedPreviews) {
+            // check if it exists in our existing cache
+            Bitmap cached = getFromMemoryCacheLocked(name);
+            if (cached != null) {
+                mMemoryHits++;
+                mLoadedPreviews.put(name, new WeakReference<Bitmap>(cached));
+                return cached;
             }
+            mMemoryMisses++;
         }
 
-        if (unusedBitmap == null) {
+        // not in cache; we need to load it from the db
+        Bitmap unusedBitmap = mBitmapPool.acquire(mPreviewBitmapWidth, mPreviewBitmapHeight,
+                Bitmap.Config.ARGB_8888);
+        if (unusedBitmap != null) {
+            final Canvas c = mCachedAppWidgetPreviewCanvas.get();
+            c.setBitmap(unusedBitmap);
+            c.drawColor(0, PorterDuff.Mode.CLEAR);
+            c.setBitmap(null);
+        } else {
             unusedBitmap = Bitmap.createBitmap(mPreviewBitmapWidth, mPreviewBitmapHeight,
                     Bitmap.Config.ARGB_8888);
         }
 
-        Bitmap preview = null;
-
-        if (packageValid) {
-            preview = readFromDb(name, unusedBitmap);
-        }
+        final long readStart = System.nanoTime();
+        Bitmap preview = mDb.read(name, mSize, unusedBitmap);
+        final long readNanos = System.nanoTime() - readStart;
 
         if (preview != null) {
+            if (preview != unusedBitmap) {
+                mBitmapPool.release(unusedBitmap);
+            }
             synchronized(mLoadedPreviews) {
+                mDbHits++;
+                mDbReads++;
+                mDbReadNanos += readNanos;
                 mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+                putInMemoryCacheLocked(name, preview);
             }
             return preview;
         } else {
@@ -219,14 +248,23 @@ public class WidgetPreviewLoader {
             }
 
             synchronized(mLoadedPreviews) {
+                mGeneratedPreviews++;
                 mLoadedPreviews.put(name, new WeakReference<Bitmap>(preview));
+                putInMemoryCacheLocked(name, preview);
             }
 
             // write to db on a thread pool... this can be done lazily and improves the performance
             // of the first time widget previews are loaded
+            final String size = mSize;
             new AsyncTask<Void, Void, Void>() {
                 public Void doInBackground(Void ... args) {
-                    writeToDb(o, generatedPreview);
+                    final long writeStart = System.nanoTime();
+                    mDb.write(name, size, generatedPreview);
+                    final long writeNanos = System.nanoTime() - writeStart;
+                    synchronized(mLoadedPreviews) {
+                        mDbWrites++;
+                        mDbWriteNanos += writeNanos;
+                    }
                     return null;
                 }
             }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
@@ -242,10 +280,9 @@ public class WidgetPreviewLoader {
                 Bitmap b = mLoadedPreviews.get(name).get();
                 if (b == bitmapToRecycle) {
                     mLoadedPreviews.remove(name);
-                    if (bitmapToRecycle.isMutable()) {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(new SoftReference<Bitmap>(b));
-                        }
+                    // Previews still in the memory cache are only reused once evicted
+                    if (mMemoryCache.get(name) != b) {
+                        mBitmapPool.release(b);
                     }
                 } else {
                     throw new RuntimeException("Bitmap passed in doesn't match up");
@@ -254,14 +291,103 @@ public class WidgetPreviewLoader {
         }
     }
 
-    static class CacheDb extends SQLiteOpenHelper {
+    private Bitmap getFromMemoryCacheLocked(String name) {
+        WeakReference<Bitmap> ref = mLoadedPreviews.get(name);
+        Bitmap b = ref != null ? ref.get() : null;
+        if (b != null) {
+            return b;
+        }
+        b = mMemoryCache.remove(name);
+        if (b == null) {
+            return null;
+        }
+        if (b.getWidth() != mPreviewBitmapWidth || b.getHeight() != mPreviewBitmapHeight) {
+            // The preview size changed since this was cached
+            mMemoryCacheBytes -= b.getByteCount();
+            mBitmapPool.release(b);
+            return null;
+        }
+        // Re-insert to mark it as the most recently used
+        mMemoryCache.put(name, b);
+        return b;
+    }
+
+    private void putInMemoryCacheLocked(String name, Bitmap preview) {
+        Bitmap old = mMemoryCache.remove(name);
+        if (old != null) {
+            mMemoryCacheBytes -= old.getByteCount();
+        }
+        mMemoryCache.put(name, preview);
+        mMemoryCacheBytes += preview.getByteCount();
+        trimMemoryCacheLocked(mMemoryCacheMaxBytes);
+    }
+
+    private void trimMemoryCacheLocked(int maxBytes) {
+        Iterator<Entry<String, Bitmap>> it = mMemoryCache.entrySet().iterator();
+        while (mMemoryCacheBytes > maxBytes && it.hasNext()) {
+            Entry<String, Bitmap> e = it.next();
+            it.remove();
+            final Bitmap b = e.getValue();
+            mMemoryCacheBytes -= b.getByteCount();
+            mMemoryEvictions++;
+
+            // A view may still be showing it, in which case recycleBitmap() will pool it
+            WeakReference<Bitmap> ref = mLoadedPreviews.get(e.getKey());
+            if (ref == null || ref.get() != b) {
+                mBitmapPool.release(b);
+            }
+        }
+    }
+
+    public void dumpState() {
+        synchronized (mLoadedPreviews) {
+            Log.d(TAG, "memory cache: " + mMemoryCache.size() + " previews, "
+                    + mMemoryCacheBytes + "/" + mMemoryCacheMaxBytes + " bytes, "
+                    + mMemoryHits + " hits, " + mMemoryMisses + " misses, "
+                    + mMemoryEvictions + " evictions");
+            Log.d(TAG, "db hits: " + mDbHits + ", generated: " + mGeneratedPreviews);
+            Log.d(TAG, mDb.getClass().getSimpleName() + ": average read "
+                    + (mDbReads > 0 ? mDbReadNanos / mDbReads / 1000 : 0) + "us over "
+                    + mDbReads + " reads, average write "
+                    + (mDbWrites > 0 ? mDbWriteNanos / mDbWrites / 1000 : 0) + "us over "
+                    + mDbWrites + " writes");
+        }
+        mBitmapPool.dumpState();
+    }
+
+    /**
+     * Persistent storage for generated previews, keyed by object name and preview size.
+     */
+    interface PreviewStore {
+        /**
+         * Returns the stored preview, decoded into {@code b} when possible, or null if there
+         * is none.
+         */
+        Bitmap read(String name, String size, Bitmap b);
+        void write(String name, String size, Bitmap preview);
+        void removeItem(String name);
+        void removePackage(String packageName);
+    }
+
+    static PreviewStore createPreviewStore(Context context) {
+        if (USE_PREVIEW_BLOB_STORE) {
+            return new WidgetPreviewBlobStore(context);
+        } else {
+            return new CacheDb(context);
+        }
+    }
+
+    static class CacheDb extends SQLiteOpenHelper implements PreviewStore {
         final static int DB_VERSION = 2;
         final static String DB_NAME = "widgetpreviews.db";
         final static String TABLE_NAME = "shortcut_and_widget_previews";
         final static String COLUMN_NAME = "name";
         final static String COLUMN_SIZE = "size";
         final static String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
+        final static String SELECT_QUERY = COLUMN_NAME + " = ? AND " + COLUMN_SIZE + " = ?";
         Context mContext;
+        private BitmapFactoryOptionsCache mCachedBitmapFactoryOptions =
+                new BitmapFactoryOptionsCache();
 
         public CacheDb(Context context) {
             super(context, new File(context.getCacheDir(), DB_NAME).getPath(), null, DB_VERSION);
@@ -286,6 +412,69 @@ public class WidgetPreviewLoader {
                 db.execSQL("DELETE FROM " + TABLE_NAME);
             }
         }
+
+        @Override
+        public Bitmap read(String name, String size, Bitmap b) {
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor result = db.query(TABLE_NAME,
+                    new String[] { COLUMN_PREVIEW_BITMAP }, // cols to return
+                    SELECT_QUERY, // select query
+                    new String[] { name, size }, // args to select query
+                    null,
+                    null,
+                    null,
+                    null);
+            if (result.getCount() > 0) {
+                result.moveToFirst();
+                byte[] blob = result.getBlob(0);
+                result.close();
+                final BitmapFactory.Options opts = mCachedBitmapFactoryOptions.get();
+                opts.inBitmap = b;
+                opts.inSampleSize = 1;
+                try {
+                    return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+                } catch (IllegalArgumentException e) {
+                    removeItemFromDb(this, name);
+                    return null;
+                }
+            } else {
+                result.close();
+                return null;
+            }
+        }
+
+        @Override
+        public void write(String name, String size, Bitmap preview) {
+            SQLiteDatabase db = getWritableDatabase();
+            ContentValues values = new ContentValues();
+
+            values.put(COLUMN_NAME, name);
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            values.put(COLUMN_PREVIEW_BITMAP, stream.toByteArray());
+            values.put(COLUMN_SIZE, size);
+            db.insert(TABLE_NAME, null, values);
+        }
+
+        @Override
+        public void removeItem(String name) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE_NAME,
+                    COLUMN_NAME + " = ? ", // SELECT query
+                    new String[] { name }); // args to SELECT query
+        }
+
+        @Override
+        public void removePackage(String packageName) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(TABLE_NAME,
+                    COLUMN_NAME + " LIKE ? OR " +
+                    COLUMN_NAME + " LIKE ?", // SELECT query
+                    new String[] {
+                        WIDGET_PREFIX + packageName + "/%",
+                        SHORTCUT_PREFIX + packageName + "/%"} // args to SELECT query
+                        );
+        }
     }
 
     private static final String WIDGET_PREFIX = "Widget:";
@@ -321,33 +510,18 @@ public class WidgetPreviewLoader {
         }
     }
 
-    private void writeToDb(Object o, Bitmap preview) {
-        String name = getObjectName(o);
-        SQLiteDatabase db = mDb.getWritableDatabase();
-        ContentValues values = new ContentValues();
-
-        values.put(CacheDb.COLUMN_NAME, name);
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        preview.compress(Bitmap.CompressFormat.PNG, 100, stream);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, stream.toByteArray());
-        values.put(CacheDb.COLUMN_SIZE, mSize);
-        db.insert(CacheDb.TABLE_NAME, null, values);
+    static boolean isPreviewForPackage(String name, String packageName) {
+        return name.startsWith(WIDGET_PREFIX + packageName + "/") ||
+                name.startsWith(SHORTCUT_PREFIX + packageName + "/");
     }
 
-    public static void removePackageFromDb(final CacheDb cacheDb, final String packageName) {
+    public static void removePackageFromDb(final PreviewStore store, final String packageName) {
         synchronized(sInvalidPackages) {
             sInvalidPackages.add(packageName);
         }
         new AsyncTask<Void, Void, Void>() {
             public Void doInBackground(Void ... args) {
-                SQLiteDatabase db = cacheDb.getWritableDatabase();
-                db.delete(CacheDb.TABLE_NAME,
-                        CacheDb.COLUMN_NAME + " LIKE ? OR " +
-                        CacheDb.COLUMN_NAME + " LIKE ?", // SELECT query
-                        new String[] {
-                            WIDGET_PREFIX + packageName + "/%",
-                            SHORTCUT_PREFIX + packageName + "/%"} // args to SELECT query
-                            );
+                store.removePackage(packageName);
                 synchronized(sInvalidPackages) {
                     sInvalidPackages.remove(packageName);
                 }
@@ -356,51 +530,15 @@ public class WidgetPreviewLoader {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
     }
 
-    public static void removeItemFromDb(final CacheDb cacheDb, final String objectName) {
+    public static void removeItemFromDb(final PreviewStore store, final String objectName) {
         new AsyncTask<Void, Void, Void>() {
             public Void doInBackground(Void ... args) {
-                SQLiteDatabase db = cacheDb.getWritableDatabase();
-                db.delete(CacheDb.TABLE_NAME,
-                        CacheDb.COLUMN_NAME + " = ? ", // SELECT query
-                        new String[] { objectName }); // args to SELECT query
+                store.removeItem(objectName);
                 return null;
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
     }
 
-    private Bitmap readFromDb(String name, Bitmap b) {
-        if (mCachedSelectQuery == null) {
-            mCachedSelectQuery = CacheDb.COLUMN_NAME + " = ? AND " +
-                    CacheDb.COLUMN_SIZE + " = ?";
-        }
-        SQLiteDatabase db = mDb.getReadableDatabase();
-        Cursor result = db.query(CacheDb.TABLE_NAME,
-                new String[] { CacheDb.COLUMN_PREVIEW_BITMAP }, // cols to return
-                mCachedSelectQuery, // select query
-                new String[] { name, mSize }, // args to select query
-                null,
-                null,
-                null,
-                null);
-        if (result.getCount() > 0) {
-            result.moveToFirst();
-            byte[] blob = result.getBlob(0);
-            result.close();
-            final BitmapFactory.Options opts = mCachedBitmapFactoryOptions.get();
-            opts.inBitmap = b;
-            opts.inSampleSize = 1;
-            try {
-                return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
-            } catch (IllegalArgumentException e) {
-                removeItemFromDb(mDb, name);
-                return null;
-            }
-        } else {
-            result.close();
-            return null;
-        }
-    }
-
     public Bitmap generatePreview(Object info, Bitmap preview) {
         if (preview != null &&
                 (preview.getWidth() != mPreviewBitmapWidth ||
@@ -471,7 +609,7 @@ public class WidgetPreviewLoader {
             previewWidth = previewDrawableWidth * cellHSpan;
             previewHeight = previewDrawableHeight * cellVSpan;
 
-            defaultPreview = Bitmap.createBitmap(previewWidth, previewHeight,
+            defaultPreview = mBitmapPool.acquireCleared(previewWidth, previewHeight,
                     Config.ARGB_8888);
             final Canvas c = mCachedAppWidgetPreviewCanvas.get();
             c.setBitmap(defaultPreview);
@@ -544,6 +682,7 @@ public class WidgetPreviewLoader {
             }
             c.drawBitmap(defaultPreview, src, dest, p);
             c.setBitmap(null);
+            mBitmapPool.release(defaultPreview);
         }
         return preview;
     }
@@ -1066,6 +1066,8 @@ public class Workspace extends SmoothPagedView
     protected void notifyPageSwitchListener() {
         super.notifyPageSwitchListener();
         Launcher.setScreen(mCurrentPage);
+        // Bind the items around the new page first, if the workspace is still being bound
+        mLauncher.getModel().prioritizeBindingOfScreen(getScreenIdForPageIndex(mCurrentPage));
 
         if (hasCustomContent() && getNextPage() == 0 && !mCustomContentShowing) {
             mCustomContentShowing = true;
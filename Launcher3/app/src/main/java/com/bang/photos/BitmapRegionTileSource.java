@@ -17,34 +17,55 @@
 package com.bang.photos;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.util.Log;
 
+import com.bang.gallery3d.common.BitmapPool;
 import com.bang.gallery3d.common.BitmapUtils;
 import com.bang.gallery3d.glrenderer.BasicTexture;
 import com.bang.gallery3d.glrenderer.BitmapTexture;
 import com.bang.photos.views.TiledImageRenderer;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A {@link TiledImageRenderer.TileSource} using
- * {@link BitmapRegionDecoder} to wrap a local file
+ * {@link BitmapRegionDecoder} to wrap a local file.
+ *
+ * BitmapRegionDecoder serializes its decodes, so tiles are decoded in parallel by giving each
+ * decoding thread its own decoder on the same image, up to {@link #MAX_DECODERS}.
+ *
+ * Files and resources, which are opened again and again from the wallpaper picker, get a
+ * {@link TilePyramid} built in the background the first time they're shown; from then on the
+ * preview and the downsampled tiles are read from it, and a decoder is only opened once a
+ * full resolution tile is needed.
+ *
+ * The decoders and the preview are shared through the {@link DecodedImageRegistry} with the
+ * other users of the same image, such as a crop task or the source of the previous time the
+ * image was shown; call {@link #release} once done with the source. Tiles of the levels the
+ * preview has enough pixels for are drawn from it rather than decoded.
  */
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
-public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
+public class BitmapRegionTileSource implements TiledImageRenderer.ConcurrentTileSource {
 
     private static final String TAG = "BitmapRegionTileSource";
 
@@ -54,19 +75,60 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     // This must be no larger than half the size of the GL_SIZE_LIMIT
     // due to decodePreview being allowed to be up to 2x the size of the target
     private static final int MAX_PREVIEW_SIZE = 1024;
+    // Each decoder keeps its own copy of the image index, so don't open too many
+    private static final int MAX_DECODERS = 3;
+    private static final boolean USE_TILE_PYRAMID = true;
 
-    BitmapRegionDecoder mDecoder;
     int mWidth;
     int mHeight;
     int mTileSize;
     private BasicTexture mPreview;
+    private Bitmap mPreviewBitmap;
     private final int mRotation;
 
-    // For use only by getTile
-    private Rect mWantRegion = new Rect();
-    private Rect mOverlapRegion = new Rect();
+    // Where the image comes from, to open more decoders
+    private final Resources mRes;
+    private final Context mContext;
+    private final String mPath;
+    private final Uri mUri;
+    private final int mResId;
+
+    private TilePyramid mPyramid;
+    private final DecodedImageRegistry.SharedImage mImage;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
     private BitmapFactory.Options mOptions;
-    private Canvas mCanvas;
+    private final BitmapPool mBitmapPool = BitmapPool.getInstance();
+
+    /** The state getTile uses on one decoding thread. */
+    private static class TileDecodeState {
+        final BitmapRegionDecoder decoder;
+        final Rect wantRegion = new Rect();
+        final Rect overlapRegion = new Rect();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        Canvas canvas;
+
+        TileDecodeState(BitmapRegionDecoder decoder) {
+            this.decoder = decoder;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
+            options.inTempStorage = new byte[16 * 1024];
+        }
+    }
+
+    private final ThreadLocal<TileDecodeState> mDecodeState = new ThreadLocal<TileDecodeState>();
+    // Which of the shared decoders the next decoding thread gets
+    private final AtomicInteger mDecodeStateCount = new AtomicInteger();
+
+    private final DecodedImageRegistry.DecoderOpener mDecoderOpener =
+            new DecodedImageRegistry.DecoderOpener() {
+                @Override
+                public BitmapRegionDecoder open() throws IOException {
+                    return openDecoder();
+                }
+            };
+
+    private static final Paint sPreviewPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     public BitmapRegionTileSource(Context context, String path, int previewSize, int rotation) {
         this(null, context, path, null, 0, previewSize, rotation);
@@ -85,34 +147,58 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
             Context context, String path, Uri uri, int resId, int previewSize, int rotation) {
         mTileSize = TiledImageRenderer.suggestedTileSize(context);
         mRotation = rotation;
-        try {
-            if (path != null) {
-                mDecoder = BitmapRegionDecoder.newInstance(path, true);
-            } else if (uri != null) {
-                InputStream is = context.getContentResolver().openInputStream(uri);
-                BufferedInputStream bis = new BufferedInputStream(is);
-                mDecoder = BitmapRegionDecoder.newInstance(bis, true);
+        mRes = res;
+        mContext = context;
+        mPath = path;
+        mUri = uri;
+        mResId = resId;
+        final String stableKey = getStableKey(context, path, uri, res, resId);
+        mImage = DecodedImageRegistry.getInstance().acquire(
+                getSharingKey(stableKey, path, uri, resId), stableKey != null);
+        final File pyramidFile = USE_TILE_PYRAMID && stableKey != null ?
+                TilePyramid.getFile(context, stableKey, mTileSize) : null;
+        if (pyramidFile != null) {
+            mPyramid = TilePyramid.open(pyramidFile, mTileSize);
+        }
+        final Point size = mImage.getSize();
+        if (size != null) {
+            // Someone else already opened the image
+            mWidth = size.x;
+            mHeight = size.y;
+        } else if (mPyramid != null) {
+            // The decoder is opened once a full resolution tile is needed
+            mWidth = mPyramid.getWidth();
+            mHeight = mPyramid.getHeight();
+            mImage.setSize(mWidth, mHeight);
+        } else {
+            BitmapRegionDecoder decoder = mImage.getDecoder(0, MAX_DECODERS, mDecoderOpener);
+            if (decoder != null) {
+                mWidth = decoder.getWidth();
+                mHeight = decoder.getHeight();
             } else {
-                InputStream is = res.openRawResource(resId);
-                BufferedInputStream bis = new BufferedInputStream(is);
-                mDecoder = BitmapRegionDecoder.newInstance(bis, true);
+                Log.w("BitmapRegionTileSource", "ctor failed");
             }
-            mWidth = mDecoder.getWidth();
-            mHeight = mDecoder.getHeight();
-        } catch (IOException e) {
-            Log.w("BitmapRegionTileSource", "ctor failed", e);
         }
         mOptions = new BitmapFactory.Options();
         mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
         mOptions.inPreferQualityOverSpeed = true;
         mOptions.inTempStorage = new byte[16 * 1024];
+        Bitmap preview = null;
         if (previewSize != 0) {
             previewSize = Math.min(previewSize, MAX_PREVIEW_SIZE);
-            // Although this is the same size as the Bitmap that is likely already
-            // loaded, the lifecycle is different and interactions are on a different
-            // thread. Thus to simplify, this source will decode its own bitmap.
-            Bitmap preview = decodePreview(res, context, path, uri, resId, previewSize);
-            if (preview.getWidth() <= GL_SIZE_LIMIT && preview.getHeight() <= GL_SIZE_LIMIT) {
+            preview = mImage.getPreview(previewSize);
+            if (preview == null && mPyramid != null) {
+                preview = mPyramid.getPreview(previewSize);
+            }
+            if (preview == null) {
+                preview = decodePreview(res, context, path, uri, resId, previewSize);
+            }
+            if (preview == null) {
+                Log.w(TAG, "Failed to decode preview");
+            } else if (preview.getWidth() <= GL_SIZE_LIMIT
+                    && preview.getHeight() <= GL_SIZE_LIMIT) {
+                mImage.setPreview(previewSize, preview);
+                mPreviewBitmap = preview;
                 mPreview = new BitmapTexture(preview);
             } else {
                 Log.w(TAG, String.format(
@@ -122,6 +208,114 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
                         preview.getWidth(), preview.getHeight()));
             }
         }
+        if (pyramidFile != null && mPyramid == null && mWidth > 0) {
+            TilePyramid.buildAsync(pyramidFile, mTileSize, mDecoderOpener, preview, previewSize);
+        }
+    }
+
+    /**
+     * Gives back what the source shares with the other users of the image. The source must not
+     * be used afterwards, although tiles still being decoded may complete.
+     */
+    public void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            mImage.release();
+        }
+    }
+
+    /**
+     * Returns the key under which an image is shared in the {@link DecodedImageRegistry}, or
+     * null if it can't be told.
+     */
+    public static String getSharingKey(
+            Context context, String path, Uri uri, Resources res, int resId) {
+        return getSharingKey(getStableKey(context, path, uri, res, resId), path, uri, resId);
+    }
+
+    private static String getSharingKey(String stableKey, String path, Uri uri, int resId) {
+        if (stableKey != null) {
+            return stableKey;
+        }
+        if (uri != null) {
+            return "uri:" + uri;
+        }
+        return path != null ? "path:" + path : "res:" + resId;
+    }
+
+    /**
+     * Returns what identifies the content of the image, or null if it can't be told, in which
+     * case no pyramid is kept and the image isn't kept in the registry once released. Reads the
+     * file system, so must not be called on the main thread.
+     */
+    public static String getStableKey(
+            Context context, String path, Uri uri, Resources res, int resId) {
+        if (path == null && uri != null && ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            path = uri.getPath();
+        }
+        if (path != null) {
+            File file = new File(path);
+            if (!file.exists()) {
+                return null;
+            }
+            return "file:" + file.getAbsolutePath() + ":" + file.length() + ":"
+                    + file.lastModified();
+        }
+        if (res != null && context != null) {
+            try {
+                String packageName = res.getResourcePackageName(resId);
+                long lastUpdateTime = context.getPackageManager()
+                        .getPackageInfo(packageName, 0).lastUpdateTime;
+                return "res:" + res.getResourceName(resId) + ":" + lastUpdateTime;
+            } catch (Resources.NotFoundException e) {
+                return null;
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+        // Content uris may change behind our back
+        return null;
+    }
+
+    private BitmapRegionDecoder openDecoder() throws IOException {
+        if (mPath != null) {
+            return BitmapRegionDecoder.newInstance(mPath, true);
+        }
+        InputStream is;
+        if (mUri != null) {
+            is = mContext.getContentResolver().openInputStream(mUri);
+        } else {
+            is = mRes.openRawResource(mResId);
+        }
+        BufferedInputStream bis = new BufferedInputStream(is);
+        try {
+            return BitmapRegionDecoder.newInstance(bis, true);
+        } finally {
+            bis.close();
+        }
+    }
+
+    /**
+     * Returns the decode state of the calling thread. The first few threads get a decoder of
+     * their own; the others share the existing ones, which is safe but serializes them.
+     */
+    private TileDecodeState getDecodeState() {
+        TileDecodeState state = mDecodeState.get();
+        if (state == null) {
+            BitmapRegionDecoder decoder = mImage.getDecoder(
+                    mDecodeStateCount.getAndIncrement(), MAX_DECODERS, mDecoderOpener);
+            if (decoder == null) {
+                // Try again next time
+                return null;
+            }
+            state = new TileDecodeState(decoder);
+            mDecodeState.set(state);
+        }
+        return state;
+    }
+
+    @Override
+    public int getMaxConcurrentDecodes() {
+        return mWidth > 0 ? MAX_DECODERS : 1;
     }
 
     @Override
@@ -152,62 +346,107 @@ public class BitmapRegionTileSource implements TiledImageRenderer.TileSource {
     @Override
     public Bitmap getTile(int level, int x, int y, Bitmap bitmap) {
         int tileSize = getTileSize();
+        if (mPreviewBitmap != null && (mPreviewBitmap.getWidth() << level) >= mWidth) {
+            return getTileFromPreview(level, x, y, bitmap, tileSize);
+        }
+        if (mPyramid != null && mPyramid.hasLevel(level)) {
+            if (bitmap == null) {
+                bitmap = mBitmapPool.acquireCleared(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            }
+            if (mPyramid.readTile(level, x, y, bitmap)) {
+                return bitmap;
+            }
+        }
         if (!REUSE_BITMAP) {
             return getTileWithoutReusingBitmap(level, x, y, tileSize);
         }
 
+        final TileDecodeState state = getDecodeState();
+        if (state == null) {
+            return null;
+        }
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        state.wantRegion.set(x, y, x + t, y + t);
 
         if (bitmap == null) {
-            bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            bitmap = mBitmapPool.acquire(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            }
         }
 
-        mOptions.inSampleSize = (1 << level);
-        mOptions.inBitmap = bitmap;
+        state.options.inSampleSize = (1 << level);
+        state.options.inBitmap = bitmap;
 
+        final Bitmap reuse = bitmap;
         try {
-            bitmap = mDecoder.decodeRegion(mWantRegion, mOptions);
+            bitmap = state.decoder.decodeRegion(state.wantRegion, state.options);
         } finally {
-            if (mOptions.inBitmap != bitmap && mOptions.inBitmap != null) {
-                mOptions.inBitmap = null;
-            }
+            state.options.inBitmap = null;
         }
 
+        if (bitmap != reuse) {
+            // The decoder couldn't decode into it, give it to someone else
+            mBitmapPool.release(reuse);
+        }
         if (bitmap == null) {
             Log.w("BitmapRegionTileSource", "fail in decoding region");
         }
         return bitmap;
     }
 
+    private Bitmap getTileFromPreview(int level, int x, int y, Bitmap bitmap, int tileSize) {
+        if (bitmap == null) {
+            bitmap = mBitmapPool.acquireCleared(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+        } else {
+            // Tiles at the edges are partly outside the image
+            bitmap.eraseColor(0);
+        }
+        final Bitmap preview = mPreviewBitmap;
+        // Preview pixels per pixel of the level
+        final float scaleX = preview.getWidth() * (float) (1 << level) / mWidth;
+        final float scaleY = preview.getHeight() * (float) (1 << level) / mHeight;
+        Canvas canvas = new Canvas(bitmap);
+        canvas.scale(1 / scaleX, 1 / scaleY);
+        canvas.translate(-(x >> level) * scaleX, -(y >> level) * scaleY);
+        canvas.drawBitmap(preview, 0, 0, sPreviewPaint);
+        return bitmap;
+    }
+
     private Bitmap getTileWithoutReusingBitmap(
             int level, int x, int y, int tileSize) {
 
+        final TileDecodeState state = getDecodeState();
+        if (state == null) {
+            return null;
+        }
+        final Rect wantRegion = state.wantRegion;
+        final Rect overlapRegion = state.overlapRegion;
         int t = tileSize << level;
-        mWantRegion.set(x, y, x + t, y + t);
+        wantRegion.set(x, y, x + t, y + t);
 
-        mOverlapRegion.set(0, 0, mWidth, mHeight);
+        overlapRegion.set(0, 0, mWidth, mHeight);
 
-        mOptions.inSampleSize = (1 << level);
-        Bitmap bitmap = mDecoder.decodeRegion(mOverlapRegion, mOptions);
+        state.options.inSampleSize = (1 << level);
+        Bitmap bitmap = state.decoder.decodeRegion(overlapRegion, state.options);
 
         if (bitmap == null) {
             Log.w(TAG, "fail in decoding region");
         }
 
-        if (mWantRegion.equals(mOverlapRegion)) {
+        if (wantRegion.equals(overlapRegion)) {
             return bitmap;
         }
 
-        Bitmap result = Bitmap.createBitmap(tileSize, tileSize, Config.ARGB_8888);
-        if (mCanvas == null) {
-            mCanvas = new Canvas();
+        Bitmap result = mBitmapPool.acquireCleared(tileSize, tileSize, Config.ARGB_8888);
+        if (state.canvas == null) {
+            state.canvas = new Canvas();
         }
-        mCanvas.setBitmap(result);
-        mCanvas.drawBitmap(bitmap,
-                (mOverlapRegion.left - mWantRegion.left) >> level,
-                (mOverlapRegion.top - mWantRegion.top) >> level, null);
-        mCanvas.setBitmap(null);
+        state.canvas.setBitmap(result);
+        state.canvas.drawBitmap(bitmap,
+                (overlapRegion.left - wantRegion.left) >> level,
+                (overlapRegion.top - wantRegion.top) >> level, null);
+        state.canvas.setBitmap(null);
         return result;
     }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.photos;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * What has been decoded of the images being shown or cropped, shared by everyone using the same
+ * image: the size of the image, its region decoders and its preview. The
+ * {@link BitmapRegionTileSource} showing an image and the crop task cropping it thus open and
+ * index the image once, and selecting an image again reuses what was decoded the first time.
+ *
+ * Images are reference counted. Once released by everyone, the last few images whose content
+ * can't change (see {@link #acquire}) are kept in case they're used again; the others are
+ * dropped. Decoders of dropped images aren't recycled explicitly, since a decoding thread that
+ * hasn't noticed the switch to another image may still be using them; they are freed once
+ * garbage collected.
+ */
+public class DecodedImageRegistry {
+    private static final String TAG = "DecodedImageRegistry";
+    private static final boolean DEBUG = false;
+
+    // Released images kept in case they're selected again
+    private static final int MAX_UNUSED_IMAGES = 2;
+
+    private static final DecodedImageRegistry sInstance = new DecodedImageRegistry();
+
+    /** Opens a decoder on the image. */
+    public interface DecoderOpener {
+        BitmapRegionDecoder open() throws IOException;
+    }
+
+    /** One image, shared by everyone who acquired it. Its methods are thread safe. */
+    public static class SharedImage {
+        private final String mKey;
+        private final boolean mCacheWhenUnused;
+        private int mRefCount;
+
+        private final ArrayList<BitmapRegionDecoder> mDecoders =
+                new ArrayList<BitmapRegionDecoder>();
+        private int mWidth;
+        private int mHeight;
+        private Bitmap mPreview;
+        private int mPreviewSize;
+
+        SharedImage(String key, boolean cacheWhenUnused) {
+            mKey = key;
+            mCacheWhenUnused = cacheWhenUnused;
+        }
+
+        /** Returns the size of the image, or null if it isn't known yet. */
+        public synchronized Point getSize() {
+            return mWidth > 0 ? new Point(mWidth, mHeight) : null;
+        }
+
+        public synchronized void setSize(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * Returns the decoder to use for the given index. Until maxDecoders decoders are open,
+         * a new one is opened with the opener for an index past the open ones; past that,
+         * indices share the existing decoders. Returns null if no decoder could be opened.
+         */
+        public synchronized BitmapRegionDecoder getDecoder(
+                int index, int maxDecoders, DecoderOpener opener) {
+            if (opener != null && mDecoders.size() < maxDecoders && index >= mDecoders.size()) {
+                try {
+                    addDecoderLocked(opener.open());
+                } catch (IOException e) {
+                    Log.w(TAG, "failed to open a decoder", e);
+                }
+            }
+            return mDecoders.isEmpty() ? null : mDecoders.get(index % mDecoders.size());
+        }
+
+        /** Shares a decoder opened by the caller, which mustn't recycle it afterwards. */
+        public synchronized void addDecoder(BitmapRegionDecoder decoder) {
+            addDecoderLocked(decoder);
+        }
+
+        private void addDecoderLocked(BitmapRegionDecoder decoder) {
+            if (decoder == null) {
+                return;
+            }
+            mDecoders.add(decoder);
+            if (mWidth <= 0) {
+                mWidth = decoder.getWidth();
+                mHeight = decoder.getHeight();
+            }
+        }
+
+        /** Returns the preview decoded for the given target size, or null. */
+        public synchronized Bitmap getPreview(int previewSize) {
+            return mPreviewSize == previewSize ? mPreview : null;
+        }
+
+        public synchronized void setPreview(int previewSize, Bitmap preview) {
+            mPreviewSize = previewSize;
+            mPreview = preview;
+        }
+
+        /** Gives back a reference returned by {@link #acquire} or {@link #acquireIfPresent}. */
+        public void release() {
+            sInstance.release(this);
+        }
+    }
+
+    // Guarded by this
+    private final HashMap<String, SharedImage> mImages = new HashMap<String, SharedImage>();
+    // Released images, least recently released first
+    private final LinkedHashMap<String, SharedImage> mUnused =
+            new LinkedHashMap<String, SharedImage>();
+
+    // Stats, for debugging
+    private int mHits;
+    private int mMisses;
+
+    public static DecodedImageRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the image with the given key, creating it if needed, and takes a reference to it.
+     *
+     * @param cacheWhenUnused whether the content behind the key can't change, so that the image
+     *        can be kept for a while once released
+     */
+    public synchronized SharedImage acquire(String key, boolean cacheWhenUnused) {
+        SharedImage image = acquireIfPresent(key);
+        if (image == null) {
+            mMisses++;
+            image = new SharedImage(key, cacheWhenUnused);
+            image.mRefCount = 1;
+            mImages.put(key, image);
+        }
+        return image;
+    }
+
+    /** Returns the image with the given key and takes a reference to it, or returns null. */
+    public synchronized SharedImage acquireIfPresent(String key) {
+        if (key == null) {
+            return null;
+        }
+        SharedImage image = mImages.get(key);
+        if (image == null) {
+            image = mUnused.remove(key);
+            if (image != null) {
+                mImages.put(key, image);
+            }
+        }
+        if (image != null) {
+            mHits++;
+            image.mRefCount++;
+        }
+        return image;
+    }
+
+    private synchronized void release(SharedImage image) {
+        if (image.mRefCount <= 0 || mImages.get(image.mKey) != image) {
+            Log.w(TAG, "released an image that isn't acquired: " + image.mKey);
+            return;
+        }
+        if (--image.mRefCount > 0) {
+            return;
+        }
+        mImages.remove(image.mKey);
+        if (image.mCacheWhenUnused) {
+            mUnused.put(image.mKey, image);
+            while (mUnused.size() > MAX_UNUSED_IMAGES) {
+                mUnused.remove(mUnused.keySet().iterator().next());
+            }
+        }
+        if (DEBUG) {
+            dumpState();
+        }
+    }
+
+    /** Drops the released images. */
+    public synchronized void trim() {
+        mUnused.clear();
+    }
+
+    public synchronized void dumpState() {
+        Log.d(TAG, "images: " + mImages.size() + " in use, " + mUnused.size() + " unused, "
+                + mHits + " hits, " + mMisses + " misses");
+    }
+}
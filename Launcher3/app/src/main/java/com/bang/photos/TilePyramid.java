@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bang.photos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+import com.bang.gallery3d.common.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The downsampled levels of an image, cut in tiles and kept in a file of the cache directory,
+ * so that the tiles of an image which is opened again can be copied out of a memory-mapped
+ * file rather than decoded again from the compressed source. The preview is kept as well.
+ *
+ * Level 0 isn't stored: decoding it from the source costs about as much as reading it, and
+ * it would make the file several times larger. Tiles are stored as raw ARGB_8888 pixels, so
+ * the finest levels of a large image are skipped as well when the file would take more than
+ * {@link #MAX_PYRAMID_BYTES}.
+ *
+ * File layout, in native byte order: a header of {@link #HEADER_INTS} ints, the preview
+ * pixels, then the tiles of levels firstLevel to levelCount, each level in row-major order.
+ */
+class TilePyramid {
+    private static final String TAG = "TilePyramid";
+
+    private static final String DIR_NAME = "tile_pyramids";
+    private static final int MAGIC = 0x54505952;
+    private static final int VERSION = 2;
+    private static final int HEADER_INTS = 10;
+    private static final int BYTES_PER_PIXEL = 4;
+    // The whole directory is kept under this size, dropping the least recently used files
+    private static final long MAX_CACHE_BYTES = 32 * 1024 * 1024;
+    // A single file takes at most this much, so that the cache holds more than one image
+    private static final long MAX_PYRAMID_BYTES = MAX_CACHE_BYTES / 2;
+
+    // Pyramids are built one at a time, behind whatever the user is doing
+    private static final ExecutorService sBuildExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "TilePyramidBuilder");
+                }
+            });
+    // Files being built, so that opening an image twice doesn't build it twice
+    private static final HashSet<File> sBuilding = new HashSet<File>();
+
+    private final MappedByteBuffer mMap;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mFirstLevel;
+    private final int mLevelCount;
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mPreviewSize;
+
+    private TilePyramid(MappedByteBuffer map) {
+        mMap = map;
+        mWidth = map.getInt(2 * 4);
+        mHeight = map.getInt(3 * 4);
+        mTileSize = map.getInt(4 * 4);
+        mLevelCount = map.getInt(5 * 4);
+        mPreviewSize = map.getInt(6 * 4);
+        mPreviewWidth = map.getInt(7 * 4);
+        mPreviewHeight = map.getInt(8 * 4);
+        mFirstLevel = map.getInt(9 * 4);
+    }
+
+    /** Returns the file caching the image with the given identity, for the given tile size. */
+    static File getFile(Context context, String key, int tileSize) {
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        String name = Long.toHexString(Utils.crc64Long(key + "/" + tileSize));
+        return new File(dir, name);
+    }
+
+    /** Maps the given file, returning null if it doesn't exist or isn't valid. */
+    static TilePyramid open(File file, int tileSize) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.nativeOrder());
+            if (map.capacity() < HEADER_INTS * 4 || map.getInt(0) != MAGIC
+                    || map.getInt(1 * 4) != VERSION) {
+                Log.w(TAG, "ignoring invalid pyramid " + file);
+                file.delete();
+                return null;
+            }
+            TilePyramid pyramid = new TilePyramid(map);
+            if (pyramid.mTileSize != tileSize || pyramid.mFirstLevel < 1
+                    || pyramid.mLevelCount < pyramid.mFirstLevel
+                    || map.capacity() != pyramid.getFileSize()) {
+                Log.w(TAG, "ignoring invalid pyramid " + file);
+                file.delete();
+                return null;
+            }
+            // Mark it as recently used
+            file.setLastModified(System.currentTimeMillis());
+            return pyramid;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open pyramid " + file, e);
+            return null;
+        } finally {
+            // The mapping stays valid once the file is closed
+            Utils.closeSilently(raf);
+        }
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    boolean hasLevel(int level) {
+        return level >= mFirstLevel && level <= mLevelCount;
+    }
+
+    /** Returns the stored preview if it was made for the given preview size, or null. */
+    Bitmap getPreview(int previewSize) {
+        if (mPreviewSize != previewSize || mPreviewWidth <= 0 || mPreviewHeight <= 0) {
+            return null;
+        }
+        Bitmap preview = Bitmap.createBitmap(
+                mPreviewWidth, mPreviewHeight, Bitmap.Config.ARGB_8888);
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(HEADER_INTS * 4);
+        buffer.limit((int) (HEADER_INTS * 4 + getPreviewBytes(mPreviewWidth, mPreviewHeight)));
+        preview.copyPixelsFromBuffer(buffer);
+        return preview;
+    }
+
+    /**
+     * Copies the tile whose top left corner is at (x, y) in the full image into the given
+     * bitmap, which must be a mutable ARGB_8888 bitmap of the tile size.
+     */
+    boolean readTile(int level, int x, int y, Bitmap bitmap) {
+        if (!hasLevel(level) || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getWidth() != mTileSize || bitmap.getHeight() != mTileSize) {
+            return false;
+        }
+        final int span = mTileSize << level;
+        final int column = x / span;
+        final int row = y / span;
+        final int columns = getTileCount(mWidth, span);
+        if (column >= columns || row >= getTileCount(mHeight, span)) {
+            return false;
+        }
+        final int tileBytes = getTileBytes(mTileSize);
+        // Within the mapped file, whose size was checked against the header
+        final int offset = (int) (getLevelOffset(level)
+                + (long) (row * columns + column) * tileBytes);
+        ByteBuffer buffer = mMap.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + tileBytes);
+        bitmap.copyPixelsFromBuffer(buffer);
+        return true;
+    }
+
+    private long getLevelOffset(int level) {
+        long offset = HEADER_INTS * 4 + getPreviewBytes(mPreviewWidth, mPreviewHeight);
+        for (int l = mFirstLevel; l < level; l++) {
+            offset += getLevelBytes(mWidth, mHeight, mTileSize, l);
+        }
+        return offset;
+    }
+
+    private long getFileSize() {
+        return getLevelOffset(mLevelCount + 1);
+    }
+
+    /** Returns the size of the file storing the given levels. */
+    private static long getFileSize(int width, int height, int tileSize, int firstLevel,
+            int levelCount, int previewWidth, int previewHeight) {
+        long size = HEADER_INTS * 4 + getPreviewBytes(previewWidth, previewHeight);
+        for (int l = firstLevel; l <= levelCount; l++) {
+            size += getLevelBytes(width, height, tileSize, l);
+        }
+        return size;
+    }
+
+    private static int getTileCount(int length, int span) {
+        return (length + span - 1) / span;
+    }
+
+    private static int getTileBytes(int tileSize) {
+        return tileSize * tileSize * BYTES_PER_PIXEL;
+    }
+
+    private static long getPreviewBytes(int width, int height) {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+
+    private static long getLevelBytes(int width, int height, int tileSize, int level) {
+        final int span = tileSize << level;
+        return (long) getTileCount(width, span) * getTileCount(height, span)
+                * getTileBytes(tileSize);
+    }
+
+    /** Returns the levels worth storing: those above 0, up to the first with a single tile. */
+    private static int getLevelCount(int width, int height, int tileSize) {
+        int levels = 0;
+        while ((tileSize << levels) < Math.max(width, height)) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Builds the pyramid of an image in the background, unless it's already being built. The
+     * preview must not be recycled until the build is done.
+     */
+    static void buildAsync(final File file, final int tileSize,
+            final DecodedImageRegistry.DecoderOpener opener, final Bitmap preview,
+            final int previewSize) {
+        synchronized (sBuilding) {
+            if (!sBuilding.add(file)) {
+                return;
+            }
+        }
+        sBuildExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(file, tileSize, opener, preview, previewSize);
+                } finally {
+                    synchronized (sBuilding) {
+                        sBuilding.remove(file);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void build(File file, int tileSize, DecodedImageRegistry.DecoderOpener opener,
+            Bitmap preview, int previewSize) {
+        final long start = System.currentTimeMillis();
+        BitmapRegionDecoder decoder = null;
+        RandomAccessFile raf = null;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            decoder = opener.open();
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+            final int levelCount = getLevelCount(width, height, tileSize);
+            if (levelCount < 1) {
+                // The image fits in a single tile, there's nothing to gain
+                return;
+            }
+            if (preview != null && preview.getConfig() != Bitmap.Config.ARGB_8888) {
+                preview = null;
+            }
+            final int previewWidth = preview != null ? preview.getWidth() : 0;
+            final int previewHeight = preview != null ? preview.getHeight() : 0;
+
+            // Skip the finest levels, the largest ones, until the file fits in its share of
+            // the cache; otherwise it would be dropped right away and rebuilt every time
+            int firstLevel = 1;
+            while (firstLevel <= levelCount && getFileSize(width, height, tileSize, firstLevel,
+                    levelCount, previewWidth, previewHeight) > MAX_PYRAMID_BYTES) {
+                firstLevel++;
+            }
+            if (firstLevel > levelCount) {
+                Log.w(TAG, "not caching " + width + "x" + height + " image, too large");
+                return;
+            }
+
+            file.getParentFile().mkdirs();
+            raf = new RandomAccessFile(tmp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * 4);
+            header.order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(width);
+            header.putInt(height);
+            header.putInt(tileSize);
+            header.putInt(levelCount);
+            header.putInt(previewSize);
+            header.putInt(previewWidth);
+            header.putInt(previewHeight);
+            header.putInt(firstLevel);
+            header.flip();
+            writeFully(channel, header);
+
+            if (preview != null) {
+                ByteBuffer pixels =
+                        ByteBuffer.allocate((int) getPreviewBytes(previewWidth, previewHeight));
+                preview.copyPixelsToBuffer(pixels);
+                pixels.flip();
+                writeFully(channel, pixels);
+            }
+
+            final Bitmap tile = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+            final ByteBuffer pixels = ByteBuffer.allocate(getTileBytes(tileSize));
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inPreferQualityOverSpeed = true;
+            final Rect region = new Rect();
+            for (int level = firstLevel; level <= levelCount; level++) {
+                final int span = tileSize << level;
+                options.inSampleSize = 1 << level;
+                for (int y = 0; y < height; y += span) {
+                    for (int x = 0; x < width; x += span) {
+                        if (Thread.interrupted()) {
+                            return;
+                        }
+                        region.set(x, y, x + span, y + span);
+                        tile.eraseColor(0);
+                        options.inBitmap = tile;
+                        Bitmap decoded = decoder.decodeRegion(region, options);
+                        if (decoded != tile) {
+                            Log.w(TAG, "failed to decode tile for " + file);
+                            return;
+                        }
+                        pixels.clear();
+                        tile.copyPixelsToBuffer(pixels);
+                        pixels.flip();
+                        writeFully(channel, pixels);
+                    }
+                }
+            }
+            raf.close();
+            raf = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "failed to rename " + tmp);
+                return;
+            }
+            Log.d(TAG, "built " + file.getName() + ": " + width + "x" + height + ", levels "
+                    + firstLevel + " to " + levelCount + ", " + file.length() / 1024 + "KB in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            trimCache(file.getParentFile(), file);
+        } catch (Throwable t) {
+            Log.w(TAG, "failed to build " + file, t);
+        } finally {
+            Utils.closeSilently(raf);
+            tmp.delete();
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Drops the least recently used files beyond the cache size, except the given one. */
+    private static void trimCache(File dir, File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Utils.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (total <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (f.equals(keep)) {
+                continue;
+            }
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
@@ -23,16 +23,21 @@ import android.graphics.RectF;
 import android.support.v4.util.LongSparseArray;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.Pools.Pool;
-import android.util.Pools.SynchronizedPool;
 import android.view.View;
 import android.view.WindowManager;
 
+import com.bang.gallery3d.common.BitmapPool;
 import com.bang.gallery3d.common.Utils;
 import com.bang.gallery3d.glrenderer.BasicTexture;
 import com.bang.gallery3d.glrenderer.GLCanvas;
+import com.bang.gallery3d.glrenderer.TextureResidencyManager;
+import com.bang.gallery3d.glrenderer.UploadGovernor;
 import com.bang.gallery3d.glrenderer.UploadedTexture;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
 /**
  * Handles laying out, decoding, and drawing of tiles in GL
  */
@@ -40,7 +45,11 @@ public class TiledImageRenderer {
     public static final int SIZE_UNKNOWN = -1;
 
     private static final String TAG = "TiledImageRenderer";
-    private static final int UPLOAD_LIMIT = 1;
+    private static final boolean DEBUG = false;
+
+    // Upper bound on the decoder threads; a ConcurrentTileSource may ask for fewer
+    private static final int MAX_DECODE_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
 
     /*
      *  This is the tile state in the CPU side.
@@ -67,7 +76,8 @@ public class TiledImageRenderer {
     private static final int STATE_RECYCLING = 0x20;
     private static final int STATE_RECYCLED = 0x40;
 
-    private static Pool<Bitmap> sTilePool = new SynchronizedPool<Bitmap>(64);
+    // Tile bitmaps come from and go back to the pool shared with the rest of the process
+    private static final BitmapPool sTilePool = BitmapPool.getInstance();
 
     // TILE_SIZE must be 2^N
     private int mTileSize;
@@ -87,8 +97,11 @@ public class TiledImageRenderer {
     private int mOffsetX;
     private int mOffsetY;
 
-    private int mUploadQuota;
+    // How many tiles are uploaded per frame is up to the governor, which is shared with the
+    // other UploadedTextures drawn on this thread
+    private final UploadGovernor mUploadGovernor = UploadedTexture.getUploadGovernor();
     private boolean mRenderComplete;
+    private boolean mLastRenderComplete = true;
 
     private final RectF mSourceRect = new RectF();
     private final RectF mTargetRect = new RectF();
@@ -99,7 +112,7 @@ public class TiledImageRenderer {
     private final Object mQueueLock = new Object();
     private final TileQueue mRecycledQueue = new TileQueue();
     private final TileQueue mUploadQueue = new TileQueue();
-    private final TileQueue mDecodeQueue = new TileQueue();
+    private final DecodeQueue mDecodeQueue = new DecodeQueue();
 
     // The width and height of the full-sized bitmap
     protected int mImageWidth = SIZE_UNKNOWN;
@@ -116,7 +129,9 @@ public class TiledImageRenderer {
     private final Rect mTileRange = new Rect();
     private final Rect mActiveRange[] = {new Rect(), new Rect()};
 
-    private TileDecoder mTileDecoder;
+    // Decoder threads; only the first mDecoderCount of them take work, guarded by mQueueLock
+    private final ArrayList<TileDecoder> mTileDecoders = new ArrayList<TileDecoder>();
+    private int mDecoderCount;
     private boolean mBackgroundTileUploaded;
 
     private int mViewWidth, mViewHeight;
@@ -158,6 +173,19 @@ public class TiledImageRenderer {
         public Bitmap getTile(int level, int x, int y, Bitmap reuse);
     }
 
+    /**
+     * A {@link TileSource} whose {@link TileSource#getTile} may be called from several decoder
+     * threads at once.
+     */
+    public static interface ConcurrentTileSource extends TileSource {
+
+        /**
+         * Returns how many tiles the source can usefully decode in parallel, for instance the
+         * number of underlying decoders it is willing to open.
+         */
+        public int getMaxConcurrentDecodes();
+    }
+
     public static int suggestedTileSize(Context context) {
         return isHighResolution(context) ? 512 : 256;
     }
@@ -172,8 +200,23 @@ public class TiledImageRenderer {
 
     public TiledImageRenderer(View parent) {
         mParent = parent;
-        mTileDecoder = new TileDecoder();
-        mTileDecoder.start();
+        setDecoderCount(1);
+    }
+
+    /**
+     * Makes the given number of decoder threads take work, starting new ones as needed. Extra
+     * threads are kept but left idle.
+     */
+    private void setDecoderCount(int count) {
+        synchronized (mQueueLock) {
+            while (mTileDecoders.size() < count) {
+                TileDecoder decoder = new TileDecoder(mTileDecoders.size());
+                mTileDecoders.add(decoder);
+                decoder.start();
+            }
+            mDecoderCount = count;
+            mQueueLock.notifyAll();
+        }
     }
 
     public int getViewWidth() {
@@ -229,6 +272,12 @@ public class TiledImageRenderer {
             mTileSize = mModel.getTileSize();
             calculateLevelCount();
         }
+        int decoders = 1;
+        if (mModel instanceof ConcurrentTileSource) {
+            decoders = Utils.clamp(((ConcurrentTileSource) mModel).getMaxConcurrentDecodes(),
+                    1, MAX_DECODE_THREADS);
+        }
+        setDecoderCount(decoders);
         mLayoutTiles = true;
     }
 
@@ -388,7 +437,14 @@ public class TiledImageRenderer {
     public void freeTextures() {
         mLayoutTiles = true;
 
-        mTileDecoder.finishAndWait();
+        synchronized (mQueueLock) {
+            for (TileDecoder decoder : mTileDecoders) {
+                decoder.interrupt();
+            }
+        }
+        for (TileDecoder decoder : mTileDecoders) {
+            decoder.finishAndWait();
+        }
         synchronized (mQueueLock) {
             mUploadQueue.clean();
             mDecodeQueue.clean();
@@ -407,14 +463,15 @@ public class TiledImageRenderer {
         mActiveTiles.clear();
         mTileRange.set(0, 0, 0, 0);
 
-        while (sTilePool.acquire() != null) {}
+        sTilePool.clear(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
     }
 
     public boolean draw(GLCanvas canvas) {
         layoutTiles();
+        mUploadGovernor.beginFrame();
+        TextureResidencyManager.getInstance().beginFrame();
         uploadTiles(canvas);
 
-        mUploadQuota = UPLOAD_LIMIT;
         mRenderComplete = true;
 
         int level = mLevel;
@@ -464,6 +521,12 @@ public class TiledImageRenderer {
         } else {
             invalidate();
         }
+        mUploadGovernor.endFrame(!mRenderComplete);
+        if (DEBUG && mRenderComplete && !mLastRenderComplete) {
+            mUploadGovernor.dumpState();
+            TextureResidencyManager.getInstance().dumpState();
+        }
+        mLastRenderComplete = mRenderComplete;
         return mRenderComplete || mPreview != null;
     }
 
@@ -482,13 +545,25 @@ public class TiledImageRenderer {
        synchronized (mQueueLock) {
            if (tile.mTileState == STATE_ACTIVATED) {
                tile.mTileState = STATE_IN_QUEUE;
-               if (mDecodeQueue.push(tile)) {
-                   mQueueLock.notifyAll();
-               }
+               tile.mDecodePriority = getDecodePriority(tile);
+               mDecodeQueue.push(tile);
+               mQueueLock.notifyAll();
            }
        }
     }
 
+    /**
+     * Tiles are decoded coarse levels first, so that something covers the whole view quickly,
+     * then by distance from the center of the view. Smaller values are decoded first.
+     */
+    private long getDecodePriority(Tile tile) {
+        long half = (mTileSize << tile.mTileLevel) / 2;
+        long dx = tile.mX + half - mCenterX;
+        long dy = tile.mY + half - mCenterY;
+        long distance = Math.min(dx * dx + dy * dy, (1L << 48) - 1);
+        return ((long) (mLevelCount - tile.mTileLevel) << 48) | distance;
+    }
+
     private void decodeTile(Tile tile) {
         synchronized (mQueueLock) {
             if (tile.mTileState != STATE_IN_QUEUE) {
@@ -567,10 +642,14 @@ public class TiledImageRenderer {
         return result;
     }
 
+    private int getTileUploadBytes() {
+        return mTileSize * mTileSize * 4;
+    }
+
     private void uploadTiles(GLCanvas canvas) {
-        int quota = UPLOAD_LIMIT;
+        final int tileBytes = getTileUploadBytes();
         Tile tile = null;
-        while (quota > 0) {
+        while (mUploadGovernor.canUpload(tileBytes)) {
             synchronized (mQueueLock) {
                 tile = mUploadQueue.pop();
             }
@@ -580,7 +659,6 @@ public class TiledImageRenderer {
             if (!tile.isContentValid()) {
                 if (tile.mTileState == STATE_DECODED) {
                     tile.updateContent(canvas);
-                    --quota;
                 } else {
                     Log.w(TAG, "Tile in upload queue has invalid state: " + tile.mTileState);
                 }
@@ -604,8 +682,7 @@ public class TiledImageRenderer {
         if (tile != null) {
             if (!tile.isContentValid()) {
                 if (tile.mTileState == STATE_DECODED) {
-                    if (mUploadQuota > 0) {
-                        --mUploadQuota;
+                    if (mUploadGovernor.canUpload(getTileUploadBytes())) {
                         tile.updateContent(canvas);
                     } else {
                         mRenderComplete = false;
@@ -667,6 +744,7 @@ public class TiledImageRenderer {
         public Tile mNext;
         public Bitmap mDecodedTile;
         public volatile int mTileState = STATE_ACTIVATED;
+        public long mDecodePriority;
 
         public Tile(int x, int y, int level) {
             mX = x;
@@ -683,10 +761,7 @@ public class TiledImageRenderer {
             // Get a tile from the original image. The tile is down-scaled
             // by (1 << mTilelevel) from a region in the original image.
             try {
-                Bitmap reuse = sTilePool.acquire();
-                if (reuse != null && reuse.getWidth() != mTileSize) {
-                    reuse = null;
-                }
+                Bitmap reuse = sTilePool.acquire(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
                 mDecodedTile = mModel.getTile(mTileLevel, mX, mY, reuse);
             } catch (Throwable t) {
                 Log.w(TAG, "fail to decode tile", t);
@@ -786,7 +861,41 @@ public class TiledImageRenderer {
         }
     }
 
+    /**
+     * Tiles waiting to be decoded, in the order of {@link #getDecodePriority}. It is cleared on
+     * every layout, which drops the tiles that left the active range before they got decoded;
+     * the ones still needed are queued again, with an updated priority, when they are drawn.
+     */
+    private static class DecodeQueue {
+        private final PriorityQueue<Tile> mTiles = new PriorityQueue<Tile>(16,
+                new Comparator<Tile>() {
+                    @Override
+                    public int compare(Tile lhs, Tile rhs) {
+                        return lhs.mDecodePriority < rhs.mDecodePriority ? -1 :
+                                (lhs.mDecodePriority == rhs.mDecodePriority ? 0 : 1);
+                    }
+                });
+
+        public Tile pop() {
+            return mTiles.poll();
+        }
+
+        public void push(Tile tile) {
+            mTiles.add(tile);
+        }
+
+        public void clean() {
+            mTiles.clear();
+        }
+    }
+
     private class TileDecoder extends Thread {
+        private final int mIndex;
+
+        TileDecoder(int index) {
+            super("TileDecoder-" + index);
+            mIndex = index;
+        }
 
         public void finishAndWait() {
             interrupt();
@@ -800,7 +909,7 @@ public class TiledImageRenderer {
         private Tile waitForTile() throws InterruptedException {
             synchronized (mQueueLock) {
                 while (true) {
-                    Tile tile = mDecodeQueue.pop();
+                    Tile tile = mIndex < mDecoderCount ? mDecodeQueue.pop() : null;
                     if (tile != null) {
                         return tile;
                     }
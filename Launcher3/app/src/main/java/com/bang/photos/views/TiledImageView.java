@@ -284,6 +284,7 @@ public class TiledImageView extends FrameLayout {
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
             mCanvas = new GLES20Canvas();
+            mCanvas.setBatchingEnabled(true);
             BasicTexture.invalidateAllTextures();
             mRenderer.image.setModel(mRenderer.source, mRenderer.rotation);
         }
@@ -296,6 +297,8 @@ public class TiledImageView extends FrameLayout {
 
         @Override
         public void onDrawFrame(GL10 gl) {
+            // Free the textures unloaded since the last frame
+            mCanvas.deleteRecycledResources();
             mCanvas.clearBuffer();
             Runnable readyCallback;
             synchronized (mLock) {
@@ -305,6 +308,7 @@ public class TiledImageView extends FrameLayout {
                         mRenderer.scale);
             }
             boolean complete = mRenderer.image.draw(mCanvas);
+            mCanvas.flush();
             if (complete && readyCallback != null) {
                 synchronized (mLock) {
                     // Make sure we don't trample on a newly set callback/source